@@ -0,0 +1,31 @@
+package gatorlibrary;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Main class of target/benchmarks.jar. Takes the usual JMH command line and always
+// adds the allocation profiler (-prof gc), so every result comes with the bytes
+// allocated per operation (gc.alloc.rate.norm) next to its time.
+//
+// Usage: java -jar target/benchmarks.jar [JMH options] [benchmark regex]
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers()
+                || commandLine.shouldListResultFormats() || commandLine.shouldListWithParams()) {
+            // Listings and help are left to JMH's own main
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        try {
+            new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build()).run();
+        } catch (RunnerException e) {
+            System.err.println("Benchmarks failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package gatorlibrary;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Reservation heap operations at waitlist lengths up to the largest catalog size
+//
+// Usage: mvn -P jmh package && java -jar target/benchmarks.jar HeapJmhBenchmark
+//        [-p waitlist=10,1000] (BenchmarkMain adds -prof gc)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class HeapJmhBenchmark {
+    @Param({ "10", "1000", "10000", "100000", "1000000", "10000000" })
+    public int waitlist; // Reservations in the heap
+
+    private MinHeap heap;
+    private long time; // Reservation time of the next insert
+    private int patron; // Patron of the next insert
+    private final StringBuilder out = new StringBuilder();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        heap = new MinHeap();
+        Random random = new Random(waitlist);
+        for (int i = 0; i < waitlist; i++)
+            heap.insertNode(new ReservationNode(i, random.nextInt(10), i));
+        time = waitlist;
+        patron = waitlist;
+    }
+
+    // Keeps the heap at the same size
+    @Benchmark
+    public ReservationNode insertNodePoll() {
+        patron++;
+        heap.insertNode(new ReservationNode(patron, patron % 10, time++));
+        return heap.poll();
+    }
+
+    @Benchmark
+    public int appendPatronIds() {
+        out.setLength(0);
+        heap.appendPatronIds(out);
+        return out.length();
+    }
+
+    // The string a waitlist prints as, built in a fresh buffer
+    @Benchmark
+    public String heapToString() {
+        return heap.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package gatorlibrary;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// The full GatorLibrary.parse and dispatch path over in-memory command files, one
+// row per invocation: a mix of PrintBook, BorrowBook, ReturnBook and InsertBook
+// rows, and a burst of borrows and returns on random books, which GatorLibrary
+// gathers into batches when -Dgatorlibrary.batchWindow is set (compare with the
+// default of 0 through -jvmArgsAppend). A file is parsed again from the start once
+// it runs out.
+//
+// Usage: mvn -P jmh package && java -jar target/benchmarks.jar ParseJmhBenchmark
+//        [-p size=1000,10000000] (BenchmarkMain adds -prof gc)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class ParseJmhBenchmark {
+    private static final int ROWS = 100_000;
+
+    @Param({ "1000", "10000", "100000", "1000000", "10000000" })
+    public int size; // Books in the catalog
+
+    private byte[] input; // Mixed rows
+    private byte[] burst; // Borrow and return rows
+    private GatorLibrary library;
+    private CommandParser parser; // Position in input
+    private CommandParser burstParser; // Position in burst
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        OutputSink out = new OutputSink(Writer.nullWriter(), OutputSink.DEFAULT_BUFFER_SIZE);
+        RedBlackTree rbTree = new RedBlackTree(out);
+        List<RedBlackNode> books = new ArrayList<>(size);
+        for (int i = 1; i <= size; i++)
+            books.add(new RedBlackNode(2 * i, "Title", "Author", true));
+        rbTree.bulkLoad(books);
+        library = new GatorLibrary(rbTree, out);
+
+        Random random = new Random(size);
+        StringBuilder sb = new StringBuilder();
+        int key = 0;
+        for (int i = 0; i < ROWS; i++) {
+            switch (i % 4) {
+                case 0:
+                    sb.append("PrintBook(").append(2 * (1 + random.nextInt(size))).append(")\n");
+                    break;
+                case 1:
+                    key = 2 * (1 + random.nextInt(size));
+                    sb.append("BorrowBook(").append(i).append(", ").append(key).append(", 1)\n");
+                    break;
+                case 2:
+                    sb.append("ReturnBook(").append(i - 1).append(", ").append(key).append(")\n");
+                    break;
+                default:
+                    // The same odd IDs come back on every pass and are then duplicates
+                    sb.append("InsertBook(").append(2 * random.nextInt(size + 1) + 1)
+                            .append(", \"Title\", \"Author\", \"Yes\")\n");
+            }
+        }
+        input = sb.toString().getBytes(StandardCharsets.UTF_8);
+        parser = new CommandParser(new ByteArrayInputStream(input));
+
+        sb.setLength(0);
+        for (int i = 0; i < ROWS; i++) {
+            if (i % 2 == 0) {
+                key = 2 * (1 + random.nextInt(size));
+                sb.append("BorrowBook(").append(i).append(", ").append(key).append(", 1)\n");
+            } else {
+                sb.append("ReturnBook(").append(i - 1).append(", ").append(key).append(")\n");
+            }
+        }
+        burst = sb.toString().getBytes(StandardCharsets.UTF_8);
+        burstParser = new CommandParser(new ByteArrayInputStream(burst));
+    }
+
+    @Benchmark
+    public void parse() throws IOException {
+        if (!parser.next()) {
+            parser = new CommandParser(new ByteArrayInputStream(input));
+            parser.next();
+        }
+        library.parse(parser);
+    }
+
+    @Benchmark
+    public void circulationBurst() throws IOException {
+        if (!burstParser.next()) {
+            burstParser = new CommandParser(new ByteArrayInputStream(burst));
+            burstParser.next();
+        }
+        library.parse(burstParser);
+    }
+}
@@ -0,0 +1,84 @@
+package gatorlibrary;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Write overhead of PersistentRedBlackTree, to compare with insertBookDeleteBook and
+// returnBookBorrowBook of TreeJmhBenchmark: without views every book is copied
+// once and then changed in place, while a view taken before every change makes it
+// copy the whole path to its book.
+//
+// Usage: mvn -P jmh package && java -jar target/benchmarks.jar PersistentJmhBenchmark
+//        [-p size=1000,10000000] (BenchmarkMain adds -prof gc)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class PersistentJmhBenchmark {
+    private static final int KEYS = 1 << 16; // Random keys per sequence, a power of two
+
+    @Param({ "1000", "10000", "100000", "1000000", "10000000" })
+    public int size; // Books in the catalog
+
+    private PersistentRedBlackTree tree;
+    private int[] missing; // Random odd book IDs not in the catalog
+    private int next; // Position in the key sequence
+    private int bookId; // Book borrowed and returned
+    private int nextPatron; // Patron of the next borrow
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tree = new PersistentRedBlackTree(new OutputSink(Writer.nullWriter(), OutputSink.DEFAULT_BUFFER_SIZE));
+        List<RedBlackNode> books = new ArrayList<>(size);
+        for (int i = 1; i <= size; i++)
+            books.add(new RedBlackNode(2 * i, "Title", "Author", true));
+        tree.bulkLoad(books);
+        Random random = new Random(size);
+        missing = new int[KEYS];
+        for (int i = 0; i < KEYS; i++)
+            missing[i] = 2 * random.nextInt(size + 1) + 1;
+        bookId = 2 * (1 + random.nextInt(size));
+        tree.borrowBook(0, bookId, 1);
+        nextPatron = 1;
+    }
+
+    @Benchmark
+    public void insertBookDeleteBook() {
+        int missingId = missing[next++ & (KEYS - 1)];
+        tree.insertBook(missingId, "Title", "Author", "Yes");
+        tree.deleteBook(missingId);
+    }
+
+    @Benchmark
+    public void insertBookDeleteBookWithViews() {
+        int missingId = missing[next++ & (KEYS - 1)];
+        tree.snapshot();
+        tree.insertBook(missingId, "Title", "Author", "Yes");
+        tree.snapshot();
+        tree.deleteBook(missingId);
+    }
+
+    // Return the book and have the next patron borrow it
+    @Benchmark
+    public void returnBookBorrowBook() {
+        tree.returnBook(nextPatron - 1, bookId);
+        tree.borrowBook(nextPatron++, bookId, 1);
+    }
+
+    @Benchmark
+    public void returnBookBorrowBookWithViews() {
+        tree.snapshot();
+        tree.returnBook(nextPatron - 1, bookId);
+        tree.snapshot();
+        tree.borrowBook(nextPatron++, bookId, 1);
+    }
+
+    @Benchmark
+    public CatalogView snapshot() {
+        return tree.snapshot();
+    }
+}
@@ -0,0 +1,228 @@
+package gatorlibrary;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Lookups, range scans, structural changes, circulation and catalog-wide scans of
+// RedBlackTree, over a catalog holding the books with even IDs 2..2*size. Each
+// invocation takes the next of a fixed sequence of random keys.
+//
+// Usage: mvn -P jmh package && java -jar target/benchmarks.jar TreeJmhBenchmark
+//        [-p size=1000,10000000] (BenchmarkMain adds -prof gc)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class TreeJmhBenchmark {
+    private static final int KEYS = 1 << 16; // Random keys per sequence, a power of two
+
+    @Param({ "1000", "10000", "100000", "1000000", "10000000" })
+    public int size; // Books in the catalog
+
+    private RedBlackTree rbTree;
+    private int[] keys; // Random book IDs in the catalog
+    private int[] missing; // Random odd book IDs not in the catalog
+    private int next; // Position in the key sequences
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        rbTree = new RedBlackTree(new OutputSink(Writer.nullWriter(), OutputSink.DEFAULT_BUFFER_SIZE));
+        List<RedBlackNode> books = new ArrayList<>(size);
+        for (int i = 1; i <= size; i++)
+            books.add(new RedBlackNode(2 * i, "Title", "Author", true));
+        rbTree.bulkLoad(books);
+        Random random = new Random(size);
+        keys = new int[KEYS];
+        missing = new int[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = 2 * (1 + random.nextInt(size));
+            missing[i] = 2 * random.nextInt(size + 1) + 1;
+        }
+    }
+
+    // Index of the next key
+    private int nextKey() {
+        return next++ & (KEYS - 1);
+    }
+
+    @Benchmark
+    public RedBlackNode printBook() {
+        return rbTree.printBook(keys[nextKey()]);
+    }
+
+    @Benchmark
+    public void printBookRecord() {
+        rbTree.printBookRecord(keys[nextKey()]);
+    }
+
+    // Number of books a range scan prints, from narrow to wide
+    @State(Scope.Thread)
+    public static class Range {
+        @Param({ "10", "1000", "100000" })
+        public int width;
+    }
+
+    @Benchmark
+    public void printBooks(Range range) {
+        int key = keys[nextKey()];
+        rbTree.printBooks(key, key + 2 * range.width);
+    }
+
+    @Benchmark
+    public void findClosestBook() {
+        rbTree.findClosestBook(missing[nextKey()]);
+    }
+
+    @Benchmark
+    public void countBooks() {
+        int key = keys[nextKey()];
+        rbTree.countBooks(key, key + size);
+    }
+
+    @Benchmark
+    public void printBooksPage() {
+        rbTree.printBooksPage(2, 2 * size, keys[nextKey()] / 2, 10);
+    }
+
+    // Every missing ID is inserted and deleted again, so the catalog stays the same
+    @Benchmark
+    public void insertBookDeleteBook() {
+        int bookId = missing[nextKey()];
+        rbTree.insertBook(bookId, "Title", "Author", "Yes");
+        rbTree.deleteBook(bookId);
+    }
+
+    // Distinct missing IDs for one invocation of insertBook or deleteBook; the
+    // other half of the pair runs outside the measured time, so the catalog size
+    // stays the same, though -prof gc still counts what it allocates
+    @State(Scope.Thread)
+    public static class Batch {
+        static final int BOOKS = 256;
+        final int[] bookIds = new int[BOOKS];
+        boolean[] taken; // Marks the odd IDs of the current batch by half the ID
+
+        // Take the next BOOKS missing IDs, skipping repeats without allocating, as
+        // the profiler counts the allocations of the setup too
+        void next(TreeJmhBenchmark catalog) {
+            if (taken == null)
+                taken = new boolean[catalog.size + 1];
+            for (int i = 0; i < BOOKS; i++) {
+                int bookId;
+                do {
+                    bookId = catalog.missing[catalog.nextKey()];
+                } while (taken[bookId / 2]);
+                taken[bookId / 2] = true;
+                bookIds[i] = bookId;
+            }
+            for (int bookId : bookIds)
+                taken[bookId / 2] = false;
+        }
+    }
+
+    // Batch of books that insertBook adds and that are deleted again afterwards
+    @State(Scope.Thread)
+    public static class Insertions extends Batch {
+        @Setup(Level.Invocation)
+        public void setUp(TreeJmhBenchmark catalog) {
+            next(catalog);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown(TreeJmhBenchmark catalog) {
+            for (int bookId : bookIds)
+                catalog.rbTree.deleteBook(bookId);
+        }
+    }
+
+    // Batch of books inserted beforehand for deleteBook to remove
+    @State(Scope.Thread)
+    public static class Deletions extends Batch {
+        @Setup(Level.Invocation)
+        public void setUp(TreeJmhBenchmark catalog) {
+            next(catalog);
+            for (int bookId : bookIds)
+                catalog.rbTree.insertBook(bookId, "Title", "Author", "Yes");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Batch.BOOKS)
+    public void insertBook(Insertions insertions) {
+        for (int bookId : insertions.bookIds)
+            rbTree.insertBook(bookId, "Title", "Author", "Yes");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Batch.BOOKS)
+    public void deleteBook(Deletions deletions) {
+        for (int bookId : deletions.bookIds)
+            rbTree.deleteBook(bookId);
+    }
+
+    // Catalog-wide scan over the subtree spliterator, in parallel from
+    // -Dgatorlibrary.parallelThreshold books on
+    @Benchmark
+    public void countAvailable() {
+        rbTree.countAvailable(2, 2 * size);
+    }
+
+    // Every 16th book has a waitlist of 1 to 8 patrons
+    @State(Scope.Thread)
+    public static class Waitlists {
+        @Setup(Level.Trial)
+        public void setUp(TreeJmhBenchmark catalog) {
+            for (int bookId = 2; bookId <= 2 * catalog.size; bookId += 32) {
+                catalog.rbTree.borrowBook(0, bookId, 1);
+                for (int patron = 1; patron <= bookId % 8 + 1; patron++)
+                    catalog.rbTree.borrowBook(patron, bookId, patron % 5);
+            }
+        }
+    }
+
+    @Benchmark
+    public void topWaitlists(Waitlists waitlists) {
+        rbTree.topWaitlists(10);
+    }
+
+    // Return the book, which allots it to the next patron, and reserve it again
+    @State(Scope.Thread)
+    public static class Circulation {
+        @Param({ "0", "10", "1000" })
+        public int waitlist; // Patrons waiting for the book
+        int bookId;
+        int nextPatron;
+
+        @Setup(Level.Trial)
+        public void setUp(TreeJmhBenchmark catalog) {
+            bookId = catalog.keys[0];
+            catalog.rbTree.borrowBook(0, bookId, 1);
+            for (int patron = 1; patron <= waitlist; patron++)
+                catalog.rbTree.borrowBook(patron, bookId, patron % 5);
+            nextPatron = waitlist + 1;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown(TreeJmhBenchmark catalog) {
+            RedBlackNode book = catalog.rbTree.printBook(bookId);
+            book.minHeap = null;
+            book.isAvailable = true;
+            book.borrowedBy = -1;
+        }
+    }
+
+    @Benchmark
+    public void returnBookBorrowBook(Circulation circulation) {
+        RedBlackNode book = rbTree.printBook(circulation.bookId);
+        rbTree.returnBook(book.borrowedBy, circulation.bookId);
+        rbTree.borrowBook(circulation.nextPatron++, circulation.bookId, circulation.nextPatron % 5);
+    }
+
+    @Benchmark
+    public void printBookRecordWithWaitlist(Circulation circulation) {
+        rbTree.printBookRecord(circulation.bookId);
+    }
+}
@@ -0,0 +1,1245 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Red-Black Tree kept in primitive arrays instead of one object per book. A book
+// is an index into the arrays; index 0 plays the part of the nil node of
+// RedBlackTree. The key and the three links of a book sit next to each other in
+// one int array, so each step of a lookup reads a single 16-byte block instead of
+// a whole object; colors are bytes and the book data sits in parallel arrays, and
+// no per-book object header is paid. A bulk load numbers the books in the order
+// a descent visits them, so the top of the tree shares few cache lines. The
+// algorithms are those of RedBlackTree step for step, so output and color flip
+// counts are identical. Snapshots share the file format of RedBlackTree, going
+// through linked nodes. Slots of deleted books are reused for later inserts.
+public class ArrayRedBlackTree implements Catalog {
+    private static final int NIL = 0; // Index of the nil sentinel
+    private static final byte BLACK = 0;
+    private static final byte RED = 1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Offsets of the fields of a book in the nodes array
+    private static final int KEY = 0; // Book ID
+    private static final int LEFT = 1; // Links to other books, NIL if none
+    private static final int RIGHT = 2;
+    private static final int PARENT = 3;
+    private static final int NODE_SHIFT = 2; // A book takes 1 << NODE_SHIFT ints
+
+    // Tree structure, by book index
+    private int[] nodes; // Key and links of book i at i << NODE_SHIFT
+    private byte[] color; // BLACK or RED
+    private int[] subtreeSize; // Books in the subtree rooted at the book, 0 for NIL
+
+    // Book data, by book index
+    private String[] title;
+    private String[] author;
+    private boolean[] available;
+    private int[] borrowedBy; // Patron holding the book, -1 if none
+    private MinHeap[] reservations; // Waitlist, null while there are none
+
+    // Books borrowed and reserved by each patron
+    private final PatronIndex patrons = new PatronIndex();
+
+    // Books by title and by author, for prefix searches
+    private final TextIndex titles = new TextIndex();
+    private final TextIndex authors = new TextIndex();
+
+    // Formatted records of recently printed books with a waitlist, null when
+    // caching is off; a book without one formats as fast as its record would copy
+    private final RecordCache records = RecordCache.DEFAULT_CAPACITY > 0
+            ? new RecordCache(RecordCache.DEFAULT_CAPACITY)
+            : null;
+
+    private int root = NIL; // Index of the root
+    private int used = 1; // Indexes below this have been handed out; 0 is NIL
+    private int[] free = new int[INITIAL_CAPACITY]; // Indexes of deleted books, for reuse
+    private int freeCount;
+
+    // Counter for color flip operations
+    public int flipCount;
+
+    // Books recolored during the current operation and their colors before it
+    private int[] recolored = new int[16];
+    private byte[] originalColors = new byte[16];
+    private int recoloredCount;
+
+    // Destination of the results of library operations
+    private final OutputSink out;
+
+    // Constructor initializes an empty tree writing to standard output
+    public ArrayRedBlackTree() {
+        this(new OutputSink(new OutputStreamWriter(System.out), OutputSink.DEFAULT_BUFFER_SIZE));
+    }
+
+    // Constructor initializes an empty tree writing to the given sink
+    public ArrayRedBlackTree(OutputSink out) {
+        this.out = out;
+        allocate(INITIAL_CAPACITY);
+        setKey(NIL, -1);
+        color[NIL] = BLACK;
+    }
+
+    // Resize every per-book array to the given capacity
+    private void allocate(int capacity) {
+        nodes = nodes == null ? new int[capacity << NODE_SHIFT] : Arrays.copyOf(nodes, capacity << NODE_SHIFT);
+        color = color == null ? new byte[capacity] : Arrays.copyOf(color, capacity);
+        subtreeSize = subtreeSize == null ? new int[capacity] : Arrays.copyOf(subtreeSize, capacity);
+        title = title == null ? new String[capacity] : Arrays.copyOf(title, capacity);
+        author = author == null ? new String[capacity] : Arrays.copyOf(author, capacity);
+        available = available == null ? new boolean[capacity] : Arrays.copyOf(available, capacity);
+        borrowedBy = borrowedBy == null ? new int[capacity] : Arrays.copyOf(borrowedBy, capacity);
+        reservations = reservations == null ? new MinHeap[capacity] : Arrays.copyOf(reservations, capacity);
+    }
+
+    // Number of books the arrays have room for
+    private int capacity() {
+        return color.length;
+    }
+
+    private int key(int book) {
+        return nodes[book << NODE_SHIFT | KEY];
+    }
+
+    private int left(int book) {
+        return nodes[book << NODE_SHIFT | LEFT];
+    }
+
+    private int right(int book) {
+        return nodes[book << NODE_SHIFT | RIGHT];
+    }
+
+    private int parent(int book) {
+        return nodes[book << NODE_SHIFT | PARENT];
+    }
+
+    private void setKey(int book, int bookId) {
+        nodes[book << NODE_SHIFT | KEY] = bookId;
+    }
+
+    private void setLeft(int book, int child) {
+        nodes[book << NODE_SHIFT | LEFT] = child;
+    }
+
+    private void setRight(int book, int child) {
+        nodes[book << NODE_SHIFT | RIGHT] = child;
+    }
+
+    private void setParent(int book, int parentBook) {
+        nodes[book << NODE_SHIFT | PARENT] = parentBook;
+    }
+
+    // Take an index for a new, unlinked black book
+    private int newBook(int bookId, String bookName, String authorName, boolean isAvailable) {
+        int book;
+        if (freeCount > 0) {
+            book = free[--freeCount];
+        } else {
+            if (used == capacity())
+                allocate(2 * capacity());
+            book = used++;
+        }
+        setKey(book, bookId);
+        setLeft(book, NIL);
+        setRight(book, NIL);
+        setParent(book, NIL);
+        color[book] = BLACK;
+        subtreeSize[book] = 1;
+        title[book] = bookName;
+        author[book] = authorName;
+        available[book] = isAvailable;
+        borrowedBy[book] = -1;
+        reservations[book] = null;
+        return book;
+    }
+
+    // Give the index of a book that is no longer in the tree back for reuse
+    private void release(int book) {
+        title[book] = null;
+        author[book] = null;
+        reservations[book] = null;
+        if (freeCount == free.length)
+            free = Arrays.copyOf(free, 2 * free.length);
+        free[freeCount++] = book;
+    }
+
+    // Insert a book into the tree and update color information
+    @Override
+    public void insertBook(int bookId, String bookName, String authorName, String isAvailable) {
+        int book = newBook(bookId, bookName, authorName, isAvailable.equals("Yes"));
+        if (insert(book)) {
+            titles.add(bookName, bookId);
+            authors.add(authorName, bookId);
+            forget(bookId);
+        } else {
+            if (color[find(bookId)] != RED) {
+                // Count the duplicate as RedBlackTree does
+                this.flipCount++;
+            }
+            release(book);
+        }
+        countColorFlips();
+    }
+
+    // Load a batch of books by rebuilding the tree bottom-up in linear time, with
+    // the same merge rules and flip counting as RedBlackTree.bulkLoad
+    @Override
+    public void bulkLoad(List<RedBlackNode> books) {
+        RedBlackNode[] batch = books.toArray(new RedBlackNode[0]);
+        for (int i = 1; i < batch.length; i++) {
+            if (batch[i - 1].bookId > batch[i].bookId) {
+                Arrays.sort(batch, Comparator.comparingInt(book -> book.bookId));
+                break;
+            }
+        }
+
+        // Make room for the whole batch at once rather than doubling
+        if (used + batch.length > capacity())
+            allocate(used + batch.length);
+
+        // Merge the books in the tree with the batch, both in ascending order; an
+        // entry is the index of a book in the tree, or -1 - i for batch[i]
+        int existing = size();
+        int[] merged = new int[existing + batch.length];
+        byte[] previousColors = new byte[merged.length];
+        boolean wasEmpty = root == NIL;
+        int current = wasEmpty ? NIL : treeMinimum(root);
+        int count = 0, next = 0;
+        while (current != NIL || next < batch.length) {
+            int entry, bookId;
+            if (next == batch.length || (current != NIL && key(current) <= batch[next].bookId)) {
+                entry = current;
+                bookId = key(current);
+                previousColors[count] = color[current];
+                current = successor(current);
+            } else {
+                entry = -1 - next;
+                bookId = batch[next++].bookId;
+                previousColors[count] = wasEmpty && count == 0 ? BLACK : RED;
+            }
+            if (count > 0 && keyOf(merged[count - 1], batch) == bookId)
+                continue;
+            if (entry < 0) {
+                titles.add(batch[-1 - entry].bookName, bookId);
+                authors.add(batch[-1 - entry].authorName, bookId);
+                forget(bookId);
+            }
+            merged[count++] = entry;
+        }
+
+        // Nodes on the last level are red unless it is complete, all others black
+        int height = 31 - Integer.numberOfLeadingZeros(count + 1);
+        int redDepth = (1 << height) - 1 == count ? -1 : height;
+        root = build(merged, batch, 0, count - 1, NIL, 0, redDepth);
+        for (int i = 0; i < count; i++) {
+            if (color[merged[i]] != previousColors[i])
+                this.flipCount++;
+        }
+    }
+
+    // Book ID of a merge entry
+    private int keyOf(int entry, RedBlackNode[] batch) {
+        return entry < 0 ? batch[-1 - entry].bookId : key(entry);
+    }
+
+    // Link the sorted entries [lo, hi] into a balanced subtree below the given
+    // parent. New books get their index here, in the order of a descent, so that
+    // a parent and its left child are neighbours in the arrays.
+    private int build(int[] entries, RedBlackNode[] batch, int lo, int hi, int parentBook, int depth,
+            int redDepth) {
+        if (lo > hi)
+            return NIL;
+        int mid = (lo + hi) >>> 1;
+        int book = entries[mid];
+        if (book < 0) {
+            RedBlackNode added = batch[-1 - book];
+            book = newBook(added.bookId, added.bookName, added.authorName, added.isAvailable);
+            entries[mid] = book;
+        }
+        setParent(book, parentBook);
+        color[book] = depth == redDepth ? RED : BLACK;
+        subtreeSize[book] = hi - lo + 1;
+        setLeft(book, build(entries, batch, lo, mid - 1, book, depth + 1, redDepth));
+        setRight(book, build(entries, batch, mid + 1, hi, book, depth + 1, redDepth));
+        return book;
+    }
+
+    // Count the books in the tree
+    private int size() {
+        return subtreeSize[root];
+    }
+
+    // Change the color of a book, remembering its color before the current operation
+    private void setColor(int book, byte newColor) {
+        if (book != NIL && color[book] != newColor && !isRecolored(book)) {
+            if (recoloredCount == recolored.length) {
+                recolored = Arrays.copyOf(recolored, 2 * recolored.length);
+                originalColors = Arrays.copyOf(originalColors, recolored.length);
+            }
+            recolored[recoloredCount] = book;
+            originalColors[recoloredCount++] = color[book];
+        }
+        color[book] = newColor;
+    }
+
+    // Check whether a book was already recolored during the current operation
+    private boolean isRecolored(int book) {
+        for (int i = 0; i < recoloredCount; i++) {
+            if (recolored[i] == book)
+                return true;
+        }
+        return false;
+    }
+
+    // Count the books whose color differs from the one they had before the current
+    // operation; a book recolored and restored within the same fix-up is not a flip
+    private void countColorFlips() {
+        for (int i = 0; i < recoloredCount; i++) {
+            if (color[recolored[i]] != originalColors[i]) {
+                this.flipCount++;
+            }
+        }
+        recoloredCount = 0;
+    }
+
+    // Get and append the color flip count to the output
+    @Override
+    public void getColorFlipCount() {
+        out.append("Color Flip Count : ").append(this.flipCount).append('\n');
+    }
+
+    // Insert a book into the tree and fix any violations; returns false if a book
+    // with the same ID already exists
+    private boolean insert(int book) {
+        int temp = root;
+        if (root == NIL) {
+            root = book;
+            color[book] = BLACK;
+            setParent(book, NIL);
+        } else {
+            color[book] = RED;
+            while (true) {
+                if (key(book) < key(temp)) {
+                    if (left(temp) == NIL) {
+                        setLeft(temp, book);
+                        setParent(book, temp);
+                        break;
+                    } else {
+                        temp = left(temp);
+                    }
+                } else if (key(book) == key(temp)) {
+                    return false;
+                } else {
+                    if (right(temp) == NIL) {
+                        setRight(temp, book);
+                        setParent(book, temp);
+                        break;
+                    } else {
+                        temp = right(temp);
+                    }
+                }
+            }
+            // Count the new book in the subtree of every ancestor
+            for (int ancestor = parent(book); ancestor != NIL; ancestor = parent(ancestor))
+                subtreeSize[ancestor]++;
+            fixInsertViolation(book);
+        }
+        return true;
+    }
+
+    // Fix violations after inserting a book
+    private void fixInsertViolation(int book) {
+        while (color[parent(book)] == RED) {
+            if (LibraryMetrics.ENABLED)
+                LibraryMetrics.INSTANCE.insertFixupIteration();
+            int grandparent = parent(parent(book));
+            if (parent(book) == left(grandparent)) {
+                int uncle = right(grandparent);
+                if (uncle != NIL && color[uncle] == RED) {
+                    setColor(parent(book), BLACK);
+                    if (color[grandparent] != RED && grandparent != root) {
+                        setColor(grandparent, RED);
+                    }
+                    setColor(uncle, BLACK);
+                    book = grandparent;
+                    continue;
+                }
+                if (book == right(parent(book))) {
+                    book = parent(book);
+                    rotateLeft(book);
+                }
+                setColor(parent(book), BLACK);
+                setColor(parent(parent(book)), RED);
+                rotateRight(parent(parent(book)));
+            } else {
+                int uncle = left(grandparent);
+                if (uncle != NIL && color[uncle] == RED) {
+                    setColor(parent(book), BLACK);
+                    setColor(grandparent, RED);
+                    setColor(uncle, BLACK);
+                    book = grandparent;
+                    continue;
+                }
+                if (book == left(parent(book))) {
+                    book = parent(book);
+                    rotateRight(book);
+                }
+                setColor(parent(book), BLACK);
+                setColor(parent(parent(book)), RED);
+                rotateLeft(parent(parent(book)));
+            }
+        }
+        setColor(root, BLACK);
+    }
+
+    // Perform a left rotation around a book
+    private void rotateLeft(int book) {
+        if (LibraryMetrics.ENABLED)
+            LibraryMetrics.INSTANCE.rotated();
+        if (parent(book) != NIL) {
+            if (book == left(parent(book))) {
+                setLeft(parent(book), right(book));
+            } else {
+                setRight(parent(book), right(book));
+            }
+            setParent(right(book), parent(book));
+            setParent(book, right(book));
+            if (left(right(book)) != NIL) {
+                setParent(left(right(book)), book);
+            }
+            setRight(book, left(right(book)));
+            setLeft(parent(book), book);
+        } else {
+            int child = right(root);
+            setRight(root, left(child));
+            setParent(left(child), root);
+            setParent(root, child);
+            setLeft(child, root);
+            setParent(child, NIL);
+            root = child;
+        }
+        resizeRotated(book);
+    }
+
+    // Perform a right rotation around a book
+    private void rotateRight(int book) {
+        if (LibraryMetrics.ENABLED)
+            LibraryMetrics.INSTANCE.rotated();
+        if (parent(book) != NIL) {
+            if (book == left(parent(book))) {
+                setLeft(parent(book), left(book));
+            } else {
+                setRight(parent(book), left(book));
+            }
+            setParent(left(book), parent(book));
+            setParent(book, left(book));
+            if (right(left(book)) != NIL) {
+                setParent(right(left(book)), book);
+            }
+            setLeft(book, right(left(book)));
+            setRight(parent(book), book);
+        } else {
+            int child = left(root);
+            setLeft(root, right(child));
+            setParent(right(child), root);
+            setParent(root, child);
+            setRight(child, root);
+            setParent(child, NIL);
+            root = child;
+        }
+        resizeRotated(book);
+    }
+
+    // Fix the subtree sizes after a rotation moved a book below its former child,
+    // which now roots the subtree the book used to root
+    private void resizeRotated(int book) {
+        subtreeSize[parent(book)] = subtreeSize[book];
+        subtreeSize[book] = subtreeSize[left(book)] + subtreeSize[right(book)] + 1;
+    }
+
+    // Find the index of a book, or NIL if it is not in the tree
+    int find(int bookId) {
+        int temp = root;
+        if (key(root) == -1)
+            return NIL;
+        int pathLength = 1; // Books visited, for the search path metric
+        while (bookId != key(temp)) {
+            int child = bookId < key(temp) ? left(temp) : right(temp);
+            if (child == NIL) {
+                temp = NIL;
+                break;
+            }
+            temp = child;
+            pathLength++;
+        }
+        if (LibraryMetrics.ENABLED)
+            LibraryMetrics.INSTANCE.searched(pathLength);
+        return temp;
+    }
+
+    // Book ID stored at an index
+    int bookId(int book) {
+        return key(book);
+    }
+
+    // Print a book, or that it is not found in the library
+    @Override
+    public void printBookRecord(int bookId) {
+        int book = find(bookId);
+        if (book == NIL) {
+            out.append("Book ").append(bookId).append(" not found in the library\n");
+        } else {
+            appendBook(book).append('\n');
+        }
+    }
+
+    // Append the formatted record of a book to the output, copying it from the
+    // record cache when the book is cached and clean
+    private OutputSink appendBook(int book) {
+        if (records == null || reservations[book] == null || reservations[book].isEmpty())
+            return out.appendBook(key(book), title[book], author[book], available[book], borrowedBy[book],
+                    reservations[book]);
+        String record = records.get(key(book));
+        if (record != null)
+            return out.append(record);
+        long removals = records.removals();
+        StringBuilder formatted = new StringBuilder(128);
+        RedBlackNode.appendTo(formatted, key(book), title[book], author[book], available[book], borrowedBy[book],
+                reservations[book]);
+        records.put(key(book), formatted, removals);
+        return out.append(formatted);
+    }
+
+    // Mark the cached record of a book dirty after a change to its fields or
+    // waitlist
+    private void invalidate(int bookId) {
+        if (records != null)
+            records.invalidate(bookId);
+    }
+
+    // Drop the cached record of a book that was added or deleted
+    private void forget(int bookId) {
+        if (records != null)
+            records.remove(bookId);
+    }
+
+    // Delete a book from the tree and update color information
+    @Override
+    public void deleteBook(int bookId) {
+        int book = find(bookId);
+        if (book == NIL) {
+            out.append("Book ").append(bookId).append(" is no longer available.\n");
+            return;
+        }
+        delete(book);
+        countColorFlips();
+        titles.remove(title[book], bookId);
+        authors.remove(author[book], bookId);
+        forget(bookId);
+        if (!available[book] && borrowedBy[book] != -1)
+            patrons.returned(borrowedBy[book], bookId);
+        MinHeap waitlist = reservations[book];
+        if (waitlist == null || waitlist.isEmpty()) {
+            out.append("Book ").append(bookId).append(" is no longer available.\n");
+        } else {
+            for (int i = 0; i < waitlist.size(); i++)
+                patrons.unreserved(waitlist.heap[i].getPatronId(), bookId);
+            if (LibraryMetrics.ENABLED)
+                LibraryMetrics.INSTANCE.waitlistResized(waitlist.size(), 0);
+            out.append("Book ").append(bookId).append(" is no longer available. Reservations made by Patrons ")
+                    .append(waitlist).append(" have been cancelled!\n");
+        }
+        release(book);
+    }
+
+    // Unlink a book from the tree
+    private void delete(int z) {
+        // The book unlinked from its place is z, or its predecessor when z has two
+        // children; every book above that place loses one book from its subtree
+        int unlinked = left(z) == NIL || right(z) == NIL ? z : treeMaximum(left(z));
+        for (int ancestor = parent(unlinked); ancestor != NIL; ancestor = parent(ancestor))
+            subtreeSize[ancestor]--;
+
+        int y = z;
+        byte yOriginalColor = color[y];
+        int x;
+        if (left(z) == NIL) {
+            x = right(z);
+            transplant(z, right(z));
+        } else if (right(z) == NIL) {
+            x = left(z);
+            transplant(z, left(z));
+        } else {
+            y = treeMaximum(left(z));
+            yOriginalColor = color[y];
+            x = left(y);
+            if (parent(y) == z)
+                setParent(x, y);
+            else {
+                transplant(y, left(y));
+                setLeft(y, left(z));
+                setParent(left(y), y);
+            }
+            transplant(z, y);
+            setRight(y, right(z));
+            setParent(right(y), y);
+            subtreeSize[y] = subtreeSize[z];
+            setColor(y, color[z]);
+        }
+        if (yOriginalColor == BLACK) {
+            fixDeleteViolation(x);
+        }
+    }
+
+    // Put book y in the place of book x
+    private void transplant(int x, int y) {
+        if (parent(x) == NIL) {
+            root = y;
+        } else if (x == left(parent(x))) {
+            setLeft(parent(x), y);
+        } else
+            setRight(parent(x), y);
+        setParent(y, parent(x));
+    }
+
+    // Find the book with the largest ID in a subtree
+    private int treeMaximum(int z) {
+        while (right(z) != NIL) {
+            z = right(z);
+        }
+        return z;
+    }
+
+    // Find the book with the smallest ID in a subtree
+    private int treeMinimum(int z) {
+        while (left(z) != NIL) {
+            z = left(z);
+        }
+        return z;
+    }
+
+    // Fix violations after deleting a book
+    private void fixDeleteViolation(int x) {
+        while (x != root && color[x] == BLACK) {
+            if (LibraryMetrics.ENABLED)
+                LibraryMetrics.INSTANCE.deleteFixupIteration();
+            if (x == left(parent(x))) {
+                int w = right(parent(x));
+                if (color[w] == RED) {
+                    setColor(w, BLACK);
+                    setColor(parent(x), RED);
+                    rotateLeft(parent(x));
+                    w = right(parent(x));
+                }
+                if (color[left(w)] == BLACK && color[right(w)] == BLACK) {
+                    setColor(w, RED);
+                    x = parent(x);
+                    continue;
+                } else if (color[right(w)] == BLACK) {
+                    setColor(left(w), BLACK);
+                    setColor(w, RED);
+                    rotateRight(w);
+                    w = right(parent(x));
+                }
+                if (color[right(w)] == RED) {
+                    setColor(w, color[parent(x)]);
+                    setColor(parent(x), BLACK);
+                    setColor(right(w), BLACK);
+                    rotateLeft(parent(x));
+                    x = root;
+                }
+            } else {
+                int w = left(parent(x));
+                if (color[w] == RED) {
+                    setColor(w, BLACK);
+                    setColor(parent(x), RED);
+                    rotateRight(parent(x));
+                    w = left(parent(x));
+                }
+                if (color[right(w)] == BLACK && color[left(w)] == BLACK) {
+                    setColor(w, RED);
+                    x = parent(x);
+                    continue;
+                } else if (color[left(w)] == BLACK) {
+                    setColor(right(w), BLACK);
+                    setColor(w, RED);
+                    rotateLeft(w);
+                    w = left(parent(x));
+                }
+                if (color[left(w)] == RED) {
+                    setColor(w, color[parent(x)]);
+                    setColor(parent(x), BLACK);
+                    setColor(left(w), BLACK);
+                    rotateRight(parent(x));
+                    x = root;
+                }
+            }
+        }
+        setColor(x, BLACK);
+    }
+
+    // Print information about books within a specified range of book IDs
+    @Override
+    public void printBooks(int bookId1, int bookId2) {
+        if (bookId1 > bookId2)
+            return;
+        for (int book = ceiling(bookId1); book != NIL && key(book) <= bookId2; book = successor(book))
+            appendBook(book).append('\n');
+    }
+
+    // Print the number of books with IDs in [bookId1, bookId2]
+    @Override
+    public void countBooks(int bookId1, int bookId2) {
+        int count = bookId1 > bookId2 ? 0 : countBelow(bookId2, true) - countBelow(bookId1, false);
+        out.append("Book Count : ").append(count).append('\n');
+    }
+
+    // Number of books with IDs below the given ID, or up to it if inclusive
+    private int countBelow(int bookId, boolean inclusive) {
+        int count = 0;
+        int book = root;
+        while (book != NIL) {
+            if (bookId < key(book) || (bookId == key(book) && !inclusive)) {
+                book = left(book);
+            } else {
+                count += subtreeSize[left(book)] + 1;
+                book = right(book);
+            }
+        }
+        return count;
+    }
+
+    // Print the 1-based position of a book in ascending order of ID
+    @Override
+    public void rankOf(int bookId) {
+        if (find(bookId) == NIL)
+            out.append("Book ").append(bookId).append(" not found in the library\n");
+        else
+            out.append("Rank of Book ").append(bookId).append(" : ").append(countBelow(bookId, true)).append('\n');
+    }
+
+    // Print the book at a 1-based position in ascending order of ID
+    @Override
+    public void nthBook(int rank) {
+        int book = select(rank);
+        if (book == NIL)
+            out.append("No book with rank ").append(rank).append(" in the library\n");
+        else
+            appendBook(book).append('\n');
+    }
+
+    // Book at a 1-based position in ascending order of ID, or NIL if there is none
+    private int select(int rank) {
+        if (rank < 1 || rank > subtreeSize[root])
+            return NIL;
+        int book = root;
+        while (rank != subtreeSize[left(book)] + 1) {
+            if (rank <= subtreeSize[left(book)]) {
+                book = left(book);
+            } else {
+                rank -= subtreeSize[left(book)] + 1;
+                book = right(book);
+            }
+        }
+        return book;
+    }
+
+    // Print one page of the books with IDs in [bookId1, bookId2], starting from
+    // the book found by rank
+    @Override
+    public void printBooksPage(int bookId1, int bookId2, int offset, int limit) {
+        if (bookId1 > bookId2 || offset < 0 || limit <= 0)
+            return;
+        long first = (long) countBelow(bookId1, false) + offset + 1;
+        int book = first > subtreeSize[root] ? NIL : select((int) first);
+        for (int printed = 0; printed < limit && book != NIL && key(book) <= bookId2; printed++) {
+            appendBook(book).append('\n');
+            book = successor(book);
+        }
+    }
+
+    // Print the number of available books with IDs in [bookId1, bookId2]; the
+    // arrays are scanned in order by a single thread
+    @Override
+    public void countAvailable(int bookId1, int bookId2) {
+        int count = 0;
+        if (bookId1 <= bookId2) {
+            for (int book = ceiling(bookId1); book != NIL && key(book) <= bookId2; book = successor(book))
+                if (available[book])
+                    count++;
+        }
+        out.append("Available Book Count : ").append(count).append('\n');
+    }
+
+    // Print the n books with the longest waitlists, longest first and then in
+    // ascending order of ID
+    @Override
+    public void topWaitlists(int n) {
+        WaitlistRanking ranking = new WaitlistRanking(n);
+        if (n > 0) {
+            for (int book = ceiling(Integer.MIN_VALUE); book != NIL; book = successor(book))
+                if (reservations[book] != null && !reservations[book].isEmpty())
+                    ranking.offer(key(book), reservations[book].size());
+        }
+        ranking.appendTo(out);
+    }
+
+    // Print the books whose title starts with a prefix, in ascending order of ID
+    @Override
+    public void findByTitle(String prefix) {
+        printMatches(titles.find(prefix), "title", prefix);
+    }
+
+    // Print the books whose author starts with a prefix, in ascending order of ID
+    @Override
+    public void findByAuthor(String prefix) {
+        printMatches(authors.find(prefix), "author", prefix);
+    }
+
+    // Print the books found by a prefix search, or that there are none
+    private void printMatches(int[] bookIds, String field, String prefix) {
+        if (bookIds.length == 0)
+            out.appendNoMatches(field, prefix);
+        for (int bookId : bookIds)
+            appendBook(find(bookId)).append('\n');
+    }
+
+    // Find and print the closest book to a target book ID; on a tie both books
+    // are printed in ascending order of book ID
+    @Override
+    public void findClosestBook(int targetId) {
+        int lower = floor(targetId), upper = ceiling(targetId);
+        if (lower == upper) {
+            if (lower != NIL)
+                appendBook(lower).append('\n');
+            return;
+        }
+        long lowerDiff = lower == NIL ? Long.MAX_VALUE : (long) targetId - key(lower);
+        long upperDiff = upper == NIL ? Long.MAX_VALUE : (long) key(upper) - targetId;
+        if (lowerDiff <= upperDiff)
+            appendBook(lower).append('\n');
+        if (upperDiff <= lowerDiff)
+            appendBook(upper).append('\n');
+    }
+
+    // Find and print the k books closest to a target book ID in ascending order of
+    // book ID, preferring the smaller book ID when two books are equally close
+    @Override
+    public void findClosestK(int targetId, int k) {
+        int lower = floor(targetId), upper = ceiling(targetId);
+        int[] lowerBooks = new int[16]; // Closest first
+        int[] upperBooks = new int[16]; // Closest first
+        int lowerCount = 0, upperCount = 0;
+        if (lower != NIL && lower == upper && k > 0) {
+            upperBooks[upperCount++] = upper;
+            lower = predecessor(lower);
+            upper = successor(upper);
+        }
+        while (lowerCount + upperCount < k && (lower != NIL || upper != NIL)) {
+            long lowerDiff = lower == NIL ? Long.MAX_VALUE : (long) targetId - key(lower);
+            long upperDiff = upper == NIL ? Long.MAX_VALUE : (long) key(upper) - targetId;
+            if (lowerDiff <= upperDiff) {
+                if (lowerCount == lowerBooks.length)
+                    lowerBooks = Arrays.copyOf(lowerBooks, 2 * lowerCount);
+                lowerBooks[lowerCount++] = lower;
+                lower = predecessor(lower);
+            } else {
+                if (upperCount == upperBooks.length)
+                    upperBooks = Arrays.copyOf(upperBooks, 2 * upperCount);
+                upperBooks[upperCount++] = upper;
+                upper = successor(upper);
+            }
+        }
+        for (int i = lowerCount - 1; i >= 0; i--)
+            appendBook(lowerBooks[i]).append('\n');
+        for (int i = 0; i < upperCount; i++)
+            appendBook(upperBooks[i]).append('\n');
+    }
+
+    // Largest book not above the target ID, or NIL
+    private int floor(int targetId) {
+        int lower = NIL;
+        for (int temp = root; temp != NIL;) {
+            if (targetId < key(temp)) {
+                temp = left(temp);
+            } else {
+                lower = temp;
+                if (targetId == key(temp))
+                    break;
+                temp = right(temp);
+            }
+        }
+        return lower;
+    }
+
+    // Smallest book not below the target ID, or NIL
+    int ceiling(int targetId) {
+        int upper = NIL;
+        for (int temp = root; temp != NIL;) {
+            if (targetId > key(temp)) {
+                temp = right(temp);
+            } else {
+                upper = temp;
+                if (targetId == key(temp))
+                    break;
+                temp = left(temp);
+            }
+        }
+        return upper;
+    }
+
+    // Find the book with the next smaller ID, or NIL if there is none
+    private int predecessor(int book) {
+        if (left(book) != NIL)
+            return treeMaximum(left(book));
+        int up = parent(book);
+        while (up != NIL && book == left(up)) {
+            book = up;
+            up = parent(up);
+        }
+        return up;
+    }
+
+    // Find the book with the next larger ID, or NIL if there is none
+    int successor(int book) {
+        if (right(book) != NIL)
+            return treeMinimum(right(book));
+        int up = parent(book);
+        while (up != NIL && book == right(up)) {
+            book = up;
+            up = parent(up);
+        }
+        return up;
+    }
+
+    // Borrow a book from the library or reserve it for a patron
+    @Override
+    public void borrowBook(int patronId, int bookId, int patronPriority) {
+        int book = find(bookId);
+        if (book != NIL)
+            borrowAt(book, patronId, patronPriority);
+    }
+
+    // Borrow or reserve the book at the given index
+    private void borrowAt(int book, int patronId, int patronPriority) {
+        int bookId = key(book);
+        if (available[book]) {
+            borrowedBy[book] = patronId;
+            available[book] = false;
+            invalidate(bookId);
+            patrons.borrowed(patronId, bookId);
+            out.append("Book ").append(bookId).append(" Borrowed by Patron ").append(patronId).append('\n');
+        } else {
+            // Create the reservation heap lazily, most books never get a reservation
+            if (reservations[book] == null)
+                reservations[book] = new MinHeap();
+            MinHeap waitlist = reservations[book];
+            if (waitlist.contains(patronId)) {
+                out.append("Book ").append(bookId).append(" already reserved by Patron ").append(patronId)
+                        .append('\n');
+            } else if (waitlist.insertNode(new ReservationNode(patronId, patronPriority, System.nanoTime()))) {
+                if (LibraryMetrics.ENABLED)
+                    LibraryMetrics.INSTANCE.waitlistResized(waitlist.size() - 1, waitlist.size());
+                invalidate(bookId);
+                patrons.reserved(patronId, bookId);
+                out.append("Book ").append(bookId).append(" Reserved by Patron ").append(patronId).append('\n');
+            } else {
+                out.append("Book ").append(bookId).append(" Reservation list is full, Patron ").append(patronId)
+                        .append(" could not reserve it\n");
+            }
+        }
+    }
+
+    // Return a borrowed book to the library and handle reservations
+    @Override
+    public void returnBook(int patronId, int bookId) {
+        int book = find(bookId);
+        if (book != NIL)
+            returnAt(book, patronId);
+    }
+
+    // Return the book at the given index and allot it to the next patron
+    private void returnAt(int book, int patronId) {
+        int bookId = key(book);
+        if (borrowedBy[book] != patronId)
+            return;
+        if (available[book])
+            return;
+        borrowedBy[book] = -1;
+        available[book] = true;
+        invalidate(bookId);
+        patrons.returned(patronId, bookId);
+        out.append("Book ").append(bookId).append(" Returned by Patron ").append(patronId).append('\n');
+        MinHeap waitlist = reservations[book];
+        if (waitlist != null && !waitlist.isEmpty()) {
+            ReservationNode latestReservation = waitlist.poll();
+            if (LibraryMetrics.ENABLED)
+                LibraryMetrics.INSTANCE.waitlistResized(waitlist.size() + 1, waitlist.size());
+            // Release the reservation heap once the waitlist drains
+            if (waitlist.isEmpty())
+                reservations[book] = null;
+            patrons.unreserved(latestReservation.getPatronId(), bookId);
+            if (latestReservation.getPatronId() == -1)
+                return;
+            borrowedBy[book] = latestReservation.getPatronId();
+            available[book] = false;
+            patrons.borrowed(borrowedBy[book], bookId);
+            out.append("Book ").append(bookId).append(" Allotted to Patron ").append(latestReservation.getPatronId())
+                    .append('\n');
+        }
+    }
+
+    // Run a batch of borrows and returns in order, looking up all of their books
+    // in one walk as RedBlackTree.circulate does
+    @Override
+    public void circulate(CirculationBatch batch) {
+        int[] bookIds = batch.sortedBookIds();
+        int[] books = findAll(bookIds);
+        for (int i = 0; i < batch.size(); i++) {
+            int book = books[Arrays.binarySearch(bookIds, batch.bookId(i))];
+            if (book == NIL)
+                continue;
+            if (batch.isReturn(i))
+                returnAt(book, batch.patronId(i));
+            else
+                borrowAt(book, batch.patronId(i), batch.priority(i));
+        }
+    }
+
+    // Find the indices of the books with the given IDs, descending in lockstep;
+    // NIL where an ID is not in the tree
+    private int[] findAll(int[] bookIds) {
+        int[] books = new int[bookIds.length];
+        Arrays.fill(books, root);
+        int[] pending = new int[bookIds.length];
+        for (int i = 0; i < pending.length; i++)
+            pending[i] = i;
+        for (int active = pending.length; active > 0;) {
+            int next = 0;
+            for (int k = 0; k < active; k++) {
+                int i = pending[k];
+                int book = books[i];
+                if (book != NIL && bookIds[i] != key(book)) {
+                    books[i] = bookIds[i] < key(book) ? left(book) : right(book);
+                    pending[next++] = i;
+                }
+            }
+            active = next;
+        }
+        return books;
+    }
+
+    // Print the books a patron has borrowed and reserved
+    @Override
+    public void printPatron(int patronId) {
+        out.appendPatron(patronId, patrons.borrowedBooks(patronId), patrons.reservedBooks(patronId));
+    }
+
+    // Cancel every reservation of a patron, visiting only the books the patron
+    // reserved
+    @Override
+    public void cancelAllReservations(int patronId) {
+        int[] reserved = patrons.reservedBooks(patronId);
+        for (int bookId : reserved)
+            cancel(find(bookId), patronId);
+        out.appendCancelled(patronId, reserved);
+    }
+
+    // Cancel the reservation of a patron on one book
+    @Override
+    public void cancelReservation(int patronId, int bookId) {
+        int book = find(bookId);
+        if (book == NIL) {
+            out.append("Book ").append(bookId).append(" not found in the library\n");
+        } else if (cancel(book, patronId)) {
+            out.append("Reservation made by Patron ").append(patronId).append(" on Book ").append(bookId)
+                    .append(" has been cancelled!\n");
+        } else {
+            out.append("Patron ").append(patronId).append(" has no reservation on Book ").append(bookId)
+                    .append('\n');
+        }
+    }
+
+    // Remove the reservation of a patron from a book's waitlist; returns whether
+    // there was one
+    private boolean cancel(int book, int patronId) {
+        MinHeap waitlist = reservations[book];
+        if (waitlist == null || !waitlist.remove(patronId))
+            return false;
+        if (LibraryMetrics.ENABLED)
+            LibraryMetrics.INSTANCE.waitlistResized(waitlist.size() + 1, waitlist.size());
+        if (waitlist.isEmpty())
+            reservations[book] = null;
+        invalidate(key(book));
+        patrons.unreserved(patronId, key(book));
+        return true;
+    }
+
+    // Give the reservation of a patron on a book a new priority
+    @Override
+    public void updatePriority(int patronId, int bookId, int newPriority) {
+        int book = find(bookId);
+        if (book == NIL) {
+            out.append("Book ").append(bookId).append(" not found in the library\n");
+        } else if (reservations[book] != null && reservations[book].updatePriority(patronId, newPriority)) {
+            invalidate(bookId);
+            out.append("Reservation made by Patron ").append(patronId).append(" on Book ").append(bookId)
+                    .append(" now has priority ").append(newPriority).append('\n');
+        } else {
+            out.append("Patron ").append(patronId).append(" has no reservation on Book ").append(bookId)
+                    .append('\n');
+        }
+    }
+
+    // Write the catalog to a snapshot file in the format RedBlackTree writes, so
+    // either storage restores it; returns whether it was saved. The books are
+    // copied into linked nodes for LibrarySnapshot first.
+    @Override
+    public boolean snapshot(String fileName) {
+        try {
+            RedBlackNode nil = EmptyRBNode.create();
+            int books = new LibrarySnapshot(nil).write(toNodes(root, nil), flipCount, 0, Paths.get(fileName));
+            out.append("Snapshot of ").append(books).append(" books saved to ").append(fileName).append('\n');
+            return true;
+        } catch (IOException | InvalidPathException e) {
+            out.append("Snapshot to ").append(fileName).append(" failed: ").append(LibrarySnapshot.describe(e))
+                    .append('\n');
+            return false;
+        }
+    }
+
+    // Replace the catalog with the one in a snapshot file; returns whether it was
+    // restored
+    @Override
+    public boolean restore(String fileName) {
+        try {
+            RedBlackNode nil = EmptyRBNode.create();
+            int books = new LibrarySnapshot(nil).restore(
+                    (newRoot, newFlipCount) -> replaceBooks(newRoot, nil, newFlipCount), Paths.get(fileName));
+            out.append("Restored ").append(books).append(" books from ").append(fileName).append('\n');
+            return true;
+        } catch (IOException | InvalidPathException e) {
+            out.append("Restore from ").append(fileName).append(" failed: ").append(LibrarySnapshot.describe(e))
+                    .append('\n');
+            return false;
+        }
+    }
+
+    // Copy the books below a book into linked nodes; the nodes share the waitlists
+    private RedBlackNode toNodes(int book, RedBlackNode nil) {
+        if (book == NIL)
+            return nil;
+        RedBlackNode node = new RedBlackNode(key(book), title[book], author[book], available[book]);
+        node.color = color[book] == RED ? NodeColor.RED : NodeColor.BLACK;
+        node.borrowedBy = borrowedBy[book];
+        node.minHeap = reservations[book];
+        node.left = toNodes(left(book), nil);
+        node.right = toNodes(right(book), nil);
+        return node;
+    }
+
+    // Replace all books with the linked tree below the given root and carry on
+    // counting color flips from the given count; throws IllegalStateException and
+    // leaves the tree unchanged if the new tree is not a valid red-black tree
+    private void replaceBooks(RedBlackNode newRoot, RedBlackNode nil, int newFlipCount) {
+        if (newRoot != nil && newRoot.color != NodeColor.BLACK)
+            throw new IllegalStateException("Root " + newRoot.bookId + " is not black");
+        checkNodes(newRoot, nil, Long.MIN_VALUE, Long.MAX_VALUE);
+        if (LibraryMetrics.ENABLED)
+            recordWaitlists(false); // The old books and their waitlists go away
+        Arrays.fill(title, null);
+        Arrays.fill(author, null);
+        Arrays.fill(reservations, null);
+        used = 1;
+        freeCount = 0;
+        root = fromNodes(newRoot, nil, NIL);
+        flipCount = newFlipCount;
+        patrons.clear();
+        titles.clear();
+        authors.clear();
+        for (int book = root == NIL ? NIL : treeMinimum(root); book != NIL; book = successor(book)) {
+            titles.add(title[book], key(book));
+            authors.add(author[book], key(book));
+            if (!available[book] && borrowedBy[book] != -1)
+                patrons.borrowed(borrowedBy[book], key(book));
+            for (int i = 0; reservations[book] != null && i < reservations[book].size(); i++)
+                patrons.reserved(reservations[book].heap[i].getPatronId(), key(book));
+        }
+        if (records != null)
+            records.clear();
+        if (LibraryMetrics.ENABLED)
+            recordWaitlists(true);
+    }
+
+    // Check a linked subtree whose keys lie strictly between lower and upper;
+    // returns its black height
+    private static int checkNodes(RedBlackNode node, RedBlackNode nil, long lower, long upper) {
+        if (node == nil)
+            return 1;
+        if (node.bookId <= lower || node.bookId >= upper)
+            throw new IllegalStateException("Book " + node.bookId + " is out of order");
+        if (node.color == NodeColor.RED && (node.left.color == NodeColor.RED || node.right.color == NodeColor.RED))
+            throw new IllegalStateException("Red book " + node.bookId + " has a red child");
+        int leftHeight = checkNodes(node.left, nil, lower, node.bookId);
+        int rightHeight = checkNodes(node.right, nil, node.bookId, upper);
+        if (leftHeight != rightHeight)
+            throw new IllegalStateException("Book " + node.bookId + " has unequal black heights");
+        return leftHeight + (node.color == NodeColor.BLACK ? 1 : 0);
+    }
+
+    // Give the linked books below a node their indexes, in the order of a descent
+    // as a bulk load numbers them; returns the index of the node
+    private int fromNodes(RedBlackNode node, RedBlackNode nil, int parentBook) {
+        if (node == nil)
+            return NIL;
+        int book = newBook(node.bookId, node.bookName, node.authorName, node.isAvailable);
+        setParent(book, parentBook);
+        color[book] = node.color == NodeColor.RED ? RED : BLACK;
+        borrowedBy[book] = node.borrowedBy;
+        reservations[book] = node.minHeap;
+        int leftBook = fromNodes(node.left, nil, book);
+        int rightBook = fromNodes(node.right, nil, book);
+        setLeft(book, leftBook);
+        setRight(book, rightBook);
+        subtreeSize[book] = subtreeSize[leftBook] + subtreeSize[rightBook] + 1;
+        return book;
+    }
+
+    // Add the waitlists of every book to the metrics, or remove them
+    private void recordWaitlists(boolean add) {
+        for (int book = root == NIL ? NIL : treeMinimum(root); book != NIL; book = successor(book)) {
+            if (reservations[book] == null || reservations[book].isEmpty())
+                continue;
+            int waitlist = reservations[book].size();
+            LibraryMetrics.INSTANCE.waitlistResized(add ? 0 : waitlist, add ? waitlist : 0);
+        }
+    }
+
+    // Number of books on the longest path from the root to a leaf
+    @Override
+    public int height() {
+        return height(root);
+    }
+
+    // Height of a subtree
+    private int height(int book) {
+        return book == NIL ? 0 : 1 + Math.max(height(left(book)), height(right(book)));
+    }
+
+    // Number of black books on every path from the root to a leaf
+    @Override
+    public int blackHeight() {
+        int blackBooks = 0;
+        for (int book = root; book != NIL; book = left(book)) {
+            if (color[book] == BLACK)
+                blackBooks++;
+        }
+        return blackBooks;
+    }
+
+    // Quit the program, append the termination message and flush the output
+    @Override
+    public void quit() throws IOException {
+        out.append("Program Terminated!!\n");
+        out.flush();
+    }
+}
@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.util.List;
+
+// Book storage behind the GatorLibrary commands. RedBlackTree keeps one object per
+// book; ArrayRedBlackTree keeps the same tree in parallel primitive arrays;
+// PersistentRedBlackTree copies books instead of changing them once a snapshot()
+// view shares them. All run the same algorithms and produce the same output,
+// color flip counts included.
+// Every operation writes its result to the catalog's output sink.
+public interface Catalog {
+    // Storage used by GatorLibrary, "object", "array" or "persistent"
+    // (-Dgatorlibrary.storage=<name>)
+    String STORAGE = System.getProperty("gatorlibrary.storage", "object");
+
+    // Create an empty catalog of the configured storage writing to the given sink
+    static Catalog create(OutputSink out) {
+        switch (STORAGE) {
+            case "object":
+                return new RedBlackTree(out);
+            case "array":
+                return new ArrayRedBlackTree(out);
+            case "persistent":
+                return new PersistentRedBlackTree(out);
+            default:
+                throw new IllegalArgumentException("Unknown storage " + STORAGE);
+        }
+    }
+
+    // Insert a book; a book ID that is already present is ignored
+    void insertBook(int bookId, String bookName, String authorName, String isAvailable);
+
+    // Load a batch of books by rebuilding the tree
+    void bulkLoad(List<RedBlackNode> books);
+
+    // Print a book, or that it is not found
+    void printBookRecord(int bookId);
+
+    // Print the books with IDs in [bookId1, bookId2]
+    void printBooks(int bookId1, int bookId2);
+
+    // Borrow a book or reserve it for a patron
+    void borrowBook(int patronId, int bookId, int patronPriority);
+
+    // Return a borrowed book and allot it to the next patron on the waitlist
+    void returnBook(int patronId, int bookId);
+
+    // Run a batch of borrows and returns in order, with the output of running them
+    // one at a time
+    void circulate(CirculationBatch batch);
+
+    // Delete a book, cancelling its reservations
+    void deleteBook(int bookId);
+
+    // Print the book closest to a target book ID, or both on a tie
+    void findClosestBook(int targetId);
+
+    // Print the k books closest to a target book ID
+    void findClosestK(int targetId, int k);
+
+    // Print the books a patron has borrowed and reserved
+    void printPatron(int patronId);
+
+    // Cancel every reservation of a patron
+    void cancelAllReservations(int patronId);
+
+    // Cancel the reservation of a patron on a book
+    void cancelReservation(int patronId, int bookId);
+
+    // Give the reservation of a patron on a book a new priority
+    void updatePriority(int patronId, int bookId, int newPriority);
+
+    // Print the number of books with IDs in [bookId1, bookId2]
+    void countBooks(int bookId1, int bookId2);
+
+    // Print the 1-based position of a book in ascending order of ID
+    void rankOf(int bookId);
+
+    // Print the book at a 1-based position in ascending order of ID
+    void nthBook(int rank);
+
+    // Print up to limit books with IDs in [bookId1, bookId2], skipping the first
+    // offset of them
+    void printBooksPage(int bookId1, int bookId2, int offset, int limit);
+
+    // Print the number of available books with IDs in [bookId1, bookId2]
+    void countAvailable(int bookId1, int bookId2);
+
+    // Print the n books with the longest waitlists, longest first
+    void topWaitlists(int n);
+
+    // Print the books whose title starts with a prefix
+    void findByTitle(String prefix);
+
+    // Print the books whose author starts with a prefix
+    void findByAuthor(String prefix);
+
+    // Print the color flip count
+    void getColorFlipCount();
+
+    // Save the catalog to a snapshot file; returns whether it was saved
+    boolean snapshot(String fileName);
+
+    // Replace the catalog with a saved snapshot; returns whether it was restored
+    boolean restore(String fileName);
+
+    // Number of books on the longest path from the root to a leaf
+    int height();
+
+    // Number of black books on every path from the root to a leaf
+    int blackHeight();
+
+    // Append the termination message and flush the output
+    void quit() throws IOException;
+}
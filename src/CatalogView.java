@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+// Immutable view of a PersistentRedBlackTree as it was when snapshot() was called.
+// No book the view reaches is ever changed again, so an exporter can walk it at
+// its own pace, on any thread and without a lock, while the tree moves on. The
+// books of the version stay reachable only as long as the view does. Books are
+// handed out as RedBlackNodes that callers must not change; their parent fields
+// are not links.
+public final class CatalogView implements Iterable<RedBlackNode> {
+    private final RedBlackNode root; // Root of the version
+    private final RedBlackNode nil; // Null node of the tree
+    private final int flipCount; // Color flip count of the version
+
+    // Constructor to view the version below a root; called by the tree
+    CatalogView(RedBlackNode root, RedBlackNode nil, int flipCount) {
+        this.root = root;
+        this.nil = nil;
+        this.flipCount = flipCount;
+    }
+
+    // Number of books in the version
+    public int size() {
+        return root.size;
+    }
+
+    // Color flip count when the view was taken
+    public int flipCount() {
+        return flipCount;
+    }
+
+    // Book with the given ID, or null if it is not in the version
+    public RedBlackNode find(int bookId) {
+        RedBlackNode book = root;
+        while (book != nil && book.bookId != bookId)
+            book = bookId < book.bookId ? book.left : book.right;
+        return book == nil ? null : book;
+    }
+
+    // Iterate over every book in ascending order of ID
+    @Override
+    public Iterator<RedBlackNode> iterator() {
+        return rangeIterator(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    // Iterate over the books with IDs in [lower, upper] in ascending order
+    public Iterator<RedBlackNode> rangeIterator(int lower, int upper) {
+        return new PersistentRedBlackTree.Walk(root, nil, lower, upper, true);
+    }
+
+    // Append the records of the books with IDs in [lower, upper] to a buffer, as
+    // PrintBooks prints them
+    public void appendBooks(StringBuilder out, int lower, int upper) {
+        for (Iterator<RedBlackNode> books = rangeIterator(lower, upper); books.hasNext();) {
+            books.next().appendTo(out);
+            out.append('\n');
+        }
+    }
+
+    // Write the version to a snapshot file, as the Snapshot command does; returns
+    // the number of books written
+    public int save(Path path) throws IOException {
+        return new LibrarySnapshot(nil).write(root, flipCount, 0, path);
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.Arrays;
+
+// Borrows and returns collected by GatorLibrary to be run together, in the order
+// they were read. The tree looks up the books of the whole batch in one walk
+// before running the operations one by one, so a batch produces exactly the
+// output of the same commands run one at a time. The operations are kept in
+// parallel primitive arrays that are reused from one batch to the next.
+public class CirculationBatch {
+    private int[] patronIds = new int[16];
+    private int[] bookIds = new int[16];
+    private int[] priorities = new int[16]; // Priority of each borrow, unused for returns
+    private boolean[] returns = new boolean[16]; // Whether each operation is a return
+    private int size;
+
+    // Add a BorrowBook to the batch
+    void borrowBook(int patronId, int bookId, int patronPriority) {
+        add(patronId, bookId, patronPriority, false);
+    }
+
+    // Add a ReturnBook to the batch
+    void returnBook(int patronId, int bookId) {
+        add(patronId, bookId, 0, true);
+    }
+
+    // Number of operations in the batch
+    int size() {
+        return size;
+    }
+
+    // Whether the batch holds no operations
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Patron of the i-th operation
+    int patronId(int i) {
+        return patronIds[i];
+    }
+
+    // Book of the i-th operation
+    int bookId(int i) {
+        return bookIds[i];
+    }
+
+    // Priority of the i-th operation if it is a borrow
+    int priority(int i) {
+        return priorities[i];
+    }
+
+    // Whether the i-th operation is a return
+    boolean isReturn(int i) {
+        return returns[i];
+    }
+
+    // Distinct book IDs of the batch in ascending order
+    int[] sortedBookIds() {
+        int[] sorted = Arrays.copyOf(bookIds, size);
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (distinct == 0 || sorted[distinct - 1] != sorted[i])
+                sorted[distinct++] = sorted[i];
+        }
+        return distinct == sorted.length ? sorted : Arrays.copyOf(sorted, distinct);
+    }
+
+    // Empty the batch, keeping its arrays
+    void clear() {
+        size = 0;
+    }
+
+    // Append an operation, growing the arrays if they are full
+    private void add(int patronId, int bookId, int patronPriority, boolean isReturn) {
+        if (size == bookIds.length) {
+            patronIds = Arrays.copyOf(patronIds, 2 * size);
+            bookIds = Arrays.copyOf(bookIds, 2 * size);
+            priorities = Arrays.copyOf(priorities, 2 * size);
+            returns = Arrays.copyOf(returns, 2 * size);
+        }
+        patronIds[size] = patronId;
+        bookIds[size] = bookId;
+        priorities[size] = patronPriority;
+        returns[size] = isReturn;
+        size++;
+    }
+}
@@ -0,0 +1,88 @@
+import java.nio.charset.StandardCharsets;
+
+// Operations understood by GatorLibrary, with the name used for each in input files
+public enum Command {
+    INSERT_BOOK("InsertBook", 4),
+    BULK_INSERT_BOOKS("BulkInsertBooks", 0),
+    PRINT_BOOK("PrintBook", 1),
+    PRINT_BOOKS("PrintBooks", 2),
+    BORROW_BOOK("BorrowBook", 3),
+    RETURN_BOOK("ReturnBook", 2),
+    BORROW_BOOKS("BorrowBooks", 0),
+    RETURN_BOOKS("ReturnBooks", 0),
+    DELETE_BOOK("DeleteBook", 1),
+    FIND_CLOSEST_BOOK("FindClosestBook", 1),
+    FIND_CLOSEST_K("FindClosestK", 2),
+    COLOR_FLIP_COUNT("ColorFlipCount", 0),
+    PRINT_PATRON("PrintPatron", 1),
+    CANCEL_ALL_RESERVATIONS("CancelAllReservations", 1),
+    CANCEL_RESERVATION("CancelReservation", 2),
+    UPDATE_PRIORITY("UpdatePriority", 3),
+    COUNT_BOOKS("CountBooks", 2),
+    RANK_OF("RankOf", 1),
+    NTH_BOOK("NthBook", 1),
+    PRINT_BOOKS_PAGE("PrintBooksPage", 4),
+    COUNT_AVAILABLE("CountAvailable", 2),
+    TOP_WAITLISTS("TopWaitlists", 1),
+    FIND_BY_TITLE("FindByTitle", 1),
+    FIND_BY_AUTHOR("FindByAuthor", 1),
+    SNAPSHOT("Snapshot", 1),
+    RESTORE("Restore", 1),
+    QUIT("Quit", 0);
+
+    // Commands grouped by the first byte of their name
+    private static final Command[][] BY_FIRST_BYTE = new Command[128][];
+
+    static {
+        for (Command command : values()) {
+            int first = command.name[0];
+            Command[] group = BY_FIRST_BYTE[first];
+            Command[] extended = new Command[group == null ? 1 : group.length + 1];
+            if (group != null)
+                System.arraycopy(group, 0, extended, 0, group.length);
+            extended[extended.length - 1] = command;
+            BY_FIRST_BYTE[first] = extended;
+        }
+    }
+
+    private final byte[] name; // ASCII bytes of the operation name
+    private final int arguments; // Number of arguments the operation takes
+
+    Command(String name, int arguments) {
+        this.name = name.getBytes(StandardCharsets.US_ASCII);
+        this.arguments = arguments;
+    }
+
+    // Number of arguments the operation takes
+    public int arguments() {
+        return arguments;
+    }
+
+    // Name of the operation as written in input files
+    public String operationName() {
+        return new String(name, StandardCharsets.US_ASCII);
+    }
+
+    // Find the command whose name is exactly bytes[start, end), or null if none is
+    public static Command lookup(byte[] bytes, int start, int end) {
+        if (start >= end || bytes[start] < 0)
+            return null;
+        Command[] group = BY_FIRST_BYTE[bytes[start]];
+        if (group == null)
+            return null;
+        for (Command command : group) {
+            if (command.name.length == end - start && matches(command.name, bytes, start))
+                return command;
+        }
+        return null;
+    }
+
+    // Compare the name against the bytes starting at the given offset
+    private static boolean matches(byte[] name, byte[] bytes, int start) {
+        for (int i = 1; i < name.length; i++) {
+            if (name[i] != bytes[start + i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,469 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+// Append-only write-ahead log of the commands that change the catalog. Each record
+// is a type byte followed by variable-length integers and length-prefixed UTF-8
+// strings. Records are grouped into frames (int length, int CRC-32, records),
+// and each frame is written and synced to disk in one go. A frame is committed
+// once it holds the configured number of records, or after the sync interval has
+// passed, so a burst of commands shares one disk sync.
+//
+// The file starts with the sequence number of the frame before its first one and
+// the path of the snapshot the log applies to ("" for an empty catalog). Opening
+// the log restores that snapshot and replays the frames on top of it, up to the
+// first torn or corrupt frame, which is cut off. When a snapshot is taken or
+// restored, the log starts over from that snapshot. A snapshot records the last
+// frame it holds, and recovery skips the frames up to it: a crash after a snapshot
+// replaced the one the log applies to, but before the log started over, would
+// otherwise replay those frames twice.
+public class CommandLog implements Closeable {
+    // Log file, or null to run without a log (-Dgatorlibrary.wal=<path>)
+    static final String PATH = System.getProperty("gatorlibrary.wal");
+
+    // Milliseconds between background commits of pending records, 0 to commit only
+    // on a full batch and on close (-Dgatorlibrary.walSyncInterval=<ms>)
+    static final int SYNC_INTERVAL = Integer.getInteger("gatorlibrary.walSyncInterval", 10);
+
+    // Records per frame; a full frame is committed at once
+    // (-Dgatorlibrary.walBatchSize=<n>)
+    static final int BATCH_SIZE = Math.max(1, Integer.getInteger("gatorlibrary.walBatchSize", 1024));
+
+    private static final int MAGIC = 0x474c574c; // "GLWL"
+    private static final int VERSION = 2;
+    private static final int FRAME_HEADER = 8; // Frame length and checksum
+
+    // Record types
+    private static final byte INSERT_BOOK = 1;
+    private static final byte DELETE_BOOK = 2;
+    private static final byte BORROW_BOOK = 3;
+    private static final byte RETURN_BOOK = 4;
+    private static final byte BULK_INSERT_BOOKS = 5;
+    private static final byte CANCEL_ALL_RESERVATIONS = 6;
+    private static final byte CANCEL_RESERVATION = 7;
+    private static final byte UPDATE_PRIORITY = 8;
+
+    private final Path path; // Location of the log
+    private final RedBlackTree rbTree; // Catalog the log records
+    private final Object commitLock = new Object(); // Keeps frames in order on disk
+    private FileChannel channel; // Log file, positioned at its end
+    private String snapshotFile; // Snapshot the log applies to, "" for none
+    private long sequence; // Sequence number of the last frame committed
+    private long recoveredRecords; // Records replayed when the log was opened
+
+    private byte[] records = new byte[1 << 16]; // Frame header and records not yet committed
+    private byte[] spare = new byte[1 << 16]; // Buffer of the frame being committed
+    private int length; // Bytes used in records
+    private int pending; // Records in records
+    private IOException failure; // Failure of a background commit, reported on the next append
+    private Thread syncer; // Background committer, null if SYNC_INTERVAL is 0
+    private volatile boolean closing; // Stops the background committer
+
+    private CommandLog(Path path, RedBlackTree rbTree) {
+        this.path = path;
+        this.rbTree = rbTree;
+    }
+
+    // Open the log at the given path, rebuilding its catalog in the given (empty)
+    // tree, and start appending to it
+    static CommandLog open(Path path, RedBlackTree rbTree) throws IOException {
+        CommandLog log = new CommandLog(path, rbTree);
+        if (Files.exists(path))
+            log.recover();
+        else
+            log.reset("");
+        if (SYNC_INTERVAL > 0) {
+            log.syncer = new Thread(log::syncPeriodically, "library-wal");
+            log.syncer.setDaemon(true);
+            log.syncer.start();
+        }
+        return log;
+    }
+
+    // Snapshot the log applies to, or "" if it starts from an empty catalog
+    String snapshotFile() {
+        return snapshotFile;
+    }
+
+    // Number of records replayed when the log was opened
+    long recoveredRecords() {
+        return recoveredRecords;
+    }
+
+    // Log an InsertBook command
+    void insertBook(int bookId, String bookName, String authorName, boolean isAvailable) throws IOException {
+        synchronized (this) {
+            writeByte(INSERT_BOOK);
+            writeBook(bookId, bookName, authorName, isAvailable);
+        }
+        appended();
+    }
+
+    // Log a bulk load of books
+    void bulkLoad(List<RedBlackNode> books) throws IOException {
+        synchronized (this) {
+            writeByte(BULK_INSERT_BOOKS);
+            writeInt(books.size());
+            for (RedBlackNode book : books)
+                writeBook(book.bookId, book.bookName, book.authorName, book.isAvailable);
+        }
+        appended();
+    }
+
+    // Log a DeleteBook command
+    void deleteBook(int bookId) throws IOException {
+        synchronized (this) {
+            writeByte(DELETE_BOOK);
+            writeInt(bookId);
+        }
+        appended();
+    }
+
+    // Log a BorrowBook command
+    void borrowBook(int patronId, int bookId, int patronPriority) throws IOException {
+        synchronized (this) {
+            writeByte(BORROW_BOOK);
+            writeInt(patronId);
+            writeInt(bookId);
+            writeInt(patronPriority);
+        }
+        appended();
+    }
+
+    // Log a ReturnBook command
+    void returnBook(int patronId, int bookId) throws IOException {
+        synchronized (this) {
+            writeByte(RETURN_BOOK);
+            writeInt(patronId);
+            writeInt(bookId);
+        }
+        appended();
+    }
+
+    // Log a CancelAllReservations command
+    void cancelAllReservations(int patronId) throws IOException {
+        synchronized (this) {
+            writeByte(CANCEL_ALL_RESERVATIONS);
+            writeInt(patronId);
+        }
+        appended();
+    }
+
+    // Log a CancelReservation command
+    void cancelReservation(int patronId, int bookId) throws IOException {
+        synchronized (this) {
+            writeByte(CANCEL_RESERVATION);
+            writeInt(patronId);
+            writeInt(bookId);
+        }
+        appended();
+    }
+
+    // Log an UpdatePriority command
+    void updatePriority(int patronId, int bookId, int newPriority) throws IOException {
+        synchronized (this) {
+            writeByte(UPDATE_PRIORITY);
+            writeInt(patronId);
+            writeInt(bookId);
+            writeInt(newPriority);
+        }
+        appended();
+    }
+
+    // Commit the pending records before the catalog is saved to a snapshot, so
+    // that the snapshot records the last frame it holds
+    void beginCheckpoint() throws IOException {
+        synchronized (commitLock) {
+            commit();
+            rbTree.logSequence = sequence;
+        }
+    }
+
+    // Start the log over from a snapshot that holds everything logged so far; its
+    // frames are numbered on from the last one the snapshot holds
+    void checkpoint(String fileName) throws IOException {
+        Path snapshot = Paths.get(fileName).toAbsolutePath();
+        synchronized (commitLock) {
+            sequence = Math.max(sequence, LibrarySnapshot.logSequence(snapshot));
+            synchronized (this) {
+                length = FRAME_HEADER;
+                pending = 0;
+            }
+            channel.close();
+            reset(snapshot.toString());
+        }
+    }
+
+    // Write and sync the pending records as one frame
+    void commit() throws IOException {
+        synchronized (commitLock) {
+            ByteBuffer frame;
+            synchronized (this) {
+                if (pending == 0)
+                    return;
+                CRC32 crc = new CRC32();
+                crc.update(records, FRAME_HEADER, length - FRAME_HEADER);
+                frame = ByteBuffer.wrap(records, 0, length);
+                frame.putInt(0, length - FRAME_HEADER);
+                frame.putInt(4, (int) crc.getValue());
+                // Appends go on into the other buffer while this frame is synced
+                records = spare;
+                spare = frame.array();
+                length = FRAME_HEADER;
+                pending = 0;
+            }
+            while (frame.hasRemaining())
+                channel.write(frame);
+            channel.force(false);
+            sequence++;
+        }
+    }
+
+    // Commit the pending records and close the log
+    @Override
+    public void close() throws IOException {
+        // Interrupting the committer could close the channel under it, so it is
+        // told to stop instead
+        closing = true;
+        commit();
+        channel.close();
+    }
+
+    // Count an appended record and commit the frame once the batch is full
+    private void appended() throws IOException {
+        boolean full;
+        synchronized (this) {
+            if (failure != null) {
+                IOException e = failure;
+                failure = null;
+                throw e;
+            }
+            full = ++pending >= BATCH_SIZE;
+        }
+        if (full)
+            commit();
+    }
+
+    // Commit pending records every SYNC_INTERVAL milliseconds until the log closes
+    private void syncPeriodically() {
+        while (!closing) {
+            LockSupport.parkNanos(SYNC_INTERVAL * 1_000_000L);
+            try {
+                commit();
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    // Replace the log with an empty one applying to the given snapshot; the new
+    // file is written aside and moved into place so a crash keeps one of the two
+    private void reset(String snapshot) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream header = new DataOutputStream(Files.newOutputStream(temporary))) {
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeLong(sequence);
+            byte[] snapshotBytes = snapshot.getBytes(StandardCharsets.UTF_8);
+            header.writeInt(snapshotBytes.length);
+            header.write(snapshotBytes);
+        }
+        try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            file.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(path);
+        openForAppend(snapshot, Files.size(path));
+    }
+
+    // Sync the directory holding a file, so that the file keeps the name it was
+    // just moved to after a crash
+    static void syncDirectory(Path file) throws IOException {
+        try (FileChannel directory = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    // Open the log file for appending after the given number of valid bytes
+    private void openForAppend(String snapshot, long validLength) throws IOException {
+        this.snapshotFile = snapshot;
+        this.channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        channel.truncate(validLength);
+        channel.position(validLength);
+        length = FRAME_HEADER;
+    }
+
+    // Restore the snapshot of an existing log and replay the frames it does not
+    // hold into the tree
+    private void recover() throws IOException {
+        OutputSink discard = new OutputSink(Writer.nullWriter(), OutputSink.DEFAULT_BUFFER_SIZE);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException(path + " is not a command log");
+            sequence = in.readLong();
+            byte[] snapshotBytes = new byte[in.readInt()];
+            in.readFully(snapshotBytes);
+            String snapshot = new String(snapshotBytes, StandardCharsets.UTF_8);
+            long held = 0; // Last frame the snapshot holds
+            if (!snapshot.isEmpty()) {
+                new LibrarySnapshot(rbTree.nil()).restore(rbTree, Paths.get(snapshot));
+                held = LibrarySnapshot.logSequence(Paths.get(snapshot));
+            }
+            long fileLength = Files.size(path);
+            long validLength = 20 + snapshotBytes.length;
+            byte[] frame = new byte[0];
+            CRC32 crc = new CRC32();
+            while (true) {
+                int frameLength, checksum;
+                try {
+                    frameLength = in.readInt();
+                    checksum = in.readInt();
+                    if (frameLength < 0 || frameLength > fileLength)
+                        break;
+                    if (frame.length < frameLength)
+                        frame = new byte[frameLength];
+                    in.readFully(frame, 0, frameLength);
+                } catch (EOFException e) {
+                    break; // Torn frame at the end of the log
+                }
+                crc.reset();
+                crc.update(frame, 0, frameLength);
+                if ((int) crc.getValue() != checksum)
+                    break;
+                if (++sequence > held)
+                    replay(ByteBuffer.wrap(frame, 0, frameLength), discard);
+                validLength += FRAME_HEADER + frameLength;
+            }
+            sequence = Math.max(sequence, held);
+            openForAppend(snapshot, validLength);
+        }
+    }
+
+    // Apply the records of one frame to the tree
+    private void replay(ByteBuffer frame, OutputSink discard) throws IOException {
+        while (frame.hasRemaining()) {
+            byte type = frame.get();
+            switch (type) {
+                case INSERT_BOOK: {
+                    RedBlackNode book = readBook(frame);
+                    rbTree.insertBook(book.bookId, book.bookName, book.authorName, book.isAvailable ? "Yes" : "No");
+                    break;
+                }
+                case BULK_INSERT_BOOKS: {
+                    int count = readInt(frame);
+                    List<RedBlackNode> books = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++)
+                        books.add(readBook(frame));
+                    rbTree.bulkLoad(books);
+                    break;
+                }
+                case DELETE_BOOK:
+                    rbTree.deleteBook(readInt(frame), discard);
+                    break;
+                case BORROW_BOOK: {
+                    int patronId = readInt(frame), bookId = readInt(frame), patronPriority = readInt(frame);
+                    RedBlackNode book = rbTree.printBook(bookId);
+                    if (book != null)
+                        rbTree.borrowBook(book, patronId, patronPriority, discard);
+                    break;
+                }
+                case RETURN_BOOK: {
+                    int patronId = readInt(frame), bookId = readInt(frame);
+                    RedBlackNode book = rbTree.printBook(bookId);
+                    if (book != null)
+                        rbTree.returnBook(book, patronId, discard);
+                    break;
+                }
+                case CANCEL_ALL_RESERVATIONS:
+                    rbTree.cancelReservations(readInt(frame));
+                    break;
+                case CANCEL_RESERVATION: {
+                    int patronId = readInt(frame), bookId = readInt(frame);
+                    RedBlackNode book = rbTree.printBook(bookId);
+                    if (book != null)
+                        rbTree.cancelReservation(book, patronId, discard);
+                    break;
+                }
+                case UPDATE_PRIORITY: {
+                    int patronId = readInt(frame), bookId = readInt(frame), newPriority = readInt(frame);
+                    RedBlackNode book = rbTree.printBook(bookId);
+                    if (book != null)
+                        rbTree.updatePriority(book, patronId, newPriority, discard);
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown command log record " + type);
+            }
+            recoveredRecords++;
+        }
+    }
+
+    // Append the fields of a book
+    private void writeBook(int bookId, String bookName, String authorName, boolean isAvailable) {
+        writeInt(bookId);
+        writeString(bookName);
+        writeString(authorName);
+        writeByte(isAvailable ? 1 : 0);
+    }
+
+    // Read the fields of a book
+    private static RedBlackNode readBook(ByteBuffer frame) {
+        int bookId = readInt(frame);
+        String bookName = readString(frame), authorName = readString(frame);
+        return new RedBlackNode(bookId, bookName, authorName, frame.get() != 0);
+    }
+
+    // Append one byte
+    private void writeByte(int value) {
+        if (length == records.length)
+            records = Arrays.copyOf(records, 2 * records.length);
+        records[length++] = (byte) value;
+    }
+
+    // Append an int as a zig-zag variable-length integer of 1 to 5 bytes
+    private void writeInt(int value) {
+        int bits = (value << 1) ^ (value >> 31);
+        while ((bits & ~0x7f) != 0) {
+            writeByte((bits & 0x7f) | 0x80);
+            bits >>>= 7;
+        }
+        writeByte(bits);
+    }
+
+    // Read a zig-zag variable-length integer
+    private static int readInt(ByteBuffer frame) {
+        int bits = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = frame.get();
+            bits |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return (bits >>> 1) ^ -(bits & 1);
+        }
+    }
+
+    // Append a string as its UTF-8 length and bytes
+    private void writeString(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeInt(bytes.length);
+        if (length + bytes.length > records.length)
+            records = Arrays.copyOf(records, Math.max(2 * records.length, length + bytes.length));
+        System.arraycopy(bytes, 0, records, length, bytes.length);
+        length += bytes.length;
+    }
+
+    // Read a string written by writeString
+    private static String readString(ByteBuffer frame) {
+        int byteLength = readInt(frame);
+        String text = new String(frame.array(), frame.arrayOffset() + frame.position(), byteLength,
+                StandardCharsets.UTF_8);
+        frame.position(frame.position() + byteLength);
+        return text;
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Crash test for CommandLog. Each round runs GatorLibrary with a write-ahead log in
+// a child JVM over a generated workload that takes a snapshot halfway, kills the
+// child at a random moment, and recovers the log in this JVM. The recovered
+// catalog must equal the catalog of a reference run that executes the same
+// commands up to the last one found in the log: the same books, availability,
+// borrowers, waitlists in the same order, and the same color flip count.
+//
+// Usage: java CommandLogCrashCheck [rounds] [commands]
+public class CommandLogCrashCheck {
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int commands = args.length > 1 ? Integer.parseInt(args[1]) : 400_000;
+        Path directory = Files.createTempDirectory("library-crash");
+        Random random = new Random(42);
+        for (int round = 0; round < rounds; round++) {
+            Path input = directory.resolve("commands.txt");
+            writeWorkload(input, commands, round);
+            Path log = directory.resolve("library.wal");
+            Files.deleteIfExists(log);
+
+            Process child = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"), "-Dgatorlibrary.wal=" + log,
+                    "-Dgatorlibrary.walBatchSize=64", "GatorLibrary", input.toString())
+                    .directory(directory.toFile()).redirectErrorStream(true)
+                    .redirectOutput(directory.resolve("child.log").toFile()).start();
+            Thread.sleep(300 + random.nextInt(1500));
+            child.destroyForcibly();
+            child.waitFor();
+
+            RedBlackTree recovered = newTree();
+            long records;
+            String snapshot;
+            try (CommandLog commandLog = CommandLog.open(log, recovered)) {
+                records = commandLog.recoveredRecords();
+                snapshot = commandLog.snapshotFile();
+            }
+            RedBlackTree expected = reference(input, !snapshot.isEmpty(), records);
+            recovered.checkInvariants();
+            if (!render(recovered).equals(render(expected)))
+                throw new IllegalStateException("Round " + round + ": recovered catalog differs from the reference");
+            System.out.printf("Round %d: recovered %s%,d logged commands, catalog matches%n", round,
+                    snapshot.isEmpty() ? "" : "the snapshot and ", records);
+        }
+        System.out.println("CommandLog crash check passed");
+    }
+
+    // Generate a workload with a Snapshot command halfway through
+    private static void writeWorkload(Path input, int commands, int seed) throws IOException {
+        Path generated = input.resolveSibling("generated.txt");
+        WorkloadGenerator.main(new String[] { generated.toString(), "-books", "20000", "-commands",
+                String.valueOf(commands), "-patrons", "200", "-seed", String.valueOf(seed), "-mix",
+                "insert=10,delete=5,borrow=30,return=30,print=20,flips=5" });
+        List<String> lines = Files.readAllLines(generated);
+        lines.add(lines.size() / 2, "Snapshot(\"" + input.resolveSibling("library.snapshot") + "\")");
+        Files.write(input, lines);
+    }
+
+    // Run the input up to the given number of logged commands, counting from the
+    // Snapshot command if the log starts from the snapshot
+    private static RedBlackTree reference(Path input, boolean fromSnapshot, long records) throws IOException {
+        RedBlackTree rbTree = newTree();
+        GatorLibrary library = new GatorLibrary(rbTree, new OutputSink(Writer.nullWriter(), 1 << 16));
+        boolean counting = !fromSnapshot;
+        long logged = 0;
+        try (InputStream in = new FileInputStream(input.toFile())) {
+            CommandParser row = new CommandParser(in);
+            while (row.next() && row.command() != Command.QUIT) {
+                Command command = row.command();
+                boolean changes = command == Command.INSERT_BOOK || command == Command.DELETE_BOOK
+                        || command == Command.BORROW_BOOK || command == Command.RETURN_BOOK
+                        || command == Command.CANCEL_ALL_RESERVATIONS || command == Command.CANCEL_RESERVATION
+                        || command == Command.UPDATE_PRIORITY;
+                if (changes && counting && logged++ == records)
+                    break;
+                library.parse(row);
+                if (command == Command.SNAPSHOT)
+                    counting = true;
+            }
+        }
+        library.endCirculation();
+        return rbTree;
+    }
+
+    // Tree whose output is discarded
+    private static RedBlackTree newTree() {
+        return new RedBlackTree(new OutputSink(Writer.nullWriter(), 1 << 16));
+    }
+
+    // Every book in order, followed by the color flip count
+    private static String render(RedBlackTree rbTree) {
+        StringBuilder sb = new StringBuilder();
+        for (Iterator<RedBlackNode> books = rbTree.rangeIterator(Integer.MIN_VALUE, Integer.MAX_VALUE); books
+                .hasNext();)
+            books.next().appendTo(sb);
+        return sb.append(rbTree.flipCount).toString();
+    }
+}
@@ -0,0 +1,216 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+// Byte-level reader for GatorLibrary command files. Each line has the form
+// Operation(arg1, arg2, ...) with an optional trailing semicolon; double quotes are
+// ignored wherever they appear and arguments are trimmed. The command is recognized
+// from the raw bytes and integers are read in place, so only string arguments
+// (titles, authors, availability) allocate.
+public class CommandParser {
+    // Size of the input buffer (-Dgatorlibrary.inputBufferSize=<n>)
+    static final int DEFAULT_BUFFER_SIZE = Integer.getInteger("gatorlibrary.inputBufferSize", 1 << 20);
+
+    // Maximum number of arguments recorded per command
+    private static final int MAX_ARGUMENTS = 8;
+
+    private final InputStream in; // Source of the command bytes
+    private byte[] buffer; // Input bytes; the current line is edited in place
+    private int position; // Start of the unread input in the buffer
+    private int limit; // End of the valid input in the buffer
+    private boolean endOfInput; // Whether the source has been exhausted
+
+    private Command command; // Command of the current line, null if unrecognized
+    private int argumentCount; // Number of arguments of the current line
+    private final int[] argumentStart = new int[MAX_ARGUMENTS]; // Trimmed argument bounds
+    private final int[] argumentEnd = new int[MAX_ARGUMENTS];
+
+    // Constructor to read commands from a stream with the default buffer size
+    public CommandParser(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    // Constructor to read commands from a stream with the given buffer size
+    public CommandParser(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[Math.max(16, bufferSize)];
+    }
+
+    // Advance to the next non-blank line; returns false at the end of the input
+    public boolean next() throws IOException {
+        while (true) {
+            int newline = findNewline();
+            if (newline < 0)
+                return false;
+            int lineStart = position;
+            int lineEnd = newline;
+            position = Math.min(newline + 1, limit);
+            if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r')
+                lineEnd--;
+            if (parseLine(lineStart, lineEnd))
+                return true;
+        }
+    }
+
+    // Whether more input is already buffered, so that reading the next line will
+    // not wait for the source
+    public boolean hasBufferedInput() {
+        return position < limit;
+    }
+
+    // Command of the current line, or null if the operation is not recognized or
+    // the line is malformed
+    public Command command() {
+        return command;
+    }
+
+    // Number of arguments of the current line
+    public int argumentCount() {
+        return argumentCount;
+    }
+
+    // Read an argument of the current line as an int, with the rules of
+    // Integer.parseInt
+    public int intArgument(int index) {
+        checkIndex(index);
+        int start = argumentStart[index];
+        int end = argumentEnd[index];
+        if (start == end)
+            throw new NumberFormatException("Empty integer argument");
+        boolean negative = buffer[start] == '-';
+        if (negative || buffer[start] == '+')
+            start++;
+        if (start == end)
+            throw new NumberFormatException("Invalid integer argument");
+        // Leading zeros are allowed, as with Integer.parseInt; the magnitude is
+        // checked after every digit so that long arguments cannot overflow
+        long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException("Invalid integer argument");
+            value = value * 10 + digit;
+            if (value > limit)
+                throw new NumberFormatException("Integer argument out of range");
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    // Read an argument of the current line as a string
+    public String stringArgument(int index) {
+        checkIndex(index);
+        return new String(buffer, argumentStart[index], argumentEnd[index] - argumentStart[index],
+                StandardCharsets.UTF_8);
+    }
+
+    // Check whether an argument of the current line equals the given ASCII text
+    public boolean argumentEquals(int index, String text) {
+        checkIndex(index);
+        int start = argumentStart[index];
+        if (argumentEnd[index] - start != text.length())
+            return false;
+        for (int i = 0; i < text.length(); i++) {
+            if (buffer[start + i] != text.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    // Fail if the current line has no argument at the given index
+    private void checkIndex(int index) {
+        if (index < 0 || index >= argumentCount)
+            throw new IndexOutOfBoundsException("Missing argument " + index + " for " + command);
+    }
+
+    // Locate the end of the next line, reading more input as needed; returns the
+    // index of the newline (or the end of the input), or -1 if nothing is left
+    private int findNewline() throws IOException {
+        int scanned = position;
+        while (true) {
+            for (int i = scanned; i < limit; i++) {
+                if (buffer[i] == '\n')
+                    return i;
+            }
+            if (endOfInput)
+                return position < limit ? limit : -1;
+            scanned = limit - position;
+            fill();
+            scanned += position;
+        }
+    }
+
+    // Move the unread bytes to the front of the buffer, growing it when a single
+    // line fills it, and read more input behind them
+    private void fill() throws IOException {
+        int unread = limit - position;
+        if (unread == buffer.length) {
+            byte[] larger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, position, larger, 0, unread);
+            buffer = larger;
+        } else if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, unread);
+        }
+        position = 0;
+        limit = unread;
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read < 0)
+            endOfInput = true;
+        else
+            limit += read;
+    }
+
+    // Split the line into its command and trimmed arguments; returns false for a
+    // blank line
+    private boolean parseLine(int start, int end) {
+        end = removeQuotes(start, end);
+        command = null;
+        argumentCount = 0;
+
+        int open = -1, close = -1;
+        boolean blank = true;
+        for (int i = start; i < end; i++) {
+            byte b = buffer[i];
+            if ((b & 0xff) > ' ')
+                blank = false;
+            if (b == '(' && open < 0)
+                open = i;
+            else if (b == ')' && close < 0)
+                close = i;
+        }
+        if (blank)
+            return false;
+        if (open < 0 || close < open)
+            return true;
+
+        // Arguments are separated by commas
+        int argStart = open + 1;
+        for (int i = open + 1; i <= close; i++) {
+            if (i == close || buffer[i] == ',') {
+                if (argumentCount == MAX_ARGUMENTS)
+                    break;
+                int s = argStart, e = i;
+                while (s < e && (buffer[s] & 0xff) <= ' ')
+                    s++;
+                while (e > s && (buffer[e - 1] & 0xff) <= ' ')
+                    e--;
+                argumentStart[argumentCount] = s;
+                argumentEnd[argumentCount] = e;
+                argumentCount++;
+                argStart = i + 1;
+            }
+        }
+        command = Command.lookup(buffer, start, open);
+        return true;
+    }
+
+    // Drop every double quote from the line in place; returns the new line end
+    private int removeQuotes(int start, int end) {
+        int write = start;
+        for (int read = start; read < end; read++) {
+            byte b = buffer[read];
+            if (b != '"')
+                buffer[write++] = b;
+        }
+        return write;
+    }
+}
@@ -0,0 +1,481 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+
+// Thread-safe front end to a RedBlackTree. Lookups run as optimistic StampedLock
+// reads that validate the stamp at every step and only retry under the read lock
+// when a write overlaps them. Inserts and deletes change the tree structure and take
+// the write lock. Borrows and returns only change the fields of one book, so they
+// hold the read lock to keep the tree stable and lock that book alone; circulation
+// on different books never blocks. Each method returns the output of its command.
+public class ConcurrentLibrary {
+
+    // Lookup that renders into a buffer; returns false if the stamp stopped being
+    // valid during the walk
+    private interface Lookup {
+        boolean read(StringBuilder result, long stamp);
+    }
+
+    private final RedBlackTree rbTree; // Tree guarded by the lock
+    private final RedBlackNode nil; // Null node of the tree
+    private final StampedLock lock = new StampedLock(); // Guards the tree structure
+
+    // Constructor to guard a tree, which must not be used directly afterwards
+    public ConcurrentLibrary(RedBlackTree rbTree) {
+        this.rbTree = rbTree;
+        this.nil = rbTree.nil();
+        rbTree.shareRecords();
+    }
+
+    // Insert a book into the library
+    public void insertBook(int bookId, String bookName, String authorName, String isAvailable) {
+        long stamp = lock.writeLock();
+        try {
+            rbTree.insertBook(bookId, bookName, authorName, isAvailable);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Load a batch of books into the library in one rebuild
+    public void bulkLoad(List<RedBlackNode> books) {
+        long stamp = lock.writeLock();
+        try {
+            rbTree.bulkLoad(books);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Delete a book from the library
+    public String deleteBook(int bookId) {
+        StringWriter result = new StringWriter();
+        OutputSink out = new OutputSink(result, Integer.MAX_VALUE);
+        long stamp = lock.writeLock();
+        try {
+            rbTree.deleteBook(bookId, out);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return close(out, result);
+    }
+
+    // Save the catalog to a snapshot file, appending the result to the given sink
+    // once the lock is released; returns whether it was saved. Circulation is
+    // paused meanwhile, so the snapshot is consistent.
+    public boolean snapshot(String fileName, OutputSink sink) {
+        StringWriter result = new StringWriter();
+        OutputSink out = new OutputSink(result, Integer.MAX_VALUE);
+        boolean saved;
+        long stamp = lock.writeLock();
+        try {
+            saved = rbTree.snapshot(fileName, out);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        sink.append(close(out, result));
+        return saved;
+    }
+
+    // Replace the catalog with a saved snapshot, appending the result to the given
+    // sink once the lock is released; returns whether it was restored
+    public boolean restore(String fileName, OutputSink sink) {
+        StringWriter result = new StringWriter();
+        OutputSink out = new OutputSink(result, Integer.MAX_VALUE);
+        boolean restored;
+        long stamp = lock.writeLock();
+        try {
+            restored = rbTree.restore(fileName, out);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        sink.append(close(out, result));
+        return restored;
+    }
+
+    // Borrow a book from the library or reserve it for a patron
+    public String borrowBook(int patronId, int bookId, int patronPriority) {
+        StringWriter result = new StringWriter();
+        OutputSink out = new OutputSink(result, Integer.MAX_VALUE);
+        long stamp = lock.readLock();
+        try {
+            RedBlackNode book = rbTree.printBook(bookId);
+            if (book != null) {
+                synchronized (book) {
+                    rbTree.borrowBook(book, patronId, patronPriority, out);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return close(out, result);
+    }
+
+    // Return a borrowed book to the library and handle reservations
+    public String returnBook(int patronId, int bookId) {
+        StringWriter result = new StringWriter();
+        OutputSink out = new OutputSink(result, Integer.MAX_VALUE);
+        long stamp = lock.readLock();
+        try {
+            RedBlackNode book = rbTree.printBook(bookId);
+            if (book != null) {
+                synchronized (book) {
+                    rbTree.returnBook(book, patronId, out);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return close(out, result);
+    }
+
+    // Cancel the reservation of a patron on a book
+    public String cancelReservation(int patronId, int bookId) {
+        StringWriter result = new StringWriter();
+        OutputSink out = new OutputSink(result, Integer.MAX_VALUE);
+        long stamp = lock.readLock();
+        try {
+            RedBlackNode book = rbTree.printBook(bookId);
+            if (book == null) {
+                out.append("Book ").append(bookId).append(" not found in the library\n");
+            } else {
+                synchronized (book) {
+                    rbTree.cancelReservation(book, patronId, out);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return close(out, result);
+    }
+
+    // Give the reservation of a patron on a book a new priority
+    public String updatePriority(int patronId, int bookId, int newPriority) {
+        StringWriter result = new StringWriter();
+        OutputSink out = new OutputSink(result, Integer.MAX_VALUE);
+        long stamp = lock.readLock();
+        try {
+            RedBlackNode book = rbTree.printBook(bookId);
+            if (book == null) {
+                out.append("Book ").append(bookId).append(" not found in the library\n");
+            } else {
+                synchronized (book) {
+                    rbTree.updatePriority(book, patronId, newPriority, out);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return close(out, result);
+    }
+
+    // Cancel every reservation of a patron; the waitlists of several books change,
+    // so it takes the write lock
+    public String cancelAllReservations(int patronId) {
+        StringWriter result = new StringWriter();
+        OutputSink out = new OutputSink(result, Integer.MAX_VALUE);
+        long stamp = lock.writeLock();
+        try {
+            out.appendCancelled(patronId, rbTree.cancelReservations(patronId));
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return close(out, result);
+    }
+
+    // Print the books a patron has borrowed and reserved; the patron index
+    // synchronizes with concurrent borrows and returns itself
+    public String printPatron(int patronId) {
+        StringWriter result = new StringWriter();
+        OutputSink out = new OutputSink(result, Integer.MAX_VALUE);
+        long stamp = lock.readLock();
+        try {
+            rbTree.printPatron(patronId, out);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return close(out, result);
+    }
+
+    // Print information about a specific book
+    public String printBook(int bookId) {
+        return read((result, stamp) -> {
+            RedBlackNode book = rbTree.root();
+            while (book != nil) {
+                if (!lock.validate(stamp))
+                    return false;
+                if (bookId < book.bookId) {
+                    book = book.left;
+                } else if (bookId > book.bookId) {
+                    book = book.right;
+                } else {
+                    render(book, result);
+                    return true;
+                }
+            }
+            result.append("Book ").append(bookId).append(" not found in the library\n");
+            return true;
+        });
+    }
+
+    // Print information about books within a specified range of book IDs, with an
+    // explicit stack that skips subtrees outside the range
+    public String printBooks(int bookId1, int bookId2) {
+        return read((result, stamp) -> {
+            Deque<RedBlackNode> stack = new ArrayDeque<>();
+            RedBlackNode book = rbTree.root();
+            while (book != nil || !stack.isEmpty()) {
+                if (!lock.validate(stamp))
+                    return false;
+                if (book != nil) {
+                    if (book.bookId < bookId1) {
+                        book = book.right;
+                    } else {
+                        stack.push(book);
+                        book = book.left;
+                    }
+                } else {
+                    book = stack.pop();
+                    if (book.bookId > bookId2)
+                        return true;
+                    render(book, result);
+                    book = book.right;
+                }
+            }
+            return true;
+        });
+    }
+
+    // Find and print the closest book to a target book ID; on a tie both books
+    // are printed in ascending order of book ID
+    public String findClosestBook(int targetId) {
+        return read((result, stamp) -> {
+            RedBlackNode lower = nil, upper = nil;
+            RedBlackNode book = rbTree.root();
+            while (book != nil) {
+                if (!lock.validate(stamp))
+                    return false;
+                if (targetId < book.bookId) {
+                    upper = book;
+                    book = book.left;
+                } else if (targetId > book.bookId) {
+                    lower = book;
+                    book = book.right;
+                } else {
+                    render(book, result);
+                    return true;
+                }
+            }
+            long lowerDiff = lower == nil ? Long.MAX_VALUE : (long) targetId - lower.bookId;
+            long upperDiff = upper == nil ? Long.MAX_VALUE : (long) upper.bookId - targetId;
+            if (lower != nil && lowerDiff <= upperDiff)
+                render(lower, result);
+            if (upper != nil && upperDiff <= lowerDiff)
+                render(upper, result);
+            return true;
+        });
+    }
+
+    // Find and print the k books closest to a target book ID; the outward walk
+    // follows parent links, so it runs under the read lock
+    public String findClosestK(int targetId, int k) {
+        StringBuilder result = new StringBuilder();
+        long stamp = lock.readLock();
+        try {
+            for (RedBlackNode book : rbTree.closestBooks(targetId, k))
+                render(book, result);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return result.toString();
+    }
+
+    // Count the books with IDs in [bookId1, bookId2]; the counting walks use the
+    // subtree sizes, which rotations change, so they run under the read lock
+    public String countBooks(int bookId1, int bookId2) {
+        long stamp = lock.readLock();
+        try {
+            return "Book Count : " + rbTree.count(bookId1, bookId2) + "\n";
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Print the 1-based position of a book in ascending order of ID
+    public String rankOf(int bookId) {
+        long stamp = lock.readLock();
+        try {
+            if (rbTree.printBook(bookId) == null)
+                return "Book " + bookId + " not found in the library\n";
+            return "Rank of Book " + bookId + " : " + rbTree.countBelow(bookId, true) + "\n";
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Print the book at a 1-based position in ascending order of ID
+    public String nthBook(int rank) {
+        StringBuilder result = new StringBuilder();
+        long stamp = lock.readLock();
+        try {
+            RedBlackNode book = rbTree.select(rank);
+            if (book == nil)
+                result.append("No book with rank ").append(rank).append(" in the library\n");
+            else
+                render(book, result);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return result.toString();
+    }
+
+    // Print one page of the books with IDs in [bookId1, bookId2]
+    public String printBooksPage(int bookId1, int bookId2, int offset, int limit) {
+        StringBuilder result = new StringBuilder();
+        long stamp = lock.readLock();
+        try {
+            for (RedBlackNode book : rbTree.booksPage(bookId1, bookId2, offset, limit))
+                render(book, result);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return result.toString();
+    }
+
+    // Print the number of available books with IDs in [bookId1, bookId2]; the scan
+    // may fan out to stream workers that read books without their monitors, so it
+    // takes the write lock and circulation pauses meanwhile
+    public String countAvailable(int bookId1, int bookId2) {
+        long stamp = lock.writeLock();
+        try {
+            return "Available Book Count : " + rbTree.availableBooks(bookId1, bookId2) + "\n";
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Print the n books with the longest waitlists under the write lock, as for
+    // countAvailable
+    public String topWaitlists(int n) {
+        StringWriter result = new StringWriter();
+        OutputSink out = new OutputSink(result, Integer.MAX_VALUE);
+        long stamp = lock.writeLock();
+        try {
+            rbTree.waitlistRanking(n).appendTo(out);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return close(out, result);
+    }
+
+    // Print the books whose title starts with a prefix; the index and the lookups
+    // of the matches run under the read lock
+    public String findByTitle(String prefix) {
+        return findMatches(prefix, "title", true);
+    }
+
+    // Print the books whose author starts with a prefix
+    public String findByAuthor(String prefix) {
+        return findMatches(prefix, "author", false);
+    }
+
+    // Run a prefix search on the title or author index under the read lock
+    private String findMatches(String prefix, String field, boolean byTitle) {
+        StringWriter result = new StringWriter();
+        OutputSink out = new OutputSink(result, Integer.MAX_VALUE);
+        long stamp = lock.readLock();
+        try {
+            List<RedBlackNode> books = byTitle ? rbTree.booksWithTitle(prefix) : rbTree.booksWithAuthor(prefix);
+            if (books.isEmpty())
+                out.appendNoMatches(field, prefix);
+            for (RedBlackNode book : books) {
+                synchronized (book) {
+                    rbTree.appendRecord(out, book).append('\n');
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return close(out, result);
+    }
+
+    // Get the count of color flips in the tree
+    public String colorFlipCount() {
+        return read((result, stamp) -> {
+            result.append("Color Flip Count : ").append(rbTree.flipCount).append('\n');
+            return true;
+        });
+    }
+
+    // Check the red-black properties of the tree under the read lock
+    public void checkInvariants() {
+        long stamp = lock.readLock();
+        try {
+            rbTree.checkInvariants();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Number of books on the longest path from the root to a leaf
+    public int height() {
+        long stamp = lock.readLock();
+        try {
+            return rbTree.height();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Number of black books on every path from the root to a leaf
+    public int blackHeight() {
+        long stamp = lock.readLock();
+        try {
+            return rbTree.blackHeight();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Run a lookup optimistically, falling back to the read lock if a write
+    // overlapped it
+    private String read(Lookup lookup) {
+        StringBuilder result = new StringBuilder();
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                if (lookup.read(result, stamp) && lock.validate(stamp))
+                    return result.toString();
+            } catch (RuntimeException e) {
+                // The walk saw the tree halfway through a write; retry below
+            }
+            result.setLength(0);
+        }
+        stamp = lock.readLock();
+        try {
+            lookup.read(result, stamp);
+            return result.toString();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Append a book record, holding the book's lock so that a concurrent borrow
+    // or return is never seen halfway, nor cached after it
+    private void render(RedBlackNode book, StringBuilder result) {
+        synchronized (book) {
+            rbTree.appendRecord(result, book);
+        }
+        result.append('\n');
+    }
+
+    // Flush a per-call sink and return what was written to it
+    private static String close(OutputSink out, StringWriter result) {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result.toString();
+    }
+}
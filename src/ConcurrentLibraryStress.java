@@ -0,0 +1,134 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Multi-threaded stress run for ConcurrentLibrary. The first phase mixes inserts,
+// deletes, borrows, returns and lookups from many threads while checking that every
+// range scan comes back in order, then checks the red-black invariants. The second
+// phase has all threads reserve one book at once and checks that returning it hands
+// the book out in priority order.
+//
+// Usage: java ConcurrentLibraryStress [threads] [operationsPerThread]
+public class ConcurrentLibraryStress {
+
+    private static final int BOOK_IDS = 2_000; // Book IDs are drawn from [0, BOOK_IDS)
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        mixedWorkload(threads, operations);
+        reservationOrder(threads);
+        System.out.println("ConcurrentLibrary stress run passed");
+    }
+
+    // Run a random mix of commands from every thread and check the tree afterwards
+    private static void mixedWorkload(int threads, int operations) throws Exception {
+        ConcurrentLibrary library = new ConcurrentLibrary(new RedBlackTree());
+        for (int bookId = 0; bookId < BOOK_IDS; bookId += 2) {
+            library.insertBook(bookId, "Title" + bookId, "Author" + bookId, "Yes");
+        }
+        runThreads(threads, thread -> {
+            Random random = new Random(thread);
+            for (int i = 0; i < operations; i++) {
+                int bookId = random.nextInt(BOOK_IDS);
+                int patronId = random.nextInt(100);
+                switch (random.nextInt(8)) {
+                    case 0:
+                        library.insertBook(bookId, "Title" + bookId, "Author" + bookId, "Yes");
+                        break;
+                    case 1:
+                        library.deleteBook(bookId);
+                        break;
+                    case 2:
+                        library.borrowBook(patronId, bookId, random.nextInt(10));
+                        break;
+                    case 3:
+                        library.returnBook(patronId, bookId);
+                        break;
+                    case 4:
+                        checkAscending(library.printBooks(bookId, bookId + 50));
+                        break;
+                    case 5:
+                        library.findClosestBook(bookId);
+                        break;
+                    default:
+                        library.printBook(bookId);
+                }
+            }
+        });
+        library.checkInvariants();
+    }
+
+    // Reserve one book from every thread at once, then check the allotment order
+    private static void reservationOrder(int threads) throws Exception {
+        ConcurrentLibrary library = new ConcurrentLibrary(new RedBlackTree());
+        int bookId = 1;
+        library.insertBook(bookId, "Title", "Author", "Yes");
+        library.borrowBook(0, bookId, 1);
+        Map<Integer, Integer> priorities = new ConcurrentHashMap<>();
+        AtomicInteger nextPatron = new AtomicInteger(1);
+        runThreads(threads, thread -> {
+            Random random = new Random(thread);
+            for (int i = 0; i < 500; i++) {
+                int patronId = nextPatron.getAndIncrement();
+                int priority = random.nextInt(20);
+                priorities.put(patronId, priority);
+                library.borrowBook(patronId, bookId, priority);
+                library.printBook(bookId);
+            }
+        });
+
+        int holder = 0, previousPriority = Integer.MIN_VALUE;
+        for (int allotted = 0; allotted < priorities.size(); allotted++) {
+            String output = library.returnBook(holder, bookId);
+            int marker = output.indexOf("Allotted to Patron ");
+            if (marker < 0)
+                throw new IllegalStateException("Book was not allotted after return: " + output);
+            holder = Integer.parseInt(output.substring(marker + 19).trim());
+            int priority = priorities.get(holder);
+            if (priority < previousPriority)
+                throw new IllegalStateException("Patron " + holder + " was allotted out of priority order");
+            previousPriority = priority;
+        }
+    }
+
+    // Check that the book IDs of a PrintBooks result are strictly ascending
+    private static void checkAscending(String books) {
+        int previous = Integer.MIN_VALUE;
+        for (int at = books.indexOf("BookID = "); at >= 0; at = books.indexOf("BookID = ", at + 1)) {
+            int end = books.indexOf('\n', at);
+            int bookId = Integer.parseInt(books.substring(at + 9, end));
+            if (bookId <= previous)
+                throw new IllegalStateException("Range scan out of order at book " + bookId);
+            previous = bookId;
+        }
+    }
+
+    // Body of a stress thread
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    // Start the workers together and rethrow the first failure
+    private static void runThreads(int threads, Worker worker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int thread = 0; thread < threads; thread++) {
+            int id = thread;
+            futures.add(executor.submit(() -> {
+                start.await();
+                worker.run(id);
+                return null;
+            }));
+        }
+        start.countDown();
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -1,5 +1,9 @@
 // Class representing an empty node used in the Red-Black Tree
 public class EmptyRBNode {
-    // Static instance of RedBlackNode representing an empty node (nil) in the Red-Black Tree
-    static RedBlackNode nil = new RedBlackNode(-1);
+    // Create the empty node (nil) of one Red-Black Tree. Every tree owns its own,
+    // because deletes park a parent link in it; trees on different threads, such
+    // as the shards of ShardedLibrary, would otherwise overwrite each other's link
+    static RedBlackNode create() {
+        return new RedBlackNode(-1);
+    }
 }
@@ -0,0 +1,72 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Differential check of the incremental color flip counter. Replays every
+// tests/input_file*.txt and a set of seeded WorkloadGenerator scripts on a
+// RedBlackTree running with -Dgatorlibrary.verifyFlips=true, so that every insert,
+// delete and bulk load compares the counter with the full-tree color snapshot diff
+// and throws on the first mismatch. Started without the flag, the check runs again
+// in a child JVM that has it.
+//
+// Usage: java FlipCountCheck [seeds] [commands] [testDirectory]
+public class FlipCountCheck {
+
+    public static void main(String[] args) throws Exception {
+        if (!RedBlackTree.VERIFY_FLIPS) {
+            List<String> command = new ArrayList<>(List.of(
+                    Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp",
+                    System.getProperty("java.class.path"), "-Dgatorlibrary.verifyFlips=true", "FlipCountCheck"));
+            command.addAll(Arrays.asList(args));
+            System.exit(new ProcessBuilder(command).inheritIO().start().waitFor());
+        }
+        int seeds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int commands = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        Path tests = Paths.get(args.length > 2 ? args[2] : "tests");
+
+        List<Path> inputs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(tests, "input_file*.txt")) {
+            for (Path file : files)
+                inputs.add(file);
+        }
+        if (inputs.isEmpty())
+            throw new IllegalStateException("No input files in " + tests);
+        Collections.sort(inputs);
+        for (Path input : inputs)
+            replay(input);
+
+        // Insert and delete heavy workloads, every other one loading its catalog in bulk
+        Path directory = Files.createTempDirectory("library-flips");
+        for (int seed = 0; seed < seeds; seed++) {
+            Path input = directory.resolve("workload-" + seed + ".txt");
+            List<String> options = new ArrayList<>(List.of(input.toString(), "-books", "2000", "-commands",
+                    String.valueOf(commands), "-patrons", "200", "-seed", String.valueOf(seed), "-mix",
+                    "insert=25,delete=20,borrow=20,return=20,print=10,flips=5"));
+            if (seed % 2 == 1)
+                options.add("-bulk");
+            WorkloadGenerator.main(options.toArray(new String[0]));
+            replay(input);
+            Files.delete(input);
+        }
+        Files.delete(directory);
+        System.out.println("Color flip count check passed");
+    }
+
+    // Run a command file on a RedBlackTree, discarding the output; the tree throws
+    // as soon as its counter disagrees with the snapshot diff
+    private static void replay(Path input) throws IOException {
+        OutputSink out = new OutputSink(Writer.nullWriter(), OutputSink.DEFAULT_BUFFER_SIZE);
+        RedBlackTree rbTree = new RedBlackTree(out);
+        GatorLibrary library = new GatorLibrary(rbTree, out);
+        try (InputStream in = new FileInputStream(input.toFile())) {
+            CommandParser row = new CommandParser(in);
+            while (row.next() && library.parse(row)) {
+            }
+            library.endCirculation();
+            library.endBulkInsert();
+        } catch (IllegalStateException e) {
+            throw new IllegalStateException(input + ": " + e.getMessage(), e);
+        }
+        System.out.printf("%s: %,d color flips verified%n", input.getFileName(), rbTree.flipCount);
+    }
+}
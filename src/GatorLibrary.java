@@ -1,11 +1,42 @@
 import java.io.*;
+import java.nio.file.Paths;
+import java.util.*;
 
 public class GatorLibrary {
 
-    // Constants for delimiters
-    private static final String COMMA = ",";
-    private static final String OPEN_PARENTHESIS = "(";
-    private static final String CLOSED_PARENTHESIS = ")";
+    // Number of consecutive BorrowBook and ReturnBook rows gathered into one batch
+    // while more input is already buffered; 0, the default, runs every row on its
+    // own, as batching costs more than it saves on the measured workloads
+    // (-Dgatorlibrary.batchWindow=<n>)
+    static final int BATCH_WINDOW = Integer.getInteger("gatorlibrary.batchWindow", 0);
+
+    private final Catalog rbTree; // Tree holding the library catalog
+    private final OutputSink out; // Destination of the command results
+    private final CommandLog log; // Write-ahead log of the changes, null if not logged
+    private List<RedBlackNode> bulkBooks; // Books collected after BulkInsertBooks, null otherwise
+    private final CirculationBatch circulation = new CirculationBatch(); // Borrows and returns not yet run
+    private Command circulationBatch; // BorrowBooks or ReturnBooks while such a batch is open, null otherwise
+    private boolean queued; // Whether the current row joined the circulation batch
+    private long batchNanos; // Time spent running circulation batches during the current row
+    private Timer timer; // Receives the time taken by every command, null if none
+
+    // Receiver of the time taken by each command, for latency reports
+    interface Timer {
+        void completed(Command command, long nanos);
+    }
+
+    // Constructor to run commands against a tree, writing results to a sink
+    public GatorLibrary(Catalog rbTree, OutputSink out) {
+        this(rbTree, out, null);
+    }
+
+    // Constructor to run commands against a tree, logging every change to a
+    // write-ahead log before it is made
+    GatorLibrary(Catalog rbTree, OutputSink out, CommandLog log) {
+        this.rbTree = rbTree;
+        this.out = out;
+        this.log = log;
+    }
 
     public static void main(String[] args) {
         try {
@@ -13,19 +44,53 @@ public class GatorLibrary {
             String fileName = args[0];
 
             // Open the file for reading
-            BufferedReader bufferedReader = new BufferedReader(new FileReader(new File(fileName)));
+            CommandParser parser = new CommandParser(new FileInputStream(fileName));
 
-            // Initialize a RedBlackTree to manage library operations
-            RedBlackTree rbTree = new RedBlackTree();
-            String row;
+            // Open the output file, which is written as results are produced
+            int extension = fileName.lastIndexOf(".");
+            OutputSink out = new OutputSink(
+                    (extension > 0 ? fileName.substring(0, extension) : fileName) + "_output_file.txt");
 
-            // Read each line from the input file and process it
-            while ((row = bufferedReader.readLine()) != null) {
-                parse(rbTree, row, fileName.substring(0, fileName.indexOf(".")));
-            }
+            try {
+                if (ShardedLibrary.SHARDS > 1) {
+                    // Spread the commands over RedBlackTree shards on their own threads
+                    if (CommandLog.PATH != null)
+                        throw new IllegalArgumentException("The command log needs a single tree, not shards");
+                    ShardedLibrary library = new ShardedLibrary(ShardedLibrary.SHARDS, ShardedLibrary.MAX_BOOK_ID,
+                            out);
+                    try {
+                        while (parser.next() && library.submit(parser)) {
+                        }
+                    } finally {
+                        library.finish();
+                    }
+                } else {
+                    // Initialize a RedBlackTree to manage library operations, recovering
+                    // the catalog from the write-ahead log if one is configured
+                    Catalog rbTree = Catalog.create(out);
+                    CommandLog log = null;
+                    if (CommandLog.PATH != null) {
+                        if (!(rbTree instanceof RedBlackTree))
+                            throw new IllegalArgumentException("The command log needs the object storage");
+                        log = CommandLog.open(Paths.get(CommandLog.PATH), (RedBlackTree) rbTree);
+                    }
+                    GatorLibrary library = new GatorLibrary(rbTree, out, log);
 
-            // Create and write the output file
-            createOutput(fileName);
+                    // Read each command from the input file and process it
+                    try {
+                        while (parser.next() && library.parse(parser)) {
+                        }
+                        library.endCirculation();
+                        library.endBulkInsert();
+                    } finally {
+                        if (log != null)
+                            log.close();
+                    }
+                }
+            } finally {
+                // Write out whatever output is still buffered
+                out.close();
+            }
 
         } catch (Exception e) {
             // Print any exceptions that occur during execution
@@ -33,67 +98,248 @@ public class GatorLibrary {
         }
     }
 
-    // Parse the input row and perform corresponding operation on the RedBlackTree
-    private static void parse(RedBlackTree rbTree, String row, String fileName) throws IOException {
-        // Remove double quotes from the row
-        row = row.replaceAll("\"", "");
-
-        // Extract operation and arguments from the row
-        int start = row.indexOf(OPEN_PARENTHESIS);
-        int end = row.indexOf(CLOSED_PARENTHESIS);
-        String[] argArray = row.substring(start + 1, end).split(COMMA);
-        String operation = row.substring(0, start);
-
-        // Perform the specified operation based on the parsed input
-        if (operation.equals("InsertBook")) {
-            // Insert a book into the RedBlackTree
-            rbTree.insertBook(Integer.parseInt(argArray[0].trim()), argArray[1].trim(), argArray[2].trim(),
-                    argArray[3].trim());
-        } else if (operation.equals("PrintBook")) {
-            // Print information about a specific book
-            RedBlackNode book = rbTree.printBook(Integer.parseInt(argArray[0].trim()));
-            if (book == null) {
-                RedBlackTree.resultString
-                        .append("Book " + Integer.parseInt(argArray[0].trim()) + " not found in the library\n");
-            } else {
-                RedBlackTree.resultString.append(book + "\n");
+    // Report the time taken by every command to a timer as well as to the metrics
+    void setTimer(Timer timer) {
+        this.timer = timer;
+    }
+
+    // Perform the operation of the current input row on the RedBlackTree, timing it
+    // when metrics are enabled or a timer is set; a row that joins a circulation
+    // batch is timed with the batch instead. Returns false once the row was Quit.
+    boolean parse(CommandParser row) throws IOException {
+        if (!LibraryMetrics.ENABLED && timer == null)
+            return execute(row);
+        long start = System.nanoTime();
+        batchNanos = 0;
+        boolean more = execute(row);
+        if (!queued)
+            completed(row.command(), System.nanoTime() - start - batchNanos);
+        return more;
+    }
+
+    // Record the time taken by one command
+    private void completed(Command command, long nanos) {
+        if (LibraryMetrics.ENABLED)
+            LibraryMetrics.INSTANCE.commandCompleted(command, nanos, rbTree);
+        if (timer != null)
+            timer.completed(command, nanos);
+    }
+
+    // Perform the operation of the current input row on the RedBlackTree; returns
+    // false once the row was Quit
+    private boolean execute(CommandParser row) throws IOException {
+        Command operation = row.command();
+        queued = false;
+        if (bulkBooks != null && operation != Command.INSERT_BOOK) {
+            // Any other operation ends a bulk insert batch
+            endBulkInsert();
+        }
+        if (circulationBatch != null && !batches(operation)) {
+            // Any other operation ends a BorrowBooks or ReturnBooks batch
+            circulationBatch = null;
+        }
+        if (!circulation.isEmpty() && !batches(operation)) {
+            // Run the pending borrows and returns before anything else
+            endCirculation();
+        }
+        if (operation == null || row.argumentCount() < operation.arguments()) {
+            // Handle invalid GatorLibrary operation, after the borrows and returns before it
+            endCirculation();
+            out.append("Invalid GatorLibrary operation\n");
+            return true;
+        }
+        try {
+            switch (operation) {
+                case INSERT_BOOK:
+                    if (bulkBooks != null) {
+                        // Collect the book for the bulk load
+                        bulkBooks.add(new RedBlackNode(row.intArgument(0), row.stringArgument(1),
+                                row.stringArgument(2), row.argumentEquals(3, "Yes")));
+                    } else {
+                        // Insert a book into the RedBlackTree
+                        if (log != null)
+                            log.insertBook(row.intArgument(0), row.stringArgument(1), row.stringArgument(2),
+                                    row.argumentEquals(3, "Yes"));
+                        rbTree.insertBook(row.intArgument(0), row.stringArgument(1), row.stringArgument(2),
+                                row.argumentEquals(3, "Yes") ? "Yes" : "No");
+                    }
+                    break;
+                case BULK_INSERT_BOOKS:
+                    // Collect the InsertBook rows that follow and load them together
+                    bulkBooks = new ArrayList<>();
+                    break;
+                case PRINT_BOOK:
+                    // Print information about a specific book
+                    rbTree.printBookRecord(row.intArgument(0));
+                    break;
+                case PRINT_BOOKS:
+                    // Print information about a range of books
+                    rbTree.printBooks(row.intArgument(0), row.intArgument(1));
+                    break;
+                case BORROW_BOOK:
+                    // Borrow a book from the library, or queue the borrow in the batch
+                    if (log != null)
+                        log.borrowBook(row.intArgument(0), row.intArgument(1), row.intArgument(2));
+                    if (batches(operation)) {
+                        circulation.borrowBook(row.intArgument(0), row.intArgument(1), row.intArgument(2));
+                        queued = true;
+                    } else {
+                        rbTree.borrowBook(row.intArgument(0), row.intArgument(1), row.intArgument(2));
+                    }
+                    break;
+                case RETURN_BOOK:
+                    // Return a borrowed book to the library, or queue the return in the batch
+                    if (log != null)
+                        log.returnBook(row.intArgument(0), row.intArgument(1));
+                    if (batches(operation)) {
+                        circulation.returnBook(row.intArgument(0), row.intArgument(1));
+                        queued = true;
+                    } else {
+                        rbTree.returnBook(row.intArgument(0), row.intArgument(1));
+                    }
+                    break;
+                case BORROW_BOOKS:
+                case RETURN_BOOKS:
+                    // Collect the BorrowBook or ReturnBook rows that follow and run them together
+                    circulationBatch = operation;
+                    break;
+                case DELETE_BOOK:
+                    // Delete a book from the library
+                    if (log != null)
+                        log.deleteBook(row.intArgument(0));
+                    rbTree.deleteBook(row.intArgument(0));
+                    break;
+                case FIND_CLOSEST_BOOK:
+                    // Find the closest book in the library
+                    rbTree.findClosestBook(row.intArgument(0));
+                    break;
+                case FIND_CLOSEST_K:
+                    // Find the k closest books in the library
+                    rbTree.findClosestK(row.intArgument(0), row.intArgument(1));
+                    break;
+                case COLOR_FLIP_COUNT:
+                    // Get the count of color flips in the RedBlackTree
+                    rbTree.getColorFlipCount();
+                    break;
+                case PRINT_PATRON:
+                    // Print the books a patron has borrowed and reserved
+                    rbTree.printPatron(row.intArgument(0));
+                    break;
+                case CANCEL_ALL_RESERVATIONS:
+                    // Cancel every reservation of a patron
+                    if (log != null)
+                        log.cancelAllReservations(row.intArgument(0));
+                    rbTree.cancelAllReservations(row.intArgument(0));
+                    break;
+                case CANCEL_RESERVATION:
+                    // Cancel the reservation of a patron on a book
+                    if (log != null)
+                        log.cancelReservation(row.intArgument(0), row.intArgument(1));
+                    rbTree.cancelReservation(row.intArgument(0), row.intArgument(1));
+                    break;
+                case UPDATE_PRIORITY:
+                    // Give the reservation of a patron on a book a new priority
+                    if (log != null)
+                        log.updatePriority(row.intArgument(0), row.intArgument(1), row.intArgument(2));
+                    rbTree.updatePriority(row.intArgument(0), row.intArgument(1), row.intArgument(2));
+                    break;
+                case COUNT_BOOKS:
+                    // Count the books in a range of book IDs
+                    rbTree.countBooks(row.intArgument(0), row.intArgument(1));
+                    break;
+                case RANK_OF:
+                    // Print the position of a book in ascending order of ID
+                    rbTree.rankOf(row.intArgument(0));
+                    break;
+                case NTH_BOOK:
+                    // Print the book at a position in ascending order of ID
+                    rbTree.nthBook(row.intArgument(0));
+                    break;
+                case PRINT_BOOKS_PAGE:
+                    // Print one page of a range of books
+                    rbTree.printBooksPage(row.intArgument(0), row.intArgument(1), row.intArgument(2),
+                            row.intArgument(3));
+                    break;
+                case COUNT_AVAILABLE:
+                    // Count the available books in a range of book IDs
+                    rbTree.countAvailable(row.intArgument(0), row.intArgument(1));
+                    break;
+                case TOP_WAITLISTS:
+                    // Print the books with the longest waitlists
+                    rbTree.topWaitlists(row.intArgument(0));
+                    break;
+                case FIND_BY_TITLE:
+                    // Find the books whose title starts with a prefix
+                    rbTree.findByTitle(row.stringArgument(0));
+                    break;
+                case FIND_BY_AUTHOR:
+                    // Find the books whose author starts with a prefix
+                    rbTree.findByAuthor(row.stringArgument(0));
+                    break;
+                case SNAPSHOT:
+                    // Save the catalog to a snapshot file, which the log then starts from
+                    if (log != null)
+                        log.beginCheckpoint();
+                    if (rbTree.snapshot(row.stringArgument(0)) && log != null)
+                        log.checkpoint(row.stringArgument(0));
+                    break;
+                case RESTORE:
+                    // Replace the catalog with a saved snapshot
+                    if (rbTree.restore(row.stringArgument(0)) && log != null)
+                        log.checkpoint(row.stringArgument(0));
+                    break;
+                case QUIT:
+                    // Print the termination message and stop reading commands
+                    rbTree.quit();
+                    return false;
             }
-        } else if (operation.equals("PrintBooks")) {
-            // Print information about a range of books
-            rbTree.printBooks(Integer.parseInt(argArray[0].trim()), Integer.parseInt(argArray[1].trim()));
-        } else if (operation.equals("BorrowBook")) {
-            // Borrow a book from the library
-            rbTree.borrowBook(Integer.parseInt(argArray[0].trim()), Integer.parseInt(argArray[1].trim()),
-                    Integer.parseInt(argArray[2].trim()));
-        } else if (operation.equals("ReturnBook")) {
-            // Return a borrowed book to the library
-            rbTree.returnBook(Integer.parseInt(argArray[0].trim()), Integer.parseInt(argArray[1].trim()));
-        } else if (operation.equals("DeleteBook")) {
-            // Delete a book from the library
-            rbTree.deleteBook(Integer.parseInt(argArray[0].trim()));
-        } else if (operation.equals("FindClosestBook")) {
-            // Find the closest book in the library
-            rbTree.findClosestBook(Integer.parseInt(argArray[0].trim()));
-        } else if (operation.equals("ColorFlipCount")) {
-            // Get the count of color flips in the RedBlackTree
-            rbTree.getColorFlipCount();
-        } else if (operation.equals("Quit")) {
-            // Quit the program, create output file, and exit
-            rbTree.quit();
-            createOutput(fileName);
-            System.exit(0);
+        } catch (NumberFormatException e) {
+            // Handle malformed numeric arguments, after the borrows and returns before them
+            endCirculation();
+            out.append("Invalid GatorLibrary operation\n");
+        }
+        if (queued && ((circulationBatch == null && circulation.size() >= BATCH_WINDOW) || !row.hasBufferedInput())) {
+            // Run the batch once the window is full, and never leave it waiting on input
+            endCirculation();
+        }
+        return true;
+    }
+
+    // Whether rows of an operation join the circulation batch: the rows named by an
+    // open BorrowBooks or ReturnBooks batch, and otherwise any borrow or return
+    // while automatic batching is on
+    private boolean batches(Command operation) {
+        if (circulationBatch != null)
+            return operation == (circulationBatch == Command.BORROW_BOOKS ? Command.BORROW_BOOK : Command.RETURN_BOOK);
+        return BATCH_WINDOW > 0 && (operation == Command.BORROW_BOOK || operation == Command.RETURN_BOOK);
+    }
+
+    // Run the borrows and returns collected in the circulation batch, spreading the
+    // time taken over them when metrics are enabled or a timer is set
+    void endCirculation() {
+        if (circulation.isEmpty())
+            return;
+        if (!LibraryMetrics.ENABLED && timer == null) {
+            rbTree.circulate(circulation);
         } else {
-            // Handle invalid GatorLibrary operation
-            RedBlackTree.resultString.append("Invalid GatorLibrary operation\n");
+            long start = System.nanoTime();
+            rbTree.circulate(circulation);
+            long nanos = System.nanoTime() - start;
+            for (int i = 0; i < circulation.size(); i++)
+                completed(circulation.isReturn(i) ? Command.RETURN_BOOK : Command.BORROW_BOOK,
+                        nanos / circulation.size());
+            batchNanos += nanos;
         }
+        circulation.clear();
     }
 
-    // Create an output file and write the resultString to it
-    private static void createOutput(String fileName) throws IOException {
-        FileWriter fileWriter = new FileWriter(fileName + "_output_file.txt");
-        BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-        bufferedWriter.write(String.valueOf(RedBlackTree.resultString));
-        bufferedWriter.close();
-        fileWriter.close();
+    // Load the books collected since BulkInsertBooks into the tree
+    void endBulkInsert() throws IOException {
+        if (bulkBooks != null) {
+            if (log != null)
+                log.bulkLoad(bulkBooks);
+            rbTree.bulkLoad(bulkBooks);
+            bulkBooks = null;
+        }
     }
 }
@@ -0,0 +1,116 @@
+// Hash map from int keys to objects, without boxing the keys. Entries live in an
+// open-addressing table with linear probing over a primitive key array; a removal
+// shifts back the entries that probed past the freed slot instead of leaving a
+// tombstone, so lookups never slow down as entries come and go. Values must not be
+// null, since a null value marks a free slot. Not thread-safe.
+class IntMap<V> {
+    private static final int MIN_CAPACITY = 8; // Slots of the smallest table, a power of two
+
+    private int[] keys; // Key of each slot
+    private Object[] values; // Value of each slot, null if the slot is free
+    private int size; // Number of entries
+
+    // Constructor to create an empty map sized for the given number of entries
+    IntMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * expectedSize)
+            capacity <<= 1;
+        keys = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    // Number of entries
+    int size() {
+        return size;
+    }
+
+    // Value of a key, or null if it has none
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        int mask = values.length - 1;
+        for (int slot = slotOf(key, mask); values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key)
+                return (V) values[slot];
+        }
+        return null;
+    }
+
+    // Set the value of a key; returns the previous value, or null if it had none
+    @SuppressWarnings("unchecked")
+    V put(int key, V value) {
+        int mask = values.length - 1;
+        int slot = slotOf(key, mask);
+        for (; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+        }
+        if (2 * (size + 1) > values.length) {
+            // Keep the table at most half full
+            resize(2 * values.length);
+            return put(key, value);
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        return null;
+    }
+
+    // Remove a key; returns its value, or null if it had none
+    @SuppressWarnings("unchecked")
+    V remove(int key) {
+        int mask = values.length - 1;
+        int slot = slotOf(key, mask);
+        while (values[slot] != null && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        V removed = (V) values[slot];
+        if (removed == null)
+            return null;
+        int gap = slot;
+        for (int next = (gap + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+            int home = slotOf(keys[next], mask);
+            // Move the entry into the gap unless its home lies cyclically in (gap, next]
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        values[gap] = null;
+        size--;
+        return removed;
+    }
+
+    // Remove every entry
+    void clear() {
+        keys = new int[MIN_CAPACITY];
+        values = new Object[MIN_CAPACITY];
+        size = 0;
+    }
+
+    // Rehash every entry into a table with the given number of slots
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == null)
+                continue;
+            int slot = slotOf(oldKeys[i], mask);
+            while (values[slot] != null)
+                slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    // Home slot of a key, spreading sequential keys with a multiplicative hash
+    private static int slotOf(int key, int mask) {
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
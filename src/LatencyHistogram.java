@@ -0,0 +1,72 @@
+// Log-linear latency histogram in the style of HdrHistogram. Values below 128 are
+// counted exactly; larger values share a bucket with values that have the same 7
+// leading bits, so every recorded value is kept to within 1/64 (about 1.6%).
+// Recording is a couple of shifts and an array increment and never allocates.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7; // Bits of precision kept per value
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // Exact values below this
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2; // Buckets per power of two above it
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 2) * HALF_SUB_BUCKETS];
+    private long totalCount; // Number of recorded values
+    private long maxValue; // Largest recorded value
+
+    // Record one value (negative values are recorded as 0)
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts[indexOf(value)]++;
+        totalCount++;
+        if (value > maxValue)
+            maxValue = value;
+    }
+
+    // Number of recorded values
+    public long count() {
+        return totalCount;
+    }
+
+    // Largest recorded value
+    public long max() {
+        return maxValue;
+    }
+
+    // Value at or below which the given percentage of the recorded values fall,
+    // reported as the largest value of its bucket (0 if nothing was recorded)
+    public long valueAtPercentile(double percentile) {
+        if (totalCount == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int index = 0; index < counts.length; index++) {
+            seen += counts[index];
+            if (seen >= target)
+                return Math.min(highestValueOf(index), maxValue);
+        }
+        return maxValue;
+    }
+
+    // Add the counts of another histogram to this one
+    public void add(LatencyHistogram other) {
+        for (int index = 0; index < counts.length; index++)
+            counts[index] += other.counts[index];
+        totalCount += other.totalCount;
+        maxValue = Math.max(maxValue, other.maxValue);
+    }
+
+    // Bucket of a value
+    private static int indexOf(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        if (shift == 0)
+            return (int) value;
+        return (shift + 1) * HALF_SUB_BUCKETS + (int) (value >>> shift) - HALF_SUB_BUCKETS;
+    }
+
+    // Largest value that falls into a bucket
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        long subBucket = index % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,296 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Long-running library server. The catalog stays loaded in one ConcurrentLibrary and
+// clients send command streams in the usual input file grammar over a Unix domain
+// socket; each connection is served on its own (virtual, where the runtime has them)
+// thread and receives its results as they are produced. Quit ends the client's
+// session, not the server.
+//
+// Usage: java LibraryDaemon <socketPath> [initialCommandFile]
+public class LibraryDaemon {
+
+    private final ConcurrentLibrary library; // Catalog shared by every client
+    private final Path socketPath; // Location of the listening socket
+
+    // Constructor to serve a library on the given socket path
+    public LibraryDaemon(ConcurrentLibrary library, Path socketPath) {
+        this.library = library;
+        this.socketPath = socketPath;
+    }
+
+    public static void main(String[] args) {
+        try {
+            ConcurrentLibrary library = new ConcurrentLibrary(new RedBlackTree());
+            LibraryDaemon daemon = new LibraryDaemon(library, Paths.get(args[0]));
+            if (args.length > 1) {
+                // Preload the catalog, discarding the output of the commands
+                try (InputStream in = new FileInputStream(args[1])) {
+                    daemon.serve(in, new OutputSink(Writer.nullWriter(), OutputSink.DEFAULT_BUFFER_SIZE));
+                }
+            }
+            daemon.run();
+        } catch (Exception e) {
+            // Print any exceptions that occur during execution
+            e.printStackTrace();
+        }
+    }
+
+    // Accept connections until the thread is interrupted
+    public void run() throws IOException {
+        Files.deleteIfExists(socketPath);
+        ExecutorService executor = newThreadPerTaskExecutor();
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            while (!Thread.currentThread().isInterrupted()) {
+                SocketChannel client = server.accept();
+                executor.execute(() -> handle(client));
+            }
+        } finally {
+            executor.shutdown();
+            Files.deleteIfExists(socketPath);
+        }
+    }
+
+    // Serve one client connection
+    private void handle(SocketChannel client) {
+        try (SocketChannel channel = client) {
+            OutputSink out = new OutputSink(
+                    new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8),
+                    OutputSink.DEFAULT_BUFFER_SIZE);
+            serve(Channels.newInputStream(channel), out);
+            out.close();
+        } catch (IOException | UncheckedIOException e) {
+            // The client went away; nothing is left to answer
+        }
+    }
+
+    // Run the commands of a stream against the library until it ends or sends
+    // Quit, flushing the results whenever no further input is waiting. The commands
+    // go through the same GatorLibrary dispatch as a command file, on a catalog that
+    // forwards each operation to the shared library.
+    void serve(InputStream in, OutputSink out) throws IOException {
+        CommandParser row = new CommandParser(in, 1 << 16);
+        GatorLibrary session = new GatorLibrary(new Session(library, out), out);
+        while (row.next()) {
+            if (!session.parse(row)) {
+                out.flush();
+                return;
+            }
+            if (!row.hasBufferedInput())
+                out.flush();
+        }
+        session.endCirculation();
+        session.endBulkInsert();
+        out.flush();
+    }
+
+    // Catalog of one client connection: every operation runs on the shared library
+    // and its result goes to the client's sink
+    private static final class Session implements Catalog {
+        private final ConcurrentLibrary library; // Catalog shared by every client
+        private final OutputSink out; // Results for this client
+
+        // Constructor to forward the operations of one client
+        Session(ConcurrentLibrary library, OutputSink out) {
+            this.library = library;
+            this.out = out;
+        }
+
+        // Insert a book; a book ID that is already present is ignored
+        @Override
+        public void insertBook(int bookId, String bookName, String authorName, String isAvailable) {
+            library.insertBook(bookId, bookName, authorName, isAvailable);
+        }
+
+        // Load a batch of books by rebuilding the tree
+        @Override
+        public void bulkLoad(List<RedBlackNode> books) {
+            library.bulkLoad(books);
+        }
+
+        // Print a book, or that it is not found
+        @Override
+        public void printBookRecord(int bookId) {
+            out.append(library.printBook(bookId));
+        }
+
+        // Print the books with IDs in [bookId1, bookId2]
+        @Override
+        public void printBooks(int bookId1, int bookId2) {
+            out.append(library.printBooks(bookId1, bookId2));
+        }
+
+        // Borrow a book or reserve it for a patron
+        @Override
+        public void borrowBook(int patronId, int bookId, int patronPriority) {
+            out.append(library.borrowBook(patronId, bookId, patronPriority));
+        }
+
+        // Return a borrowed book and allot it to the next patron on the waitlist
+        @Override
+        public void returnBook(int patronId, int bookId) {
+            out.append(library.returnBook(patronId, bookId));
+        }
+
+        // Borrows and returns on different books already run in parallel, so a
+        // batch runs one row at a time
+        @Override
+        public void circulate(CirculationBatch batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.isReturn(i))
+                    returnBook(batch.patronId(i), batch.bookId(i));
+                else
+                    borrowBook(batch.patronId(i), batch.bookId(i), batch.priority(i));
+            }
+        }
+
+        // Delete a book, cancelling its reservations
+        @Override
+        public void deleteBook(int bookId) {
+            out.append(library.deleteBook(bookId));
+        }
+
+        // Print the book closest to a target book ID, or both on a tie
+        @Override
+        public void findClosestBook(int targetId) {
+            out.append(library.findClosestBook(targetId));
+        }
+
+        // Print the k books closest to a target book ID
+        @Override
+        public void findClosestK(int targetId, int k) {
+            out.append(library.findClosestK(targetId, k));
+        }
+
+        // Print the books a patron has borrowed and reserved
+        @Override
+        public void printPatron(int patronId) {
+            out.append(library.printPatron(patronId));
+        }
+
+        // Cancel every reservation of a patron
+        @Override
+        public void cancelAllReservations(int patronId) {
+            out.append(library.cancelAllReservations(patronId));
+        }
+
+        // Cancel the reservation of a patron on a book
+        @Override
+        public void cancelReservation(int patronId, int bookId) {
+            out.append(library.cancelReservation(patronId, bookId));
+        }
+
+        // Give the reservation of a patron on a book a new priority
+        @Override
+        public void updatePriority(int patronId, int bookId, int newPriority) {
+            out.append(library.updatePriority(patronId, bookId, newPriority));
+        }
+
+        // Print the number of books with IDs in [bookId1, bookId2]
+        @Override
+        public void countBooks(int bookId1, int bookId2) {
+            out.append(library.countBooks(bookId1, bookId2));
+        }
+
+        // Print the 1-based position of a book in ascending order of ID
+        @Override
+        public void rankOf(int bookId) {
+            out.append(library.rankOf(bookId));
+        }
+
+        // Print the book at a 1-based position in ascending order of ID
+        @Override
+        public void nthBook(int rank) {
+            out.append(library.nthBook(rank));
+        }
+
+        // Print up to limit books with IDs in [bookId1, bookId2], skipping the first
+        // offset of them
+        @Override
+        public void printBooksPage(int bookId1, int bookId2, int offset, int limit) {
+            out.append(library.printBooksPage(bookId1, bookId2, offset, limit));
+        }
+
+        // Print the number of available books with IDs in [bookId1, bookId2]
+        @Override
+        public void countAvailable(int bookId1, int bookId2) {
+            out.append(library.countAvailable(bookId1, bookId2));
+        }
+
+        // Print the n books with the longest waitlists, longest first
+        @Override
+        public void topWaitlists(int n) {
+            out.append(library.topWaitlists(n));
+        }
+
+        // Print the books whose title starts with a prefix
+        @Override
+        public void findByTitle(String prefix) {
+            out.append(library.findByTitle(prefix));
+        }
+
+        // Print the books whose author starts with a prefix
+        @Override
+        public void findByAuthor(String prefix) {
+            out.append(library.findByAuthor(prefix));
+        }
+
+        // Print the color flip count
+        @Override
+        public void getColorFlipCount() {
+            out.append(library.colorFlipCount());
+        }
+
+        // Save the catalog to a snapshot file; returns whether it was saved
+        @Override
+        public boolean snapshot(String fileName) {
+            return library.snapshot(fileName, out);
+        }
+
+        // Replace the catalog with a saved snapshot; returns whether it was restored
+        @Override
+        public boolean restore(String fileName) {
+            return library.restore(fileName, out);
+        }
+
+        // Number of books on the longest path from the root to a leaf
+        @Override
+        public int height() {
+            return library.height();
+        }
+
+        // Number of black books on every path from the root to a leaf
+        @Override
+        public int blackHeight() {
+            return library.blackHeight();
+        }
+
+        // Quit ends the client's session, not the server
+        @Override
+        public void quit() throws IOException {
+            out.append("Program Terminated!!\n");
+            out.flush();
+        }
+    }
+
+    // Executor starting one virtual thread per task when the runtime supports them
+    // (Java 21+), and otherwise one platform thread per task
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "library-client");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
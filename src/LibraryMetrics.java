@@ -0,0 +1,234 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Counters and timers for the tree, the reservation heaps and the command loop,
+// published as the JMX MBean gatorlibrary:type=LibraryMetrics and optionally dumped
+// to standard error at a fixed interval. Metrics are off unless
+// -Dgatorlibrary.metrics=true is given; every call site is guarded by the constant
+// ENABLED, so the JIT removes the instrumentation entirely when they are off.
+//
+// Counters are shared by every tree in the process and may be updated from several
+// threads. The tree height and black height are measured by the thread running the
+// commands, after the next command once a reader has asked for them, so that the
+// tree is never walked while it is being changed.
+public class LibraryMetrics implements LibraryMetricsMBean {
+    // Whether metrics are collected (-Dgatorlibrary.metrics=true)
+    static final boolean ENABLED = Boolean.getBoolean("gatorlibrary.metrics");
+
+    // Seconds between metric dumps to standard error, 0 for none
+    // (-Dgatorlibrary.metricsInterval=<seconds>)
+    static final int DUMP_INTERVAL = Integer.getInteger("gatorlibrary.metricsInterval", 0);
+
+    // The process-wide metrics, null when metrics are off
+    static final LibraryMetrics INSTANCE = ENABLED ? start(new LibraryMetrics()) : null;
+
+    private final LongAdder rotations = new LongAdder();
+    private final LongAdder insertFixups = new LongAdder();
+    private final LongAdder deleteFixups = new LongAdder();
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder searchSteps = new LongAdder(); // Books visited over all searches
+    private final LongAccumulator maxSearchPath = new LongAccumulator(Math::max, 0);
+    private final LongAdder recordCacheHits = new LongAdder();
+    private final LongAdder recordCacheMisses = new LongAdder();
+
+    // Books by waitlist length; index i counts lengths in [2^(i-1), 2^i - 1]
+    private final AtomicLongArray waitlists = new AtomicLongArray(32);
+
+    // Latency of each command, by Command ordinal, and of invalid commands last
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Command.values().length + 1];
+
+    private volatile boolean shapeRequested = true; // Measure the tree after the next command
+    private volatile int treeHeight; // Height of the tree when last measured
+    private volatile int blackHeight; // Black height of the tree when last measured
+
+    private LibraryMetrics() {
+        for (int i = 0; i < latencies.length; i++)
+            latencies[i] = new LatencyHistogram();
+    }
+
+    // Register the metrics with the platform MBean server and start the periodic dump
+    private static LibraryMetrics start(LibraryMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("gatorlibrary:type=LibraryMetrics"));
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register the library metrics", e);
+        }
+        if (DUMP_INTERVAL > 0) {
+            Thread dumper = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(DUMP_INTERVAL * 1000L);
+                        System.err.print(metrics.report());
+                    }
+                } catch (InterruptedException e) {
+                    // Stop dumping
+                }
+            }, "library-metrics");
+            dumper.setDaemon(true);
+            dumper.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(metrics.report())));
+        }
+        return metrics;
+    }
+
+    // Record a rotation
+    void rotated() {
+        rotations.increment();
+    }
+
+    // Record an iteration of the insert fix-up loop
+    void insertFixupIteration() {
+        insertFixups.increment();
+    }
+
+    // Record an iteration of the delete fix-up loop
+    void deleteFixupIteration() {
+        deleteFixups.increment();
+    }
+
+    // Record a lookup that visited the given number of books
+    void searched(int pathLength) {
+        searches.increment();
+        searchSteps.add(pathLength);
+        maxSearchPath.accumulate(pathLength);
+    }
+
+    // Record a book record printed from the record cache
+    void recordCacheHit() {
+        recordCacheHits.increment();
+    }
+
+    // Record a book record formatted because it was not cached or dirty
+    void recordCacheMissed() {
+        recordCacheMisses.increment();
+    }
+
+    // Record that a book's waitlist went from one length to another
+    void waitlistResized(int before, int after) {
+        if (before > 0)
+            waitlists.decrementAndGet(32 - Integer.numberOfLeadingZeros(before));
+        if (after > 0)
+            waitlists.incrementAndGet(32 - Integer.numberOfLeadingZeros(after));
+    }
+
+    // Record a command run against the given tree, measuring the tree if a reader
+    // has asked for its shape since the last measurement
+    void commandCompleted(Command command, long nanos, Catalog rbTree) {
+        LatencyHistogram histogram = latencies[command == null ? latencies.length - 1 : command.ordinal()];
+        synchronized (histogram) {
+            histogram.record(nanos);
+        }
+        if (shapeRequested) {
+            shapeRequested = false;
+            treeHeight = rbTree.height();
+            blackHeight = rbTree.blackHeight();
+        }
+    }
+
+    @Override
+    public long getRotations() {
+        return rotations.sum();
+    }
+
+    @Override
+    public long getInsertFixupIterations() {
+        return insertFixups.sum();
+    }
+
+    @Override
+    public long getDeleteFixupIterations() {
+        return deleteFixups.sum();
+    }
+
+    @Override
+    public long getSearches() {
+        return searches.sum();
+    }
+
+    @Override
+    public double getAverageSearchPathLength() {
+        long count = searches.sum();
+        return count == 0 ? 0 : (double) searchSteps.sum() / count;
+    }
+
+    @Override
+    public long getMaxSearchPathLength() {
+        return maxSearchPath.get();
+    }
+
+    @Override
+    public long getRecordCacheHits() {
+        return recordCacheHits.sum();
+    }
+
+    @Override
+    public long getRecordCacheMisses() {
+        return recordCacheMisses.sum();
+    }
+
+    @Override
+    public int getTreeHeight() {
+        shapeRequested = true;
+        return treeHeight;
+    }
+
+    @Override
+    public int getBlackHeight() {
+        shapeRequested = true;
+        return blackHeight;
+    }
+
+    @Override
+    public String[] getWaitlistLengthDistribution() {
+        List<String> rows = new ArrayList<>();
+        for (int i = 1; i < waitlists.length(); i++) {
+            long books = waitlists.get(i);
+            if (books == 0)
+                continue;
+            int lower = 1 << (i - 1), upper = (1 << i) - 1;
+            rows.add((lower == upper ? String.valueOf(lower) : lower + "-" + upper) + ": " + books);
+        }
+        return rows.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getCommandLatencies() {
+        List<String> rows = new ArrayList<>();
+        for (int i = 0; i < latencies.length; i++) {
+            LatencyHistogram histogram = latencies[i];
+            synchronized (histogram) {
+                if (histogram.count() == 0)
+                    continue;
+                rows.add(String.format("%-18s %,12d %10.1f %10.1f %10.1f %10.1f",
+                        i < Command.values().length ? Command.values()[i].operationName() : "Invalid",
+                        histogram.count(), histogram.valueAtPercentile(50) / 1e3,
+                        histogram.valueAtPercentile(99) / 1e3, histogram.valueAtPercentile(99.9) / 1e3,
+                        histogram.max() / 1e3));
+            }
+        }
+        return rows.toArray(new String[0]);
+    }
+
+    @Override
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Rotations %d, insert fix-up iterations %d, delete fix-up iterations %d%n",
+                getRotations(), getInsertFixupIterations(), getDeleteFixupIterations()));
+        sb.append(String.format("Searches %d, average path %.2f, longest path %d%n", getSearches(),
+                getAverageSearchPathLength(), getMaxSearchPathLength()));
+        sb.append(String.format("Record cache hits %d, misses %d%n", getRecordCacheHits(),
+                getRecordCacheMisses()));
+        sb.append(String.format("Tree height %d, black height %d%n", getTreeHeight(), getBlackHeight()));
+        sb.append("Waitlist lengths ").append(String.join(", ", getWaitlistLengthDistribution()))
+                .append(System.lineSeparator());
+        sb.append(String.format("%-18s %12s %10s %10s %10s %10s%n", "command", "count", "p50 us", "p99 us",
+                "p99.9 us", "max us"));
+        for (String row : getCommandLatencies())
+            sb.append(row).append(System.lineSeparator());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,42 @@
+// Management interface of LibraryMetrics, published over JMX as
+// gatorlibrary:type=LibraryMetrics
+public interface LibraryMetricsMBean {
+    // Rotations performed by rotateLeft and rotateRight
+    long getRotations();
+
+    // Iterations of the fixInsertViolation loop
+    long getInsertFixupIterations();
+
+    // Iterations of the fixDeleteViolation loop
+    long getDeleteFixupIterations();
+
+    // Book lookups made through printBook
+    long getSearches();
+
+    // Average number of books visited by a printBook lookup
+    double getAverageSearchPathLength();
+
+    // Largest number of books visited by a printBook lookup
+    long getMaxSearchPathLength();
+
+    // Book records printed from the record cache
+    long getRecordCacheHits();
+
+    // Book records formatted because they were not cached or dirty
+    long getRecordCacheMisses();
+
+    // Height of the tree as of the last command
+    int getTreeHeight();
+
+    // Black height of the tree as of the last command
+    int getBlackHeight();
+
+    // Number of books by waitlist length, in power-of-two ranges
+    String[] getWaitlistLengthDistribution();
+
+    // Count and p50/p99/p99.9/max latency of each command
+    String[] getCommandLatencies();
+
+    // All of the above as a printable report
+    String report();
+}
@@ -0,0 +1,257 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Compact binary snapshot of a library catalog. The file holds a header, a table
+// of the distinct titles and authors, and one packed record per book in ascending
+// order of book ID:
+//
+//   header      int magic, int version, long logSequence, int flipCount,
+//               int bookCount, long latestReservation, int stringCount
+//   string      int byteLength, UTF-8 bytes                  (stringCount times)
+//   book        int bookId, int title, int author, byte flags, byte depth,
+//               int borrowedBy, int reservationCount         (bookCount times)
+//   reservation int patronId, int priorityNumber, long timeOfReservation
+//
+// Title and author are indexes into the string table (-1 for none). The flags
+// hold the availability and the node color, and depth is the node's distance
+// from the root, which together with the ID order fixes the tree shape. Restoring
+// therefore rebuilds exactly the saved tree, so color flip counts carry on as if
+// the library had never stopped. Reservations are stored in heap order and reused
+// as they are. Restore memory-maps the file and links the tree in one linear pass.
+// The log sequence is the last CommandLog frame the snapshot holds (0 for none).
+public class LibrarySnapshot {
+    private static final int MAGIC = 0x474c534e; // "GLSN"
+    private static final int VERSION = 2;
+    private static final int AVAILABLE = 1; // Flag of an available book
+    private static final int RED = 2; // Flag of a red node
+    private static final int MAX_DEPTH = 127; // Deepest node a depth byte can hold
+
+    private final RedBlackNode nil; // Null node of the tree written or restored into
+
+    // Constructor for the snapshots of a tree with the given null node
+    LibrarySnapshot(RedBlackNode nil) {
+        this.nil = nil;
+    }
+
+    // Book visited by an in-order walk, with its distance from the root
+    private interface Visitor {
+        void visit(RedBlackNode book, int depth) throws IOException;
+    }
+
+    // Tree that takes over the books of a snapshot; throws IllegalStateException
+    // and keeps its own books if the restored ones are not a valid red-black tree
+    interface Target {
+        void replaceBooks(RedBlackNode root, int flipCount);
+    }
+
+    // Write the books of a tree to a file; returns the number of books written
+    int write(RedBlackTree rbTree, Path path) throws IOException {
+        return write(rbTree.root(), rbTree.flipCount, rbTree.logSequence, path);
+    }
+
+    // Write the books below a root to a file, following only the left and right
+    // links; returns the number of books written. The file is written aside and
+    // moved into place, so a crash never leaves a half-written snapshot under the
+    // given name
+    int write(RedBlackNode root, int flipCount, long logSequence, Path path) throws IOException {
+        // First pass: number the distinct strings and find the latest reservation
+        Map<String, Integer> strings = new HashMap<>();
+        List<String> table = new ArrayList<>();
+        long[] summary = { 0, Long.MIN_VALUE }; // Book count, latest reservation
+        inorder(root, (book, depth) -> {
+            if (depth > MAX_DEPTH)
+                throw new IOException("Tree is too deep to snapshot");
+            for (String text : new String[] { book.bookName, book.authorName }) {
+                if (text != null && strings.putIfAbsent(text, table.size()) == null)
+                    table.add(text);
+            }
+            if (book.minHeap != null) {
+                for (int i = 0; i < book.minHeap.size(); i++)
+                    summary[1] = Math.max(summary[1], book.minHeap.heap[i].getTimeOfReservation());
+            }
+            summary[0]++;
+        });
+
+        // Second pass: write the header, the string table and the book records
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+                DataOutputStream data = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16))) {
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeLong(logSequence);
+            data.writeInt(flipCount);
+            data.writeInt((int) summary[0]);
+            data.writeLong(summary[1]);
+            data.writeInt(table.size());
+            for (String text : table) {
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                data.writeInt(bytes.length);
+                data.write(bytes);
+            }
+            inorder(root, (book, depth) -> {
+                data.writeInt(book.bookId);
+                data.writeInt(book.bookName == null ? -1 : strings.get(book.bookName));
+                data.writeInt(book.authorName == null ? -1 : strings.get(book.authorName));
+                data.writeByte((book.isAvailable ? AVAILABLE : 0) | (book.color == NodeColor.RED ? RED : 0));
+                data.writeByte(depth);
+                data.writeInt(book.borrowedBy);
+                int reservations = book.minHeap == null ? 0 : book.minHeap.size();
+                data.writeInt(reservations);
+                for (int i = 0; i < reservations; i++) {
+                    ReservationNode reservation = book.minHeap.heap[i];
+                    data.writeInt(reservation.getPatronId());
+                    data.writeInt(reservation.getPriorityNumber());
+                    data.writeLong(reservation.getTimeOfReservation());
+                }
+            });
+            data.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        CommandLog.syncDirectory(path);
+        return (int) summary[0];
+    }
+
+    // Last command log frame held by a snapshot file
+    static long logSequence(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a library snapshot");
+            return in.readLong();
+        }
+    }
+
+    // Replace the books of a tree with the ones in a snapshot file; returns the
+    // number of books restored
+    int restore(RedBlackTree rbTree, Path path) throws IOException {
+        return restore(rbTree::replaceBooks, path);
+    }
+
+    // Hand the books of a snapshot file to a tree; returns the number of books
+    // restored. The tree is left unchanged if the file is invalid.
+    int restore(Target target, Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Snapshot is too large to map");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            return restore(target, buffer);
+        } catch (RuntimeException e) {
+            // Truncated records, bad string indexes and broken trees
+            throw new IOException("Invalid snapshot: " + e.getMessage(), e);
+        }
+    }
+
+    // Rebuild the tree from the mapped snapshot
+    private int restore(Target target, ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+            throw new IOException("Not a library snapshot");
+        buffer.getLong(); // Log sequence, read by the command log
+        int flipCount = buffer.getInt();
+        int bookCount = buffer.getInt();
+        // Move the saved reservation times just before now, so that new
+        // reservations still queue behind the restored ones
+        long timeShift = System.nanoTime() - buffer.getLong() - 1;
+        String[] table = new String[buffer.getInt()];
+        byte[] bytes = new byte[64];
+        for (int i = 0; i < table.length; i++) {
+            int length = buffer.getInt();
+            if (length > bytes.length)
+                bytes = new byte[Math.max(length, 2 * bytes.length)];
+            buffer.get(bytes, 0, length);
+            table[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        // Books that may still get a right child, in increasing depth; the shape is
+        // fully checked by replaceBooks once every book is linked
+        RedBlackNode[] spine = new RedBlackNode[MAX_DEPTH + 1];
+        int[] spineDepth = new int[MAX_DEPTH + 1];
+        int top = -1;
+        for (int i = 0; i < bookCount; i++) {
+            int bookId = buffer.getInt();
+            int title = buffer.getInt(), author = buffer.getInt();
+            int flags = buffer.get(), depth = buffer.get();
+            RedBlackNode book = new RedBlackNode(bookId, title < 0 ? null : table[title],
+                    author < 0 ? null : table[author], (flags & AVAILABLE) != 0);
+            book.color = (flags & RED) != 0 ? NodeColor.RED : NodeColor.BLACK;
+            book.right = nil;
+            book.parent = nil;
+            book.borrowedBy = buffer.getInt();
+            int reservations = buffer.getInt();
+            if (reservations > 0) {
+                ReservationNode[] heap = new ReservationNode[reservations];
+                for (int r = 0; r < reservations; r++)
+                    heap[r] = new ReservationNode(buffer.getInt(), buffer.getInt(), buffer.getLong() + timeShift);
+                book.minHeap = new MinHeap(heap);
+            }
+
+            // The shallowest book popped below this depth is its left child. The book
+            // left on top of the spine takes it as right child; if it is in fact the
+            // left child of a later book, that book pops it and takes the link over
+            RedBlackNode left = nil;
+            int leftDepth = depth + 1;
+            while (top >= 0 && spineDepth[top] > depth) {
+                leftDepth = spineDepth[top];
+                left = spine[top--];
+            }
+            if (depth < 0 || leftDepth != depth + 1)
+                throw new IOException("Book " + bookId + " has an invalid depth");
+            book.left = left;
+            if (left != nil)
+                left.parent = book;
+            if (top >= 0) {
+                spine[top].right = book;
+                book.parent = spine[top];
+            }
+            spine[++top] = book;
+            spineDepth[top] = depth;
+        }
+        RedBlackNode root = top < 0 ? nil : spine[0];
+        if (top >= 0 && spineDepth[0] != 0)
+            throw new IOException("Snapshot has no root");
+        target.replaceBooks(root, flipCount);
+        return bookCount;
+    }
+
+    // Short description of a failed snapshot or restore
+    static String describe(Exception e) {
+        if (e instanceof NoSuchFileException)
+            return "no such file or directory";
+        return String.valueOf(e.getMessage());
+    }
+
+    // Walk the books below a node in ascending order of book ID
+    private void inorder(RedBlackNode root, Visitor visitor) throws IOException {
+        RedBlackNode[] path = new RedBlackNode[MAX_DEPTH + 1]; // Books whose right subtree is next
+        int[] pathDepth = new int[path.length];
+        int top = -1;
+        RedBlackNode book = root;
+        int depth = 0;
+        while (book != nil || top >= 0) {
+            while (book != nil) {
+                if (top + 1 == path.length) {
+                    path = Arrays.copyOf(path, 2 * path.length);
+                    pathDepth = Arrays.copyOf(pathDepth, path.length);
+                }
+                path[++top] = book;
+                pathDepth[top] = depth++;
+                book = book.left;
+            }
+            book = path[top];
+            depth = pathDepth[top--];
+            visitor.visit(book, depth);
+            book = book.right;
+            depth++;
+        }
+    }
+}
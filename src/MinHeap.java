@@ -1,19 +1,86 @@
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 
-// MinHeap class representing a binary min-heap for managing reservations
+// MinHeap class representing a binary min-heap for managing reservations. The heap
+// is indexed: every reservation knows its slot in the array, and a patron-to-node
+// map finds the reservation of a patron, so a reservation can be cancelled or
+// reprioritized in O(log k) and a second reservation by the same patron is caught
+// in O(1). Small heaps find patrons by scanning instead, which costs at most
+// INDEX_THRESHOLD comparisons and no map.
 public class MinHeap {
-    private final int capacity; // Maximum capacity of the heap
+    // Initial capacity of a reservation heap, doubled whenever it fills up
+    static final int INITIAL_CAPACITY = 4;
+
+    // Maximum number of reservations per book, 0 for no limit
+    // (-Dgatorlibrary.maxReservations=<n>)
+    static final int MAX_RESERVATIONS = Integer.getInteger("gatorlibrary.maxReservations", 0);
+
+    // Size beyond which patrons are found through the map rather than a scan
+    static final int INDEX_THRESHOLD = 8;
+
+    private final int maxCapacity; // Maximum capacity of the heap, 0 for no limit
     private int size; // Current number of elements in the heap
     public ReservationNode[] heap; // Array to store the heap elements
+    private IntMap<ReservationNode> byPatron; // Reservation of each patron, null while the heap is scanned
 
-    // Constructor to initialize a MinHeap with a specified capacity
+    // Constructor to initialize a MinHeap with the configured reservation limit
+    public MinHeap() {
+        this(INITIAL_CAPACITY, MAX_RESERVATIONS);
+    }
+
+    // Constructor to initialize a MinHeap with a fixed capacity
     public MinHeap(int capacity) {
-        this.capacity = capacity;
-        this.heap = new ReservationNode[capacity];
+        this(capacity, capacity);
+    }
+
+    // Constructor to initialize a MinHeap that grows from an initial capacity up to
+    // a maximum capacity (0 for no limit)
+    public MinHeap(int initialCapacity, int maxCapacity) {
+        this.maxCapacity = maxCapacity;
+        this.heap = new ReservationNode[maxCapacity > 0 ? Math.min(initialCapacity, maxCapacity) : initialCapacity];
         this.size = 0;
     }
 
+    // Constructor to wrap reservations that are already in heap order, growing up
+    // to the configured reservation limit. A patron listed more than once, which
+    // older snapshots allowed, keeps only its first reservation in the array.
+    MinHeap(ReservationNode[] reservations) {
+        this.maxCapacity = MAX_RESERVATIONS;
+        this.heap = reservations;
+        this.size = reservations.length;
+        for (int i = 0; i < size; i++)
+            heap[i].slot = i;
+        IntMap<ReservationNode> seen = new IntMap<>(size);
+        List<ReservationNode> duplicates = new ArrayList<>();
+        for (int i = size - 1; i >= 0; i--) {
+            ReservationNode later = seen.put(heap[i].getPatronId(), heap[i]);
+            if (later != null)
+                duplicates.add(later);
+        }
+        for (ReservationNode duplicate : duplicates)
+            removeAt(duplicate.slot);
+        if (size > INDEX_THRESHOLD)
+            byPatron = seen;
+    }
+
+    // Constructor to copy a heap and its reservations, so that either heap can
+    // change without affecting the other
+    MinHeap(MinHeap source) {
+        this.maxCapacity = source.maxCapacity;
+        this.heap = new ReservationNode[source.heap.length];
+        this.size = source.size;
+        for (int i = 0; i < size; i++) {
+            ReservationNode reservation = source.heap[i];
+            heap[i] = new ReservationNode(reservation.getPatronId(), reservation.getPriorityNumber(),
+                    reservation.getTimeOfReservation());
+            heap[i].slot = i;
+        }
+        if (source.byPatron != null) {
+            byPatron = new IntMap<>(size);
+            for (int i = 0; i < size; i++)
+                byPatron.put(heap[i].getPatronId(), heap[i]);
+        }
+    }
+
     // Check if the heap is empty
     public boolean isEmpty() {
         return size == 0;
@@ -70,35 +137,109 @@ public class MinHeap {
             return null;
         }
         ReservationNode minNode = heap[0];
-        heap[0] = heap[size - 1];
-        size--;
-        heapifyDown();
+        removeAt(0);
         return minNode;
     }
 
-    // Insert a new reservation node into the heap
-    public void insertNode(ReservationNode reservation) {
-        if (size == capacity) {
-            System.out.println("The Reservation Heap is full and cannot accept any more reservations");
-        } else {
-            heap[size] = reservation;
-            size++;
-            heapifyUp();
+    // Insert a new reservation node into the heap, doubling the array when it is
+    // full; returns false if the heap has reached its maximum capacity
+    public boolean insertNode(ReservationNode reservation) {
+        if (size == heap.length) {
+            if (maxCapacity > 0 && size >= maxCapacity) {
+                return false;
+            }
+            int newCapacity = Math.max(1, size * 2);
+            if (maxCapacity > 0) {
+                newCapacity = Math.min(newCapacity, maxCapacity);
+            }
+            heap = Arrays.copyOf(heap, newCapacity);
+        }
+        heap[size] = reservation;
+        reservation.slot = size;
+        size++;
+        if (byPatron != null) {
+            byPatron.put(reservation.getPatronId(), reservation);
+        } else if (size > INDEX_THRESHOLD) {
+            byPatron = new IntMap<>(size);
+            for (int i = 0; i < size; i++)
+                byPatron.put(heap[i].getPatronId(), heap[i]);
+        }
+        heapifyUp();
+        return true;
+    }
+
+    // Check whether a patron has a reservation in the heap
+    public boolean contains(int patronId) {
+        return find(patronId) != null;
+    }
+
+    // Remove the reservation of a patron; returns whether there was one
+    public boolean remove(int patronId) {
+        ReservationNode reservation = find(patronId);
+        if (reservation == null)
+            return false;
+        removeAt(reservation.slot);
+        return true;
+    }
+
+    // Give the reservation of a patron a new priority, keeping its arrival time;
+    // returns whether there was one
+    public boolean updatePriority(int patronId, int newPriority) {
+        ReservationNode reservation = find(patronId);
+        if (reservation == null)
+            return false;
+        reservation.setPriorityNumber(newPriority);
+        siftUp(reservation.slot);
+        siftDown(reservation.slot);
+        return true;
+    }
+
+    // Find the reservation of a patron, or null if there is none
+    private ReservationNode find(int patronId) {
+        if (byPatron != null)
+            return byPatron.get(patronId);
+        for (int i = 0; i < size; i++) {
+            if (heap[i].getPatronId() == patronId)
+                return heap[i];
+        }
+        return null;
+    }
+
+    // Remove the node at the given index, filling the hole with the last node and
+    // moving that node down or up to its correct position
+    private void removeAt(int idx) {
+        if (byPatron != null)
+            byPatron.remove(heap[idx].getPatronId());
+        size--;
+        heap[idx] = heap[size];
+        heap[idx].slot = idx;
+        heap[size] = null;
+        if (idx < size) {
+            siftDown(idx);
+            siftUp(idx);
         }
     }
 
     // Restore the heap property by moving a newly added node up to its correct position
     public void heapifyUp() {
-        int idx = size - 1;
+        siftUp(size - 1);
+    }
+
+    // Restore the heap property by moving the root down to its correct position
+    public void heapifyDown() {
+        siftDown(0);
+    }
+
+    // Move the node at the given index up until its parent is not larger
+    private void siftUp(int idx) {
         while (getParentIdx(idx) >= 0 && heap[idx].compareTo(parent(idx)) < 0) {
             swap(getParentIdx(idx), idx);
             idx = getParentIdx(idx);
         }
     }
 
-    // Restore the heap property by moving a node down to its correct position
-    public void heapifyDown() {
-        int idx = 0;
+    // Move the node at the given index down until it is smaller than its children
+    private void siftDown(int idx) {
         while (getLeftChildIdx(idx) < size) {
             int smallestChild = getLeftChildIdx(idx);
 
@@ -120,6 +261,8 @@ public class MinHeap {
         ReservationNode temp = heap[x];
         heap[x] = heap[y];
         heap[y] = temp;
+        heap[x].slot = x;
+        heap[y].slot = y;
     }
 
     // Print the elements of the heap
@@ -135,23 +278,23 @@ public class MinHeap {
         System.out.println(" }");
     }
 
+    // Append the patron IDs in reservation order (the order poll() would return
+    // them) to the given buffer, separated by commas, without modifying the heap
+    public void appendPatronIds(StringBuilder out) {
+        ReservationNode[] ordered = Arrays.copyOf(heap, size);
+        Arrays.sort(ordered);
+        for (int i = 0; i < ordered.length; i++) {
+            if (i > 0)
+                out.append(',');
+            out.append(ordered[i].getPatronId());
+        }
+    }
+
     // Override toString method to provide a formatted string representation of the heap
     @Override
     public String toString() {
-        String res = "";
-        List<ReservationNode> tempList = new ArrayList<>();
-        while (this.size > 1) {
-            ReservationNode heapNode = poll();
-            tempList.add(heapNode);
-            res += heapNode.getPatronId() + ",";
-        }
-        if (!isEmpty()) {
-            ReservationNode heapNode = poll();
-            tempList.add(heapNode);
-            res += heapNode.getPatronId();
-        }
-        for (ReservationNode heapNode : tempList)
-            insertNode(heapNode);
-        return res;
+        StringBuilder res = new StringBuilder();
+        appendPatronIds(res);
+        return res.toString();
     }
 }
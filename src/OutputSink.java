@@ -0,0 +1,146 @@
+import java.io.*;
+
+// Buffered destination for library output; values are formatted straight into the
+// buffer, which is written out whenever it reaches the configured size
+public class OutputSink implements Closeable, Flushable {
+    // Default number of buffered characters before a write
+    // (-Dgatorlibrary.outputBufferSize=<n>)
+    static final int DEFAULT_BUFFER_SIZE = Integer.getInteger("gatorlibrary.outputBufferSize", 1 << 16);
+
+    private final Writer writer; // Destination of the buffered output
+    private final int bufferSize; // Number of characters buffered before a write
+    private final StringBuilder buffer; // Output not yet written
+    private char[] chars = new char[0]; // Scratch array used to hand the buffer to the writer
+
+    // Constructor to create a sink writing to a file with the default buffer size
+    public OutputSink(String fileName) throws IOException {
+        this(new FileWriter(fileName), DEFAULT_BUFFER_SIZE);
+    }
+
+    // Constructor to create a sink over any writer with the given buffer size
+    public OutputSink(Writer writer, int bufferSize) {
+        this.writer = writer;
+        this.bufferSize = Math.max(1, bufferSize);
+        this.buffer = new StringBuilder(Math.min(this.bufferSize, 1 << 13) + 256);
+    }
+
+    // Append text to the output
+    public OutputSink append(String text) {
+        buffer.append(text);
+        return flushIfFull();
+    }
+
+    // Append a single character to the output
+    public OutputSink append(char c) {
+        buffer.append(c);
+        return flushIfFull();
+    }
+
+    // Append the decimal form of a number to the output
+    public OutputSink append(int value) {
+        buffer.append(value);
+        return flushIfFull();
+    }
+
+    // Append text held in a buffer to the output
+    public OutputSink append(CharSequence text) {
+        buffer.append(text);
+        return flushIfFull();
+    }
+
+    // Append the formatted record of a book to the output
+    public OutputSink append(RedBlackNode book) {
+        book.appendTo(buffer);
+        return flushIfFull();
+    }
+
+    // Append the formatted record of a book given by its fields to the output
+    public OutputSink appendBook(int bookId, String bookName, String authorName, boolean isAvailable,
+            int borrowedBy, MinHeap minHeap) {
+        RedBlackNode.appendTo(buffer, bookId, bookName, authorName, isAvailable, borrowedBy, minHeap);
+        return flushIfFull();
+    }
+
+    // Append the patron IDs of a reservation heap in reservation order
+    public OutputSink append(MinHeap reservations) {
+        reservations.appendPatronIds(buffer);
+        return flushIfFull();
+    }
+
+    // Append the record of a patron given the books it holds in ascending order
+    public OutputSink appendPatron(int patronId, int[] borrowed, int[] reserved) {
+        buffer.append("PatronID = ").append(patronId).append("\nBorrowed = [");
+        appendBookIds(borrowed);
+        buffer.append("]\nReserved = [");
+        appendBookIds(reserved);
+        buffer.append("]\n\n");
+        return flushIfFull();
+    }
+
+    // Append the result of cancelling the reservations a patron held on the given
+    // books, in ascending order
+    public OutputSink appendCancelled(int patronId, int[] reserved) {
+        if (reserved.length == 0) {
+            buffer.append("Patron ").append(patronId).append(" has no reservations\n");
+        } else {
+            buffer.append("Reservations made by Patron ").append(patronId).append(" on Books ");
+            appendBookIds(reserved);
+            buffer.append(" have been cancelled!\n");
+        }
+        return flushIfFull();
+    }
+
+    // Append that a prefix search on a field (title or author) found no books
+    public OutputSink appendNoMatches(String field, String prefix) {
+        buffer.append("No books with ").append(field).append(" starting with \"").append(prefix)
+                .append("\" found in the library\n");
+        return flushIfFull();
+    }
+
+    // Append book IDs separated by commas
+    private void appendBookIds(int[] bookIds) {
+        for (int i = 0; i < bookIds.length; i++) {
+            if (i > 0)
+                buffer.append(',');
+            buffer.append(bookIds[i]);
+        }
+    }
+
+    // Write the buffered output once it reaches the buffer size
+    private OutputSink flushIfFull() {
+        if (buffer.length() >= bufferSize) {
+            try {
+                writeBuffer();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return this;
+    }
+
+    // Hand the buffered characters to the writer and empty the buffer
+    private void writeBuffer() throws IOException {
+        int length = buffer.length();
+        if (length == 0)
+            return;
+        if (chars.length < length)
+            chars = new char[length];
+        buffer.getChars(0, length, chars, 0);
+        writer.write(chars, 0, length);
+        buffer.setLength(0);
+    }
+
+    // Write all buffered output through to the destination
+    @Override
+    public void flush() throws IOException {
+        writeBuffer();
+        writer.flush();
+    }
+
+    // Flush the remaining output and close the destination
+    @Override
+    public void close() throws IOException {
+        flush();
+        writer.close();
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+// Throughput benchmark for the command parser, in lines per second. It compares
+// CommandParser with the previous per-line String path (replaceAll, substring,
+// split, trim and parseInt) over the same in-memory command file.
+//
+// Usage: java ParserBenchmark [numberOfLines] [rounds]
+public class ParserBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        byte[] input = generate(lines, new Random(42));
+
+        for (int round = 1; round <= rounds; round++) {
+            long start = System.nanoTime();
+            long checksum = parseBytes(input);
+            long bytesNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            checksum -= parseStrings(input);
+            long stringNanos = System.nanoTime() - start;
+
+            if (checksum != 0)
+                throw new IllegalStateException("Parsers disagree");
+            System.out.printf("round %d: CommandParser %,.0f lines/s, String path %,.0f lines/s%n", round,
+                    lines * 1e9 / bytesNanos, lines * 1e9 / stringNanos);
+        }
+    }
+
+    // Build a command file with a typical mix of operations
+    private static byte[] generate(int lines, Random random) {
+        StringBuilder sb = new StringBuilder(lines * 32);
+        for (int i = 0; i < lines; i++) {
+            int bookId = random.nextInt(1_000_000);
+            switch (random.nextInt(6)) {
+                case 0:
+                    sb.append("InsertBook(").append(bookId).append(", \"Title ").append(bookId)
+                            .append("\", \"Author ").append(bookId % 1000).append("\", \"Yes\")");
+                    break;
+                case 1:
+                    sb.append("PrintBook(").append(bookId).append(')');
+                    break;
+                case 2:
+                    sb.append("BorrowBook(").append(random.nextInt(10_000)).append(", ").append(bookId)
+                            .append(", ").append(random.nextInt(20)).append(')');
+                    break;
+                case 3:
+                    sb.append("ReturnBook(").append(random.nextInt(10_000)).append(", ").append(bookId).append(')');
+                    break;
+                case 4:
+                    sb.append("PrintBooks(").append(bookId).append(", ").append(bookId + 10).append(");");
+                    break;
+                default:
+                    sb.append("DeleteBook(").append(bookId).append(')');
+            }
+            sb.append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Parse with CommandParser, summing the arguments so the work is not elided
+    private static long parseBytes(byte[] input) throws IOException {
+        CommandParser parser = new CommandParser(new ByteArrayInputStream(input));
+        long checksum = 0;
+        while (parser.next()) {
+            Command command = parser.command();
+            checksum += command.ordinal();
+            for (int i = 0; i < command.arguments(); i++) {
+                if (command == Command.INSERT_BOOK && i > 0)
+                    checksum += parser.stringArgument(i).length();
+                else
+                    checksum += parser.intArgument(i);
+            }
+        }
+        return checksum;
+    }
+
+    // Parse with the previous String-based path
+    private static long parseStrings(byte[] input) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(input), StandardCharsets.UTF_8));
+        long checksum = 0;
+        String row;
+        while ((row = reader.readLine()) != null) {
+            row = row.replaceAll("\"", "");
+            int start = row.indexOf("(");
+            int end = row.indexOf(")");
+            String[] argArray = row.substring(start + 1, end).split(",");
+            String operation = row.substring(0, start);
+            Command command = null;
+            for (Command candidate : Command.values()) {
+                if (operation.equals(candidate.operationName()))
+                    command = candidate;
+            }
+            checksum += command.ordinal();
+            for (int i = 0; i < command.arguments(); i++) {
+                if (command == Command.INSERT_BOOK && i > 0)
+                    checksum += argArray[i].trim().length();
+                else
+                    checksum += Integer.parseInt(argArray[i].trim());
+            }
+        }
+        return checksum;
+    }
+}
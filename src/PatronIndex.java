@@ -0,0 +1,119 @@
+import java.util.Arrays;
+
+// Secondary index from patron ID to the books the patron has borrowed and the books
+// the patron has reserved, kept up to date by the tree on every borrow, return,
+// allotment, cancellation and delete. Patrons live in an IntMap, so lookups neither
+// box keys nor allocate; each patron's books are kept in unsorted int lists, which
+// stay short, and a patron is dropped from the map once it holds nothing.
+//
+// Borrows and returns on different books may run concurrently (ConcurrentLibrary),
+// so every method synchronizes on the index.
+public class PatronIndex {
+    // Books held by one patron
+    private static final class Holdings {
+        int[] borrowed = new int[2];
+        int borrowedCount;
+        int[] reserved = new int[2];
+        int reservedCount;
+
+        boolean isEmpty() {
+            return borrowedCount == 0 && reservedCount == 0;
+        }
+    }
+
+    private final IntMap<Holdings> holdings = new IntMap<>(0); // Books of each patron
+
+    // Record that a patron borrowed a book
+    synchronized void borrowed(int patronId, int bookId) {
+        Holdings patron = holdingsOf(patronId, true);
+        patron.borrowed = add(patron.borrowed, patron.borrowedCount++, bookId);
+    }
+
+    // Record that a patron returned a book, or lost it to a delete
+    synchronized void returned(int patronId, int bookId) {
+        Holdings patron = holdingsOf(patronId, false);
+        if (patron != null && remove(patron.borrowed, patron.borrowedCount, bookId))
+            patron.borrowedCount--;
+        dropIfEmpty(patronId, patron);
+    }
+
+    // Record that a patron reserved a book
+    synchronized void reserved(int patronId, int bookId) {
+        Holdings patron = holdingsOf(patronId, true);
+        patron.reserved = add(patron.reserved, patron.reservedCount++, bookId);
+    }
+
+    // Record that one reservation of a patron on a book ended, by allotment,
+    // cancellation or delete
+    synchronized void unreserved(int patronId, int bookId) {
+        Holdings patron = holdingsOf(patronId, false);
+        if (patron != null && remove(patron.reserved, patron.reservedCount, bookId))
+            patron.reservedCount--;
+        dropIfEmpty(patronId, patron);
+    }
+
+    // Books borrowed by a patron in ascending order of book ID
+    synchronized int[] borrowedBooks(int patronId) {
+        Holdings patron = holdingsOf(patronId, false);
+        return patron == null ? new int[0] : sorted(patron.borrowed, patron.borrowedCount);
+    }
+
+    // Books reserved by a patron in ascending order of book ID
+    synchronized int[] reservedBooks(int patronId) {
+        Holdings patron = holdingsOf(patronId, false);
+        return patron == null ? new int[0] : sorted(patron.reserved, patron.reservedCount);
+    }
+
+    // Forget every patron
+    synchronized void clear() {
+        holdings.clear();
+    }
+
+    // Number of patrons holding at least one book
+    synchronized int size() {
+        return holdings.size();
+    }
+
+    // Find the books of a patron, adding an empty entry if asked to
+    private Holdings holdingsOf(int patronId, boolean create) {
+        Holdings patron = holdings.get(patronId);
+        if (patron == null && create) {
+            patron = new Holdings();
+            holdings.put(patronId, patron);
+        }
+        return patron;
+    }
+
+    // Remove a patron that holds nothing any more
+    private void dropIfEmpty(int patronId, Holdings patron) {
+        if (patron != null && patron.isEmpty())
+            holdings.remove(patronId);
+    }
+
+    // Append a book ID to a list of the given length, growing it if it is full
+    private static int[] add(int[] books, int count, int bookId) {
+        if (count == books.length)
+            books = Arrays.copyOf(books, 2 * count);
+        books[count] = bookId;
+        return books;
+    }
+
+    // Remove one occurrence of a book ID from a list of the given length by moving
+    // the last entry into its place; returns whether it was found
+    private static boolean remove(int[] books, int count, int bookId) {
+        for (int i = 0; i < count; i++) {
+            if (books[i] == bookId) {
+                books[i] = books[count - 1];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Sorted copy of the first count entries of a list
+    private static int[] sorted(int[] books, int count) {
+        int[] copy = Arrays.copyOf(books, count);
+        Arrays.sort(copy);
+        return copy;
+    }
+}
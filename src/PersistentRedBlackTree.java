@@ -0,0 +1,1134 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Red-Black Tree whose versions share structure, so that snapshot() can hand out
+// an immutable CatalogView in O(1) while the library carries on changing. Books
+// have no parent links: every change descends from the root along a path of
+// books and copies those the current version does not own, so an older version
+// keeps seeing its own books and is reclaimed by the GC with its last view. The
+// parent field of a book instead marks the version that owns it; snapshot()
+// starts a new version, after which no book reachable from the view is changed
+// again. Until the next snapshot a book is copied at most once and then changed
+// in place, so a tree nobody takes views of does little more work than
+// RedBlackTree. The algorithms are those of RedBlackTree step for step, so
+// output and color flip counts are identical.
+public class PersistentRedBlackTree implements Catalog {
+    // A red-black tree of 2^31 books is at most 62 books high; a delete fix-up may
+    // move the path one book deeper
+    private static final int MAX_HEIGHT = 2 * Integer.SIZE;
+
+    // Null node of this tree, shared with its views
+    private final RedBlackNode nil = EmptyRBNode.create();
+
+    // Counter for color flip operations
+    public int flipCount;
+
+    // Nodes recolored during the current operation and their colors before it
+    private final List<RedBlackNode> recolored = new ArrayList<>();
+    private final List<NodeColor> originalColors = new ArrayList<>();
+
+    // Root of the current version
+    private RedBlackNode root = nil;
+
+    // Parent marks of the books the current version owns and may change in place:
+    // books whose waitlist is their own, and copied books whose waitlist is still
+    // shared with an older version until it changes
+    private RedBlackNode owned = new RedBlackNode(-1);
+    private RedBlackNode sharedWaitlist = new RedBlackNode(-1);
+
+    // Books from the root to the book of the current operation
+    private final RedBlackNode[] path = new RedBlackNode[MAX_HEIGHT + 2];
+
+    // Destination of the results of library operations
+    private final OutputSink out;
+
+    // Books borrowed and reserved by each patron
+    private final PatronIndex patrons = new PatronIndex();
+
+    // Books by title and by author, for prefix searches
+    private final TextIndex titles = new TextIndex();
+    private final TextIndex authors = new TextIndex();
+
+    // Formatted records of recently printed books with a waitlist, null when
+    // caching is off; a book without one formats as fast as its record would copy
+    private final RecordCache records = RecordCache.DEFAULT_CAPACITY > 0
+            ? new RecordCache(RecordCache.DEFAULT_CAPACITY)
+            : null;
+
+    // Constructor initializes an empty tree writing to standard output
+    public PersistentRedBlackTree() {
+        this(new OutputSink(new OutputStreamWriter(System.out), OutputSink.DEFAULT_BUFFER_SIZE));
+    }
+
+    // Constructor initializes an empty tree writing to the given sink
+    public PersistentRedBlackTree(OutputSink out) {
+        this.out = out;
+    }
+
+    // Freeze the current version and return a view of it; the books it reaches
+    // are copied rather than changed from now on
+    public CatalogView snapshot() {
+        owned = new RedBlackNode(-1);
+        sharedWaitlist = new RedBlackNode(-1);
+        return new CatalogView(root, nil, flipCount);
+    }
+
+    // Whether the current version owns a book and may change it in place
+    private boolean owns(RedBlackNode book) {
+        return book.parent == owned || book.parent == sharedWaitlist;
+    }
+
+    // A book the current version owns: the book itself, or a copy of it that
+    // shares its waitlist until the waitlist changes
+    private RedBlackNode own(RedBlackNode book) {
+        if (book == nil || owns(book))
+            return book;
+        RedBlackNode copy = new RedBlackNode(book.bookId, book.bookName, book.authorName, book.isAvailable);
+        copy.borrowedBy = book.borrowedBy;
+        copy.left = book.left;
+        copy.right = book.right;
+        copy.color = book.color;
+        copy.size = book.size;
+        copy.minHeap = book.minHeap;
+        copy.parent = book.minHeap == null ? owned : sharedWaitlist;
+        return copy;
+    }
+
+    // Own the left child of an owned book
+    private RedBlackNode ownLeft(RedBlackNode book) {
+        book.left = own(book.left);
+        return book.left;
+    }
+
+    // Own the right child of an owned book
+    private RedBlackNode ownRight(RedBlackNode book) {
+        book.right = own(book.right);
+        return book.right;
+    }
+
+    // Own the books on the path down to the given depth, linking each copy into
+    // its owned parent; returns the book at that depth
+    private RedBlackNode ownPath(int depth) {
+        for (int i = 0; i <= depth; i++) {
+            RedBlackNode book = path[i];
+            if (owns(book))
+                continue;
+            RedBlackNode copy = own(book);
+            if (i == 0)
+                root = copy;
+            else if (path[i - 1].left == book)
+                path[i - 1].left = copy;
+            else
+                path[i - 1].right = copy;
+            path[i] = copy;
+        }
+        return path[depth];
+    }
+
+    // Waitlist of an owned book that the current version may change, copying it
+    // the first time if it is shared with an older version
+    private MinHeap waitlist(RedBlackNode book) {
+        if (book.parent == sharedWaitlist)
+            setWaitlist(book, new MinHeap(book.minHeap));
+        return book.minHeap;
+    }
+
+    // Give an owned book a waitlist of its own, or none
+    private void setWaitlist(RedBlackNode book, MinHeap waitlist) {
+        book.minHeap = waitlist;
+        book.parent = owned;
+    }
+
+    // Insert a book into the tree and update color information
+    @Override
+    public void insertBook(int bookId, String bookName, String authorName, String isAvailable) {
+        RedBlackNode book = new RedBlackNode(bookId, bookName, authorName, isAvailable.equals("Yes"));
+        book.parent = owned;
+        if (insert(book)) {
+            indexText(book);
+            forget(bookId);
+        } else if (find(bookId).color != NodeColor.RED) {
+            // Count the duplicate as RedBlackTree does
+            this.flipCount++;
+        }
+        countColorFlips();
+    }
+
+    // Load a batch of books by rebuilding the tree bottom-up in linear time, with
+    // the same merge rules and flip counting as RedBlackTree.bulkLoad; the books
+    // already in the tree are owned first, so older versions keep their shape
+    @Override
+    public void bulkLoad(List<RedBlackNode> books) {
+        RedBlackNode[] batch = books.toArray(new RedBlackNode[0]);
+        for (int i = 1; i < batch.length; i++) {
+            if (batch[i - 1].bookId > batch[i].bookId) {
+                Arrays.sort(batch, Comparator.comparingInt(book -> book.bookId));
+                break;
+            }
+        }
+
+        // Merge the books in the tree with the batch, both in ascending order
+        RedBlackNode[] merged = new RedBlackNode[size() + batch.length];
+        NodeColor[] previousColors = new NodeColor[merged.length];
+        boolean wasEmpty = root == nil;
+        Iterator<RedBlackNode> existing = new Walk(root, nil, Integer.MIN_VALUE, Integer.MAX_VALUE, true);
+        RedBlackNode current = existing.hasNext() ? existing.next() : nil;
+        int count = 0, next = 0;
+        while (current != nil || next < batch.length) {
+            RedBlackNode book;
+            boolean added = false;
+            if (next == batch.length || (current != nil && current.bookId <= batch[next].bookId)) {
+                book = current;
+                previousColors[count] = current.color;
+                current = existing.hasNext() ? existing.next() : nil;
+            } else {
+                book = batch[next++];
+                previousColors[count] = wasEmpty && count == 0 ? NodeColor.BLACK : NodeColor.RED;
+                added = true;
+            }
+            if (count > 0 && merged[count - 1].bookId == book.bookId)
+                continue;
+            if (added) {
+                book.parent = owned;
+                indexText(book);
+                forget(book.bookId);
+            }
+            merged[count++] = own(book);
+        }
+
+        // Nodes on the last level are red unless it is complete, all others black
+        int height = 31 - Integer.numberOfLeadingZeros(count + 1);
+        int redDepth = (1 << height) - 1 == count ? -1 : height;
+        root = build(merged, 0, count - 1, 0, redDepth);
+        for (int i = 0; i < count; i++) {
+            if (merged[i].color != previousColors[i])
+                this.flipCount++;
+        }
+    }
+
+    // Link the sorted, owned books [lo, hi] into a balanced subtree
+    private RedBlackNode build(RedBlackNode[] books, int lo, int hi, int depth, int redDepth) {
+        if (lo > hi)
+            return nil;
+        int mid = (lo + hi) >>> 1;
+        RedBlackNode book = books[mid];
+        book.color = depth == redDepth ? NodeColor.RED : NodeColor.BLACK;
+        book.size = hi - lo + 1;
+        book.left = build(books, lo, mid - 1, depth + 1, redDepth);
+        book.right = build(books, mid + 1, hi, depth + 1, redDepth);
+        return book;
+    }
+
+    // Count the books in the tree
+    private int size() {
+        return root.size;
+    }
+
+    // Change the color of an owned node, remembering its color before the current
+    // operation
+    private void setColor(RedBlackNode node, NodeColor color) {
+        if (node == nil)
+            return;
+        if (node.color != color && !recolored.contains(node)) {
+            recolored.add(node);
+            originalColors.add(node.color);
+        }
+        node.color = color;
+    }
+
+    // Count the nodes whose color differs from the one they had before the current
+    // operation; a node recolored and restored within the same fix-up is not a flip
+    private void countColorFlips() {
+        for (int i = 0; i < recolored.size(); i++) {
+            if (recolored.get(i).color != originalColors.get(i)) {
+                this.flipCount++;
+            }
+        }
+        recolored.clear();
+        originalColors.clear();
+    }
+
+    // Get and append the color flip count to the output
+    @Override
+    public void getColorFlipCount() {
+        out.append("Color Flip Count : ").append(this.flipCount).append('\n');
+    }
+
+    // Insert an owned book into the tree and fix any violations; returns false if
+    // a book with the same ID already exists
+    private boolean insert(RedBlackNode book) {
+        book.left = nil;
+        book.right = nil;
+        book.size = 1;
+        if (root == nil) {
+            root = book;
+            book.color = NodeColor.BLACK;
+            return true;
+        }
+        book.color = NodeColor.RED;
+        int depth = 0;
+        for (RedBlackNode temp = root;; depth++) {
+            path[depth] = temp;
+            if (book.bookId == temp.bookId)
+                return false;
+            RedBlackNode child = book.bookId < temp.bookId ? temp.left : temp.right;
+            if (child == nil)
+                break;
+            temp = child;
+        }
+        RedBlackNode parent = ownPath(depth);
+        if (book.bookId < parent.bookId)
+            parent.left = book;
+        else
+            parent.right = book;
+        path[++depth] = book;
+        // Count the new book in the subtree of every ancestor
+        for (int i = 0; i < depth; i++)
+            path[i].size++;
+        fixInsertViolation(depth);
+        return true;
+    }
+
+    // Fix violations after inserting the book at the given depth of the path
+    private void fixInsertViolation(int depth) {
+        while (depth > 0 && path[depth - 1].color == NodeColor.RED) {
+            if (LibraryMetrics.ENABLED)
+                LibraryMetrics.INSTANCE.insertFixupIteration();
+            RedBlackNode book = path[depth], parent = path[depth - 1], grandparent = path[depth - 2];
+            RedBlackNode above = depth > 2 ? path[depth - 3] : nil;
+            if (parent == grandparent.left) {
+                RedBlackNode uncle = grandparent.right;
+                if (uncle != nil && uncle.color == NodeColor.RED) {
+                    setColor(parent, NodeColor.BLACK);
+                    if (grandparent.color != NodeColor.RED && grandparent != root) {
+                        setColor(grandparent, NodeColor.RED);
+                    }
+                    setColor(ownRight(grandparent), NodeColor.BLACK);
+                    depth -= 2;
+                    continue;
+                }
+                if (book == parent.right) {
+                    rotateLeft(grandparent, parent);
+                    path[depth - 1] = book;
+                    path[depth] = parent;
+                }
+                setColor(path[depth - 1], NodeColor.BLACK);
+                setColor(grandparent, NodeColor.RED);
+                rotateRight(above, grandparent);
+            } else {
+                RedBlackNode uncle = grandparent.left;
+                if (uncle != nil && uncle.color == NodeColor.RED) {
+                    setColor(parent, NodeColor.BLACK);
+                    setColor(grandparent, NodeColor.RED);
+                    setColor(ownLeft(grandparent), NodeColor.BLACK);
+                    depth -= 2;
+                    continue;
+                }
+                if (book == parent.left) {
+                    rotateRight(grandparent, parent);
+                    path[depth - 1] = book;
+                    path[depth] = parent;
+                }
+                setColor(path[depth - 1], NodeColor.BLACK);
+                setColor(grandparent, NodeColor.RED);
+                rotateLeft(above, grandparent);
+            }
+            // The former parent took the place of the grandparent and is black
+            path[depth - 2] = path[depth - 1];
+            path[depth - 1] = path[depth];
+            depth--;
+        }
+        setColor(root, NodeColor.BLACK);
+    }
+
+    // Perform a left rotation around an owned book whose right child is owned;
+    // parent is the owned parent of the book, or nil at the root
+    private void rotateLeft(RedBlackNode parent, RedBlackNode book) {
+        if (LibraryMetrics.ENABLED)
+            LibraryMetrics.INSTANCE.rotated();
+        RedBlackNode right = book.right;
+        book.right = right.left;
+        right.left = book;
+        replaceChild(parent, book, right);
+        right.size = book.size;
+        book.size = book.left.size + book.right.size + 1;
+    }
+
+    // Perform a right rotation around an owned book whose left child is owned;
+    // parent is the owned parent of the book, or nil at the root
+    private void rotateRight(RedBlackNode parent, RedBlackNode book) {
+        if (LibraryMetrics.ENABLED)
+            LibraryMetrics.INSTANCE.rotated();
+        RedBlackNode left = book.left;
+        book.left = left.right;
+        left.right = book;
+        replaceChild(parent, book, left);
+        left.size = book.size;
+        book.size = book.left.size + book.right.size + 1;
+    }
+
+    // Put a book in the place of a child of an owned parent, or of the root
+    private void replaceChild(RedBlackNode parent, RedBlackNode child, RedBlackNode book) {
+        if (parent == nil)
+            root = book;
+        else if (parent.left == child)
+            parent.left = book;
+        else
+            parent.right = book;
+    }
+
+    // Descend from the root to a book, filling the path with the books visited;
+    // returns the depth of the book, or -1 if it is not in the tree
+    private int descend(int bookId) {
+        int depth = 0;
+        for (RedBlackNode book = root; book != nil; depth++) {
+            path[depth] = book;
+            if (bookId == book.bookId) {
+                if (LibraryMetrics.ENABLED)
+                    LibraryMetrics.INSTANCE.searched(depth + 1);
+                return depth;
+            }
+            book = bookId < book.bookId ? book.left : book.right;
+        }
+        if (LibraryMetrics.ENABLED && depth > 0)
+            LibraryMetrics.INSTANCE.searched(depth);
+        return -1;
+    }
+
+    // Find a book of the current version, or null if it is not in the tree; the
+    // book must be owned before it is changed
+    RedBlackNode find(int bookId) {
+        int depth = descend(bookId);
+        return depth < 0 ? null : path[depth];
+    }
+
+    // Find a book and own it together with the path to it, or null if it is not
+    // in the tree
+    private RedBlackNode findOwned(int bookId) {
+        int depth = descend(bookId);
+        return depth < 0 ? null : ownPath(depth);
+    }
+
+    // Print a book, or that it is not found in the library
+    @Override
+    public void printBookRecord(int bookId) {
+        RedBlackNode book = find(bookId);
+        if (book == null) {
+            out.append("Book ").append(bookId).append(" not found in the library\n");
+        } else {
+            appendRecord(book).append('\n');
+        }
+    }
+
+    // Delete a book from the tree and update color information
+    @Override
+    public void deleteBook(int bookId) {
+        int depth = descend(bookId);
+        if (depth < 0) {
+            out.append("Book ").append(bookId).append(" is no longer available.\n");
+            return;
+        }
+        RedBlackNode book = ownPath(depth);
+        delete(depth);
+        countColorFlips();
+        titles.remove(book.bookName, bookId);
+        authors.remove(book.authorName, bookId);
+        forget(bookId);
+        if (!book.isAvailable && book.borrowedBy != -1)
+            patrons.returned(book.borrowedBy, bookId);
+        if (!book.hasReservations()) {
+            out.append("Book ").append(bookId).append(" is no longer available.\n");
+        } else {
+            for (int i = 0; i < book.minHeap.size(); i++)
+                patrons.unreserved(book.minHeap.heap[i].getPatronId(), bookId);
+            if (LibraryMetrics.ENABLED)
+                LibraryMetrics.INSTANCE.waitlistResized(book.minHeap.size(), 0);
+            out.append("Book ").append(bookId).append(" is no longer available. Reservations made by Patrons ")
+                    .append(book.minHeap).append(" have been cancelled!\n");
+        }
+    }
+
+    // Unlink the book at the given depth of an owned path from the tree
+    private void delete(int depth) {
+        // The book unlinked from its place is z, or its predecessor when z has two
+        // children; every book above that place loses one book from its subtree
+        RedBlackNode z = path[depth];
+        int unlinked = depth;
+        if (z.left != nil && z.right != nil) {
+            path[++unlinked] = ownLeft(z);
+            while (path[unlinked].right != nil) {
+                path[unlinked + 1] = ownRight(path[unlinked]);
+                unlinked++;
+            }
+        }
+        for (int i = 0; i < unlinked; i++)
+            path[i].size--;
+
+        RedBlackNode parent = depth > 0 ? path[depth - 1] : nil;
+        NodeColor yOriginalColor = z.color;
+        RedBlackNode x;
+        int xDepth = depth;
+        if (z.left == nil) {
+            x = own(z.right);
+            replaceChild(parent, z, x);
+        } else if (z.right == nil) {
+            x = own(z.left);
+            replaceChild(parent, z, x);
+        } else {
+            RedBlackNode y = path[unlinked];
+            yOriginalColor = y.color;
+            x = ownLeft(y);
+            if (unlinked == depth + 1) {
+                xDepth = depth + 1;
+            } else {
+                path[unlinked - 1].right = x;
+                y.left = z.left;
+                xDepth = unlinked;
+            }
+            replaceChild(parent, z, y);
+            y.right = z.right;
+            y.size = z.size;
+            setColor(y, z.color);
+            path[depth] = y;
+        }
+        path[xDepth] = x;
+        if (yOriginalColor == NodeColor.BLACK) {
+            fixDeleteViolation(xDepth);
+        }
+    }
+
+    // Fix violations after deleting a book, starting from the owned book (or nil)
+    // at the given depth of the path
+    private void fixDeleteViolation(int depth) {
+        while (depth > 0 && path[depth].color == NodeColor.BLACK) {
+            if (LibraryMetrics.ENABLED)
+                LibraryMetrics.INSTANCE.deleteFixupIteration();
+            RedBlackNode x = path[depth], parent = path[depth - 1];
+            RedBlackNode above = depth > 1 ? path[depth - 2] : nil;
+            if (x == parent.left) {
+                RedBlackNode w = parent.right;
+                if (w.color == NodeColor.RED) {
+                    w = ownRight(parent);
+                    setColor(w, NodeColor.BLACK);
+                    setColor(parent, NodeColor.RED);
+                    rotateLeft(above, parent);
+                    // The sibling took the place of the parent, one level up
+                    above = w;
+                    path[depth - 1] = w;
+                    path[depth] = parent;
+                    path[++depth] = x;
+                    w = parent.right;
+                }
+                if (w.left.color == NodeColor.BLACK && w.right.color == NodeColor.BLACK) {
+                    setColor(ownRight(parent), NodeColor.RED);
+                    depth--;
+                    continue;
+                } else if (w.right.color == NodeColor.BLACK) {
+                    w = ownRight(parent);
+                    setColor(ownLeft(w), NodeColor.BLACK);
+                    setColor(w, NodeColor.RED);
+                    rotateRight(parent, w);
+                    w = parent.right;
+                }
+                if (w.right.color == NodeColor.RED) {
+                    w = ownRight(parent);
+                    setColor(w, parent.color);
+                    setColor(parent, NodeColor.BLACK);
+                    setColor(ownRight(w), NodeColor.BLACK);
+                    rotateLeft(above, parent);
+                    depth = 0;
+                    path[0] = root;
+                }
+            } else {
+                RedBlackNode w = parent.left;
+                if (w.color == NodeColor.RED) {
+                    w = ownLeft(parent);
+                    setColor(w, NodeColor.BLACK);
+                    setColor(parent, NodeColor.RED);
+                    rotateRight(above, parent);
+                    above = w;
+                    path[depth - 1] = w;
+                    path[depth] = parent;
+                    path[++depth] = x;
+                    w = parent.left;
+                }
+                if (w.right.color == NodeColor.BLACK && w.left.color == NodeColor.BLACK) {
+                    setColor(ownLeft(parent), NodeColor.RED);
+                    depth--;
+                    continue;
+                } else if (w.left.color == NodeColor.BLACK) {
+                    w = ownLeft(parent);
+                    setColor(ownRight(w), NodeColor.BLACK);
+                    setColor(w, NodeColor.RED);
+                    rotateLeft(parent, w);
+                    w = parent.left;
+                }
+                if (w.left.color == NodeColor.RED) {
+                    w = ownLeft(parent);
+                    setColor(w, parent.color);
+                    setColor(parent, NodeColor.BLACK);
+                    setColor(ownLeft(w), NodeColor.BLACK);
+                    rotateRight(above, parent);
+                    depth = 0;
+                    path[0] = root;
+                }
+            }
+        }
+        setColor(path[depth], NodeColor.BLACK);
+    }
+
+    // Print information about books within a specified range of book IDs
+    @Override
+    public void printBooks(int bookId1, int bookId2) {
+        Iterator<RedBlackNode> books = new Walk(root, nil, bookId1, bookId2, true);
+        while (books.hasNext())
+            appendRecord(books.next()).append('\n');
+    }
+
+    // Print the number of books with IDs in [bookId1, bookId2]
+    @Override
+    public void countBooks(int bookId1, int bookId2) {
+        int count = bookId1 > bookId2 ? 0 : countBelow(bookId2, true) - countBelow(bookId1, false);
+        out.append("Book Count : ").append(count).append('\n');
+    }
+
+    // Number of books with IDs below the given ID, or up to it if inclusive
+    private int countBelow(int bookId, boolean inclusive) {
+        int count = 0;
+        RedBlackNode book = root;
+        while (book != nil) {
+            if (bookId < book.bookId || (bookId == book.bookId && !inclusive)) {
+                book = book.left;
+            } else {
+                count += book.left.size + 1;
+                book = book.right;
+            }
+        }
+        return count;
+    }
+
+    // Print the 1-based position of a book in ascending order of ID
+    @Override
+    public void rankOf(int bookId) {
+        if (find(bookId) == null)
+            out.append("Book ").append(bookId).append(" not found in the library\n");
+        else
+            out.append("Rank of Book ").append(bookId).append(" : ").append(countBelow(bookId, true)).append('\n');
+    }
+
+    // Print the book at a 1-based position in ascending order of ID
+    @Override
+    public void nthBook(int rank) {
+        RedBlackNode book = select(rank);
+        if (book == nil)
+            out.append("No book with rank ").append(rank).append(" in the library\n");
+        else
+            appendRecord(book).append('\n');
+    }
+
+    // Book at a 1-based position in ascending order of ID, or nil if there is none
+    private RedBlackNode select(int rank) {
+        if (rank < 1 || rank > root.size)
+            return nil;
+        RedBlackNode book = root;
+        while (rank != book.left.size + 1) {
+            if (rank <= book.left.size) {
+                book = book.left;
+            } else {
+                rank -= book.left.size + 1;
+                book = book.right;
+            }
+        }
+        return book;
+    }
+
+    // Print one page of the books with IDs in [bookId1, bookId2], walking on from
+    // the first book of the page found by rank
+    @Override
+    public void printBooksPage(int bookId1, int bookId2, int offset, int limit) {
+        if (bookId1 > bookId2 || offset < 0 || limit <= 0)
+            return;
+        long first = (long) countBelow(bookId1, false) + offset + 1;
+        if (first > root.size)
+            return;
+        Iterator<RedBlackNode> books = new Walk(root, nil, select((int) first).bookId, bookId2, true);
+        for (int printed = 0; printed < limit && books.hasNext(); printed++)
+            appendRecord(books.next()).append('\n');
+    }
+
+    // Print the number of available books with IDs in [bookId1, bookId2]; the
+    // walk runs on a single thread
+    @Override
+    public void countAvailable(int bookId1, int bookId2) {
+        int count = 0;
+        if (bookId1 <= bookId2) {
+            for (Iterator<RedBlackNode> books = new Walk(root, nil, bookId1, bookId2, true); books.hasNext();)
+                if (books.next().isAvailable)
+                    count++;
+        }
+        out.append("Available Book Count : ").append(count).append('\n');
+    }
+
+    // Print the n books with the longest waitlists, longest first and then in
+    // ascending order of ID
+    @Override
+    public void topWaitlists(int n) {
+        WaitlistRanking ranking = new WaitlistRanking(n);
+        if (n > 0) {
+            for (Iterator<RedBlackNode> books = new Walk(root, nil, Integer.MIN_VALUE, Integer.MAX_VALUE, true); books
+                    .hasNext();) {
+                RedBlackNode book = books.next();
+                if (book.hasReservations())
+                    ranking.offer(book.bookId, book.minHeap.size());
+            }
+        }
+        ranking.appendTo(out);
+    }
+
+    // Find and print the closest book to a target book ID; on a tie both books
+    // are printed in ascending order of book ID
+    @Override
+    public void findClosestBook(int targetId) {
+        RedBlackNode lower = nil, upper = nil;
+        for (RedBlackNode temp = root; temp != nil;) {
+            if (targetId < temp.bookId) {
+                upper = temp;
+                temp = temp.left;
+            } else if (targetId > temp.bookId) {
+                lower = temp;
+                temp = temp.right;
+            } else {
+                lower = temp;
+                upper = temp;
+                break;
+            }
+        }
+        if (lower == upper) {
+            if (lower != nil)
+                appendRecord(lower).append('\n');
+            return;
+        }
+        long lowerDiff = lower == nil ? Long.MAX_VALUE : (long) targetId - lower.bookId;
+        long upperDiff = upper == nil ? Long.MAX_VALUE : (long) upper.bookId - targetId;
+        if (lowerDiff <= upperDiff)
+            appendRecord(lower).append('\n');
+        if (upperDiff <= lowerDiff)
+            appendRecord(upper).append('\n');
+    }
+
+    // Find and print the k books closest to a target book ID in ascending order of
+    // book ID, preferring the smaller book ID when two books are equally close;
+    // one walk runs down from the target and one runs up
+    @Override
+    public void findClosestK(int targetId, int k) {
+        Iterator<RedBlackNode> down = new Walk(root, nil, Integer.MIN_VALUE, targetId, false);
+        Iterator<RedBlackNode> up = new Walk(root, nil, targetId, Integer.MAX_VALUE, true);
+        RedBlackNode lower = down.hasNext() ? down.next() : nil;
+        RedBlackNode upper = up.hasNext() ? up.next() : nil;
+        Deque<RedBlackNode> lowerBooks = new ArrayDeque<>();
+        List<RedBlackNode> upperBooks = new ArrayList<>();
+        if (lower != nil && lower == upper && k > 0) {
+            upperBooks.add(upper);
+            lower = down.hasNext() ? down.next() : nil;
+            upper = up.hasNext() ? up.next() : nil;
+        }
+        while (lowerBooks.size() + upperBooks.size() < k && (lower != nil || upper != nil)) {
+            long lowerDiff = lower == nil ? Long.MAX_VALUE : (long) targetId - lower.bookId;
+            long upperDiff = upper == nil ? Long.MAX_VALUE : (long) upper.bookId - targetId;
+            if (lowerDiff <= upperDiff) {
+                lowerBooks.addFirst(lower);
+                lower = down.hasNext() ? down.next() : nil;
+            } else {
+                upperBooks.add(upper);
+                upper = up.hasNext() ? up.next() : nil;
+            }
+        }
+        for (RedBlackNode book : lowerBooks)
+            appendRecord(book).append('\n');
+        for (RedBlackNode book : upperBooks)
+            appendRecord(book).append('\n');
+    }
+
+    // Borrow a book from the library or reserve it for a patron
+    @Override
+    public void borrowBook(int patronId, int bookId, int patronPriority) {
+        RedBlackNode found = find(bookId);
+        if (found == null)
+            return;
+        if (!found.isAvailable && found.minHeap != null && found.minHeap.contains(patronId)) {
+            out.append("Book ").append(bookId).append(" already reserved by Patron ").append(patronId).append('\n');
+            return;
+        }
+        RedBlackNode book = findOwned(bookId);
+        if (book.isAvailable) {
+            book.borrowedBy = patronId;
+            book.isAvailable = false;
+            invalidate(bookId);
+            patrons.borrowed(patronId, bookId);
+            out.append("Book ").append(bookId).append(" Borrowed by Patron ").append(patronId).append('\n');
+        } else {
+            // Create the reservation heap lazily, most books never get a reservation
+            if (book.minHeap == null)
+                setWaitlist(book, new MinHeap());
+            MinHeap waitlist = waitlist(book);
+            if (waitlist.insertNode(new ReservationNode(patronId, patronPriority, System.nanoTime()))) {
+                if (LibraryMetrics.ENABLED)
+                    LibraryMetrics.INSTANCE.waitlistResized(waitlist.size() - 1, waitlist.size());
+                invalidate(bookId);
+                patrons.reserved(patronId, bookId);
+                out.append("Book ").append(bookId).append(" Reserved by Patron ").append(patronId).append('\n');
+            } else {
+                out.append("Book ").append(bookId).append(" Reservation list is full, Patron ").append(patronId)
+                        .append(" could not reserve it\n");
+            }
+        }
+    }
+
+    // Return a borrowed book to the library and handle reservations
+    @Override
+    public void returnBook(int patronId, int bookId) {
+        RedBlackNode found = find(bookId);
+        if (found == null || found.borrowedBy != patronId || found.isAvailable)
+            return;
+        RedBlackNode book = findOwned(bookId);
+        book.borrowedBy = -1;
+        book.isAvailable = true;
+        invalidate(bookId);
+        patrons.returned(patronId, bookId);
+        out.append("Book ").append(bookId).append(" Returned by Patron ").append(patronId).append('\n');
+        if (book.hasReservations()) {
+            MinHeap waitlist = waitlist(book);
+            ReservationNode latestReservation = waitlist.poll();
+            if (LibraryMetrics.ENABLED)
+                LibraryMetrics.INSTANCE.waitlistResized(waitlist.size() + 1, waitlist.size());
+            // Release the reservation heap once the waitlist drains
+            if (waitlist.isEmpty())
+                setWaitlist(book, null);
+            patrons.unreserved(latestReservation.getPatronId(), bookId);
+            if (latestReservation.getPatronId() == -1)
+                return;
+            book.borrowedBy = latestReservation.getPatronId();
+            book.isAvailable = false;
+            patrons.borrowed(book.borrowedBy, bookId);
+            out.append("Book ").append(bookId).append(" Allotted to Patron ").append(latestReservation.getPatronId())
+                    .append('\n');
+        }
+    }
+
+    // Run a batch of borrows and returns in order, one at a time: owning the path
+    // of one book may copy books that other rows of the batch would have found
+    @Override
+    public void circulate(CirculationBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.isReturn(i))
+                returnBook(batch.patronId(i), batch.bookId(i));
+            else
+                borrowBook(batch.patronId(i), batch.bookId(i), batch.priority(i));
+        }
+    }
+
+    // Print the books a patron has borrowed and reserved
+    @Override
+    public void printPatron(int patronId) {
+        out.appendPatron(patronId, patrons.borrowedBooks(patronId), patrons.reservedBooks(patronId));
+    }
+
+    // Cancel every reservation of a patron, visiting only the books the patron
+    // reserved
+    @Override
+    public void cancelAllReservations(int patronId) {
+        int[] reserved = patrons.reservedBooks(patronId);
+        for (int bookId : reserved)
+            cancel(findOwned(bookId), patronId);
+        out.appendCancelled(patronId, reserved);
+    }
+
+    // Cancel the reservation of a patron on one book
+    @Override
+    public void cancelReservation(int patronId, int bookId) {
+        RedBlackNode found = find(bookId);
+        if (found == null) {
+            out.append("Book ").append(bookId).append(" not found in the library\n");
+        } else if (found.hasReservations() && found.minHeap.contains(patronId)
+                && cancel(findOwned(bookId), patronId)) {
+            out.append("Reservation made by Patron ").append(patronId).append(" on Book ").append(bookId)
+                    .append(" has been cancelled!\n");
+        } else {
+            out.append("Patron ").append(patronId).append(" has no reservation on Book ").append(bookId)
+                    .append('\n');
+        }
+    }
+
+    // Remove the reservation of a patron from the waitlist of an owned book;
+    // returns whether there was one
+    private boolean cancel(RedBlackNode book, int patronId) {
+        if (!book.hasReservations() || !waitlist(book).remove(patronId))
+            return false;
+        if (LibraryMetrics.ENABLED)
+            LibraryMetrics.INSTANCE.waitlistResized(book.minHeap.size() + 1, book.minHeap.size());
+        if (book.minHeap.isEmpty())
+            setWaitlist(book, null);
+        invalidate(book.bookId);
+        patrons.unreserved(patronId, book.bookId);
+        return true;
+    }
+
+    // Give the reservation of a patron on a book a new priority
+    @Override
+    public void updatePriority(int patronId, int bookId, int newPriority) {
+        RedBlackNode found = find(bookId);
+        if (found == null) {
+            out.append("Book ").append(bookId).append(" not found in the library\n");
+        } else if (found.hasReservations() && found.minHeap.contains(patronId)
+                && waitlist(findOwned(bookId)).updatePriority(patronId, newPriority)) {
+            invalidate(bookId);
+            out.append("Reservation made by Patron ").append(patronId).append(" on Book ").append(bookId)
+                    .append(" now has priority ").append(newPriority).append('\n');
+        } else {
+            out.append("Patron ").append(patronId).append(" has no reservation on Book ").append(bookId)
+                    .append('\n');
+        }
+    }
+
+    // Print the books whose title starts with a prefix, in ascending order of ID
+    @Override
+    public void findByTitle(String prefix) {
+        printMatches(titles.find(prefix), "title", prefix);
+    }
+
+    // Print the books whose author starts with a prefix, in ascending order of ID
+    @Override
+    public void findByAuthor(String prefix) {
+        printMatches(authors.find(prefix), "author", prefix);
+    }
+
+    // Print the books found by a prefix search, or that there are none
+    private void printMatches(int[] bookIds, String field, String prefix) {
+        if (bookIds.length == 0)
+            out.appendNoMatches(field, prefix);
+        for (int bookId : bookIds)
+            appendRecord(find(bookId)).append('\n');
+    }
+
+    // Append the record of a book to the output, copying it from the record cache
+    // when the book is cached and clean
+    private OutputSink appendRecord(RedBlackNode book) {
+        if (records == null || !book.hasReservations())
+            return out.append(book);
+        String record = records.get(book.bookId);
+        if (record != null)
+            return out.append(record);
+        long removals = records.removals();
+        StringBuilder formatted = new StringBuilder(128);
+        book.appendTo(formatted);
+        records.put(book.bookId, formatted, removals);
+        return out.append(formatted);
+    }
+
+    // Mark the cached record of a book dirty after a change to its fields or
+    // waitlist
+    private void invalidate(int bookId) {
+        if (records != null)
+            records.invalidate(bookId);
+    }
+
+    // Drop the cached record of a book that was added or deleted
+    private void forget(int bookId) {
+        if (records != null)
+            records.remove(bookId);
+    }
+
+    // Add a book to the title and author indexes
+    private void indexText(RedBlackNode book) {
+        titles.add(book.bookName, book.bookId);
+        authors.add(book.authorName, book.bookId);
+    }
+
+    // Write a view of the catalog to a snapshot file; returns whether it was saved
+    @Override
+    public boolean snapshot(String fileName) {
+        try {
+            int books = snapshot().save(Paths.get(fileName));
+            out.append("Snapshot of ").append(books).append(" books saved to ").append(fileName).append('\n');
+            return true;
+        } catch (IOException | InvalidPathException e) {
+            out.append("Snapshot to ").append(fileName).append(" failed: ").append(LibrarySnapshot.describe(e))
+                    .append('\n');
+            return false;
+        }
+    }
+
+    // Replace the catalog with the one in a snapshot file; returns whether it was
+    // restored. Views taken before keep the books they had.
+    @Override
+    public boolean restore(String fileName) {
+        try {
+            int books = new LibrarySnapshot(nil).restore(this::replaceBooks, Paths.get(fileName));
+            out.append("Restored ").append(books).append(" books from ").append(fileName).append('\n');
+            return true;
+        } catch (IOException | InvalidPathException e) {
+            out.append("Restore from ").append(fileName).append(" failed: ").append(LibrarySnapshot.describe(e))
+                    .append('\n');
+            return false;
+        }
+    }
+
+    // Replace all books with the tree below the given root and carry on counting
+    // color flips from the given count; throws IllegalStateException and leaves the
+    // tree unchanged if the new tree is not a valid red-black tree
+    private void replaceBooks(RedBlackNode newRoot, int newFlipCount) {
+        if (newRoot != nil && newRoot.color != NodeColor.BLACK)
+            throw new IllegalStateException("Root " + newRoot.bookId + " is not black");
+        adopt(newRoot);
+        checkInvariants(newRoot, Long.MIN_VALUE, Long.MAX_VALUE);
+        if (LibraryMetrics.ENABLED)
+            recordWaitlists(false); // The old books and their waitlists go away
+        root = newRoot;
+        flipCount = newFlipCount;
+        rebuildIndexes();
+        if (records != null)
+            records.clear();
+        if (LibraryMetrics.ENABLED)
+            recordWaitlists(true);
+    }
+
+    // Set the subtree size of every book below the given one and mark it owned by
+    // the current version in place of its parent link; returns its size
+    private int adopt(RedBlackNode book) {
+        if (book == nil)
+            return 0;
+        book.size = adopt(book.left) + adopt(book.right) + 1;
+        book.parent = owned;
+        return book.size;
+    }
+
+    // Rebuild the patron, title and author indexes from every book
+    private void rebuildIndexes() {
+        patrons.clear();
+        titles.clear();
+        authors.clear();
+        for (Iterator<RedBlackNode> books = new Walk(root, nil, Integer.MIN_VALUE, Integer.MAX_VALUE, true); books
+                .hasNext();) {
+            RedBlackNode book = books.next();
+            indexText(book);
+            if (!book.isAvailable && book.borrowedBy != -1)
+                patrons.borrowed(book.borrowedBy, book.bookId);
+            for (int i = 0; book.minHeap != null && i < book.minHeap.size(); i++)
+                patrons.reserved(book.minHeap.heap[i].getPatronId(), book.bookId);
+        }
+    }
+
+    // Add the waitlists of every book to the metrics, or remove them
+    private void recordWaitlists(boolean add) {
+        for (Iterator<RedBlackNode> books = new Walk(root, nil, Integer.MIN_VALUE, Integer.MAX_VALUE, true); books
+                .hasNext();) {
+            RedBlackNode book = books.next();
+            if (!book.hasReservations())
+                continue;
+            int waitlist = book.minHeap.size();
+            LibraryMetrics.INSTANCE.waitlistResized(add ? 0 : waitlist, add ? waitlist : 0);
+        }
+    }
+
+    // Number of books on the longest path from the root to a leaf
+    @Override
+    public int height() {
+        return height(root);
+    }
+
+    // Height of a subtree
+    private int height(RedBlackNode book) {
+        return book == nil ? 0 : 1 + Math.max(height(book.left), height(book.right));
+    }
+
+    // Number of black books on every path from the root to a leaf
+    @Override
+    public int blackHeight() {
+        int blackBooks = 0;
+        for (RedBlackNode book = root; book != nil; book = book.left) {
+            if (book.color == NodeColor.BLACK)
+                blackBooks++;
+        }
+        return blackBooks;
+    }
+
+    // Check the red-black properties of the current version, throwing
+    // IllegalStateException on the first violation
+    void checkInvariants() {
+        if (root != nil && root.color != NodeColor.BLACK)
+            throw new IllegalStateException("Root " + root.bookId + " is not black");
+        checkInvariants(root, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    // Check a subtree whose keys lie strictly between lower and upper; returns its
+    // black height
+    private int checkInvariants(RedBlackNode book, long lower, long upper) {
+        if (book == nil)
+            return 1;
+        if (book.bookId <= lower || book.bookId >= upper)
+            throw new IllegalStateException("Book " + book.bookId + " is out of order");
+        if (book.color == NodeColor.RED && (book.left.color == NodeColor.RED || book.right.color == NodeColor.RED))
+            throw new IllegalStateException("Red book " + book.bookId + " has a red child");
+        if (book.size != book.left.size + book.right.size + 1)
+            throw new IllegalStateException("Book " + book.bookId + " has a wrong subtree size");
+        int leftHeight = checkInvariants(book.left, lower, book.bookId);
+        int rightHeight = checkInvariants(book.right, book.bookId, upper);
+        if (leftHeight != rightHeight)
+            throw new IllegalStateException("Book " + book.bookId + " has unequal black heights");
+        return leftHeight + (book.color == NodeColor.BLACK ? 1 : 0);
+    }
+
+    // Quit the program, append the termination message and flush the output
+    @Override
+    public void quit() throws IOException {
+        out.append("Program Terminated!!\n");
+        out.flush();
+    }
+
+    // Walk over the books of one version with IDs in [lower, upper], in ascending
+    // or descending order of ID, keeping the books still to visit on a stack
+    // instead of following parent links
+    static final class Walk implements Iterator<RedBlackNode> {
+        private final RedBlackNode nil; // Null node of the tree
+        private final RedBlackNode[] stack = new RedBlackNode[MAX_HEIGHT];
+        private int top; // Books on the stack
+        private final int lower, upper; // Range of book IDs to return
+        private final boolean ascending;
+
+        Walk(RedBlackNode root, RedBlackNode nil, int lower, int upper, boolean ascending) {
+            this.nil = nil;
+            this.lower = lower;
+            this.upper = upper;
+            this.ascending = ascending;
+            if (lower > upper)
+                return;
+            // Stack the books on the path to the first book in range
+            for (RedBlackNode book = root; book != nil;) {
+                if (ascending ? book.bookId < lower : book.bookId > upper) {
+                    book = ascending ? book.right : book.left;
+                } else {
+                    stack[top++] = book;
+                    book = ascending ? book.left : book.right;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return top > 0 && (ascending ? stack[top - 1].bookId <= upper : stack[top - 1].bookId >= lower);
+        }
+
+        @Override
+        public RedBlackNode next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            RedBlackNode book = stack[--top];
+            for (RedBlackNode next = ascending ? book.right : book.left; next != nil;) {
+                stack[top++] = next;
+                next = ascending ? next.left : next.right;
+            }
+            return book;
+        }
+    }
+}
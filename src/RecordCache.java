@@ -0,0 +1,201 @@
+// Cache of the formatted records of recently printed books, so that printing a
+// popular book again is a plain copy of its bytes into the output instead of
+// formatting its fields and sorting its waitlist. Records are kept as Strings,
+// which append to the output buffer with an array copy as long as the text is
+// Latin-1. Entries are found by book ID in an IntMap and kept on a doubly-linked
+// list from most to least recently used; once the bytes held exceed the memory
+// limit, the least recently used entries are evicted.
+//
+// The first print of a book only adds an empty entry, and its record is kept from
+// the second print on, so that a scan over many books printed once does not flush
+// the popular ones. A change to a book marks its entry dirty, dropping the record
+// but keeping its place in the list, and the next print formats it again.
+//
+// The tree that owns the cache must invalidate a book under the same lock that
+// guards the change to it. A lookup may format a book while a concurrent delete or
+// restore removes it, so a record is only kept if nothing was removed since the
+// caller read removals() before formatting it. The cache itself is not
+// thread-safe; a tree shared between threads (ConcurrentLibrary) uses the
+// synchronized subclass, so that single-threaded trees do not pay for a monitor
+// on every print.
+public class RecordCache {
+    // Memory limit of the cache of each tree in bytes, 0 to turn caching off
+    // (-Dgatorlibrary.recordCacheBytes=<n>)
+    static final int DEFAULT_CAPACITY = Integer.getInteger("gatorlibrary.recordCacheBytes", 8 << 20);
+
+    // Bytes charged for an entry besides the text of its record, one byte per
+    // character: the entry, its map slot and the String with its array header
+    private static final int ENTRY_OVERHEAD = 72;
+
+    // Cache whose methods synchronize on it, for trees shared between threads
+    static final class Shared extends RecordCache {
+        Shared(long capacity) {
+            super(capacity);
+        }
+
+        @Override
+        synchronized String get(int bookId) {
+            return super.get(bookId);
+        }
+
+        @Override
+        synchronized void put(int bookId, CharSequence formatted, long removalsBefore) {
+            super.put(bookId, formatted, removalsBefore);
+        }
+
+        @Override
+        synchronized void invalidate(int bookId) {
+            super.invalidate(bookId);
+        }
+
+        @Override
+        synchronized void remove(int bookId) {
+            super.remove(bookId);
+        }
+
+        @Override
+        synchronized void clear() {
+            super.clear();
+        }
+
+        @Override
+        synchronized int size() {
+            return super.size();
+        }
+
+        @Override
+        synchronized long usedBytes() {
+            return super.usedBytes();
+        }
+    }
+
+    // Cached record of one book, linked into the recency list
+    private static final class Entry {
+        final int bookId; // ID of the book
+        String record; // Formatted record of the book, null until its second print or while dirty
+        Entry newer, older; // Neighbours in the recency list
+
+        Entry(int bookId) {
+            this.bookId = bookId;
+        }
+    }
+
+    private final long capacity; // Memory limit in bytes
+    private final IntMap<Entry> entries = new IntMap<>(0); // Entry of each cached book
+    private final Entry head = new Entry(-1); // Sentinel; head.older is the most recently used entry
+    private long used; // Bytes charged for the entries
+    private volatile long removals; // Number of remove and clear calls so far
+
+    // Constructor to create an empty cache holding up to the given number of bytes
+    public RecordCache(long capacity) {
+        this.capacity = capacity;
+        head.newer = head.older = head;
+    }
+
+    // Cached record of a book, or null if it is not cached or dirty; a hit makes
+    // the book the most recently used
+    String get(int bookId) {
+        Entry entry = entries.get(bookId);
+        if (entry == null || entry.record == null) {
+            if (LibraryMetrics.ENABLED)
+                LibraryMetrics.INSTANCE.recordCacheMissed();
+            return null;
+        }
+        if (LibraryMetrics.ENABLED)
+            LibraryMetrics.INSTANCE.recordCacheHit();
+        unlink(entry);
+        linkFirst(entry);
+        return entry.record;
+    }
+
+    // Number of removals so far, to be read before formatting a record to offer
+    long removals() {
+        return removals;
+    }
+
+    // Offer the freshly formatted record of a book that missed the cache: a book
+    // seen for the first time gets an empty entry, any other keeps its record. The
+    // record is ignored if a book was removed since the given count of removals
+    // was read. Evicts the least recently used entries while over the limit.
+    void put(int bookId, CharSequence formatted, long removalsBefore) {
+        if (removalsBefore != removals || ENTRY_OVERHEAD + (long) formatted.length() > capacity)
+            return; // Possibly stale, or would never fit
+        Entry entry = entries.get(bookId);
+        if (entry == null) {
+            entry = new Entry(bookId);
+            entries.put(bookId, entry);
+            used += ENTRY_OVERHEAD;
+        } else {
+            drop(entry);
+            unlink(entry);
+            entry.record = formatted.toString();
+            used += entry.record.length();
+        }
+        linkFirst(entry);
+        while (used > capacity)
+            remove(head.newer);
+    }
+
+    // Mark the record of a book dirty after a change to the book
+    void invalidate(int bookId) {
+        Entry entry = entries.get(bookId);
+        if (entry != null)
+            drop(entry);
+    }
+
+    // Forget a book that left the library
+    void remove(int bookId) {
+        removals++;
+        Entry entry = entries.get(bookId);
+        if (entry != null)
+            remove(entry);
+    }
+
+    // Forget every book
+    void clear() {
+        removals++;
+        entries.clear();
+        head.newer = head.older = head;
+        used = 0;
+    }
+
+    // Number of books with an entry, dirty or not
+    int size() {
+        return entries.size();
+    }
+
+    // Bytes charged for the entries
+    long usedBytes() {
+        return used;
+    }
+
+    // Release the record of an entry, leaving it dirty
+    private void drop(Entry entry) {
+        if (entry.record != null) {
+            used -= entry.record.length();
+            entry.record = null;
+        }
+    }
+
+    // Remove an entry from the map and the recency list
+    private void remove(Entry entry) {
+        drop(entry);
+        unlink(entry);
+        entries.remove(entry.bookId);
+        used -= ENTRY_OVERHEAD;
+    }
+
+    // Make an entry the most recently used
+    private void linkFirst(Entry entry) {
+        entry.newer = head;
+        entry.older = head.older;
+        head.older.newer = entry;
+        head.older = entry;
+    }
+
+    // Take an entry out of the recency list
+    private void unlink(Entry entry) {
+        entry.newer.older = entry.older;
+        entry.older.newer = entry.newer;
+    }
+}
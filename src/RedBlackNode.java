@@ -7,7 +7,8 @@ public class RedBlackNode {
     int borrowedBy; // ID of the patron who borrowed the book (-1 if not borrowed)
     RedBlackNode left, right, parent; // References to left child, right child, and parent nodes
     NodeColor color; // Color of the node in the Red-Black Tree (RED or BLACK)
-    MinHeap minHeap; // MinHeap to manage reservations for the book
+    int size; // Number of books in the subtree rooted at this node (0 for nil)
+    MinHeap minHeap; // MinHeap to manage reservations for the book (null while there are none)
 
     // Default constructor
     public RedBlackNode() {
@@ -18,13 +19,18 @@ public class RedBlackNode {
         this.bookId = bookId;
         this.bookName = bookName;
         this.authorName = authorName;
-        this.left = EmptyRBNode.nil; // Initialize left child as nil
-        this.right = EmptyRBNode.nil; // Initialize right child as nil
-        this.parent = EmptyRBNode.nil; // Initialize parent as nil
+        // The left, right and parent links are set to the tree's nil node when the
+        // book joins a tree
         this.color = NodeColor.BLACK; // New nodes are initially colored black
         this.isAvailable = isAvailable;
         this.borrowedBy = -1; // Initialize borrowedBy as -1 (indicating not borrowed)
-        minHeap = new MinHeap(20); // Initialize MinHeap for reservations with a capacity of 20
+        this.size = 1; // A new book is a subtree of its own
+        // The reservation MinHeap is created with the first reservation
+    }
+
+    // Check whether the book has any pending reservations
+    public boolean hasReservations() {
+        return minHeap != null && !minHeap.isEmpty();
     }
 
     // Constructor to create a special node with only a bookId and default color
@@ -33,14 +39,34 @@ public class RedBlackNode {
         this.color = NodeColor.BLACK; // New nodes are initially colored black
     }
 
+    // Append the formatted record of the book to the given buffer
+    public void appendTo(StringBuilder out) {
+        appendTo(out, bookId, bookName, authorName, isAvailable, borrowedBy, minHeap);
+    }
+
+    // Append the formatted record of a book given by its fields to the given buffer
+    static void appendTo(StringBuilder out, int bookId, String bookName, String authorName, boolean isAvailable,
+            int borrowedBy, MinHeap minHeap) {
+        out.append("BookID = ").append(bookId)
+                .append("\nTitle = \"").append(bookName)
+                .append("\"\nAuthor = \"").append(authorName)
+                .append("\"\nAvailability = \"").append(isAvailable ? "Yes" : "No")
+                .append("\"\nBorrowedBy = ");
+        if (borrowedBy == -1)
+            out.append("None");
+        else
+            out.append(borrowedBy);
+        out.append("\nReservations = [");
+        if (minHeap != null)
+            minHeap.appendPatronIds(out);
+        out.append("]\n");
+    }
+
     // Override toString method to provide a formatted string representation of the node
     @Override
     public String toString() {
-        return "BookID = " + bookId +
-                "\nTitle = \"" + bookName +
-                "\"\nAuthor = \"" + authorName +
-                "\"\nAvailability = \"" + (isAvailable ? "Yes" : "No") +
-                "\"\nBorrowedBy = " + (borrowedBy == -1 ? "None" : borrowedBy) +
-                "\nReservations = [" + minHeap + "]\n";
+        StringBuilder res = new StringBuilder();
+        appendTo(res);
+        return res.toString();
     }
 }
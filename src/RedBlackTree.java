@@ -1,28 +1,68 @@
+import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.*;
 
 // Implementation of a Red-Black Tree for managing a library system
-class RedBlackTree {
+class RedBlackTree implements Catalog {
 
     // Maps to store the color information of nodes before and after an operation
-    public static Map<Integer, NodeColor> hm1 = new HashMap<>();
-    public static Map<Integer, NodeColor> hm2 = new HashMap<>();
+    private Map<Integer, NodeColor> hm1 = new HashMap<>();
+    private final Map<Integer, NodeColor> hm2 = new HashMap<>();
 
-    // Null node constant
-    private final RedBlackNode nil = EmptyRBNode.nil;
+    // Null node of this tree
+    private final RedBlackNode nil = EmptyRBNode.create();
 
     // Counter for color flip operations
     public int flipCount;
 
+    // Last command log frame the catalog holds, written into its snapshots so that
+    // recovery skips the frames a snapshot already holds
+    long logSequence;
+
+    // Cross-check the incremental color flip counter against the full-tree color
+    // snapshots after every insert and delete (-Dgatorlibrary.verifyFlips=true);
+    // FlipCountCheck runs the sample and generated scripts this way
+    static final boolean VERIFY_FLIPS = Boolean.getBoolean("gatorlibrary.verifyFlips");
+
+    // Number of books from which catalog-wide aggregates run as parallel streams
+    // (-Dgatorlibrary.parallelThreshold=<n>)
+    static final int PARALLEL_THRESHOLD = Integer.getInteger("gatorlibrary.parallelThreshold", 1 << 14);
+
+    // Nodes recolored during the current operation and their colors before it
+    private final List<RedBlackNode> recolored = new ArrayList<>();
+    private final List<NodeColor> originalColors = new ArrayList<>();
+
     // Root of the Red-Black Tree
     private RedBlackNode root;
 
-    // StringBuilder to accumulate results during library operations
-    public static StringBuilder resultString = new StringBuilder();
+    // Destination of the results of library operations
+    private final OutputSink out;
+
+    // Books borrowed and reserved by each patron
+    private final PatronIndex patrons = new PatronIndex();
 
-    // Constructor initializes an empty Red-Black Tree
+    // Books by title and by author, for prefix searches
+    private final TextIndex titles = new TextIndex();
+    private final TextIndex authors = new TextIndex();
+
+    // Formatted records of recently printed books with a waitlist, null when
+    // caching is off; a book without one formats as fast as its record would copy
+    private RecordCache records = RecordCache.DEFAULT_CAPACITY > 0
+            ? new RecordCache(RecordCache.DEFAULT_CAPACITY)
+            : null;
+
+    // Constructor initializes an empty Red-Black Tree writing to standard output
     public RedBlackTree() {
+        this(new OutputSink(new OutputStreamWriter(System.out), OutputSink.DEFAULT_BUFFER_SIZE));
+    }
+
+    // Constructor initializes an empty Red-Black Tree writing to the given sink
+    public RedBlackTree(OutputSink out) {
         this.root = nil;
         this.flipCount = 0;
+        this.out = out;
     }
 
     // Insert a book into the Red-Black Tree and update color information
@@ -31,27 +71,142 @@ class RedBlackTree {
         // Create a new Red-Black Node representing the book
         RedBlackNode book = new RedBlackNode(bookId, bookName, authorName, isAvailable.equals("Yes"));
 
-        // Transfer color information from the previous map to the current map
-        transferMap();
+        // Take the color snapshot of the whole tree only when verifying the counter
+        int previousFlipCount = this.flipCount;
+        if (VERIFY_FLIPS) {
+            transferMap();
+            hm1.put(bookId, root == nil ? NodeColor.BLACK : NodeColor.RED);
+        }
 
-        // Update color information for the newly inserted book
-        if (root == nil) {
-            hm1.put(bookId, NodeColor.BLACK);
-        } else {
-            hm1.put(bookId, NodeColor.RED);
+        // Perform the book insertion operation and count the color flips it caused
+        if (insert(book)) {
+            indexText(book);
+            forget(bookId);
+        } else if (printBook(bookId).color != NodeColor.RED) {
+            // The snapshot diff recorded a duplicate id as a new red node, which
+            // counted a flip against an existing black node; keep the same numbers
+            this.flipCount++;
         }
+        countColorFlips();
 
-        // Perform the book insertion operation
-        insert(book);
+        if (VERIFY_FLIPS) {
+            verifyColorFlipCount(previousFlipCount);
+        }
+    }
 
-        // Populate the latest color information map
-        populateLatestMap();
+    // Load a batch of books by rebuilding the tree bottom-up in linear time. The
+    // batch is sorted by book ID unless it already is, and merged with the books
+    // in the tree; a book ID that is already present keeps its first book. Each
+    // new book counts as a color flip if it ends up black (new books start red,
+    // except the first book of an empty tree) and each existing book counts as a
+    // flip if the rebuild changes its color.
+    public void bulkLoad(List<RedBlackNode> books) {
+        RedBlackNode[] batch = books.toArray(new RedBlackNode[0]);
+        for (int i = 1; i < batch.length; i++) {
+            if (batch[i - 1].bookId > batch[i].bookId) {
+                Arrays.sort(batch, Comparator.comparingInt(book -> book.bookId));
+                break;
+            }
+        }
+
+        // Merge the books in the tree with the batch, both in ascending order
+        int existing = size();
+        RedBlackNode[] merged = new RedBlackNode[existing + batch.length];
+        NodeColor[] previousColors = new NodeColor[merged.length];
+        boolean wasEmpty = root == nil;
+        RedBlackNode current = wasEmpty ? nil : treeMinimum(root);
+        int count = 0, next = 0;
+        while (current != nil || next < batch.length) {
+            RedBlackNode book;
+            boolean added = false;
+            if (next == batch.length || (current != nil && current.bookId <= batch[next].bookId)) {
+                book = current;
+                previousColors[count] = current.color;
+                current = successor(current);
+            } else {
+                book = batch[next++];
+                previousColors[count] = wasEmpty && count == 0 ? NodeColor.BLACK : NodeColor.RED;
+                added = true;
+            }
+            if (count > 0 && merged[count - 1].bookId == book.bookId)
+                continue;
+            if (added) {
+                indexText(book);
+                forget(book.bookId);
+            }
+            merged[count++] = book;
+        }
+
+        // Nodes on the last level are red unless it is complete, all others black
+        int height = 31 - Integer.numberOfLeadingZeros(count + 1);
+        int redDepth = (1 << height) - 1 == count ? -1 : height;
+        root = build(merged, 0, count - 1, nil, 0, redDepth);
+        for (int i = 0; i < count; i++) {
+            if (merged[i].color != previousColors[i])
+                this.flipCount++;
+        }
+
+        if (VERIFY_FLIPS) {
+            // Start the snapshot comparison over from the rebuilt tree
+            hm2.clear();
+            populateLatestMap();
+        }
+    }
+
+    // Link the sorted books [lo, hi] into a balanced subtree below the given parent
+    private RedBlackNode build(RedBlackNode[] books, int lo, int hi, RedBlackNode parent, int depth,
+            int redDepth) {
+        if (lo > hi)
+            return nil;
+        int mid = (lo + hi) >>> 1;
+        RedBlackNode book = books[mid];
+        book.parent = parent;
+        book.color = depth == redDepth ? NodeColor.RED : NodeColor.BLACK;
+        book.size = hi - lo + 1;
+        book.left = build(books, lo, mid - 1, book, depth + 1, redDepth);
+        book.right = build(books, mid + 1, hi, book, depth + 1, redDepth);
+        return book;
+    }
+
+    // Count the books in the tree
+    private int size() {
+        return root.size;
+    }
+
+    // Change the color of a node, remembering its color before the current operation
+    private void setColor(RedBlackNode node, NodeColor color) {
+        if (node != nil && node.color != color && !recolored.contains(node)) {
+            recolored.add(node);
+            originalColors.add(node.color);
+        }
+        node.color = color;
+    }
 
-        // Calculate and update the color flip count
+    // Count the nodes whose color differs from the one they had before the current
+    // operation; a node recolored and restored within the same fix-up is not a flip
+    private void countColorFlips() {
+        for (int i = 0; i < recolored.size(); i++) {
+            if (recolored.get(i).color != originalColors.get(i)) {
+                this.flipCount++;
+            }
+        }
+        recolored.clear();
+        originalColors.clear();
+    }
+
+    // Compare the incremental color flip count with the full-tree snapshot diff
+    private void verifyColorFlipCount(int previousFlipCount) {
+        int incrementalFlipCount = this.flipCount;
+        this.flipCount = previousFlipCount;
+        populateLatestMap();
         colorFlipCount();
+        if (this.flipCount != incrementalFlipCount) {
+            throw new IllegalStateException("Color flip count mismatch: incremental " + incrementalFlipCount
+                    + ", snapshot " + this.flipCount);
+        }
     }
 
-    // Count the number of color flips that occurred during library operations
+    // Count the number of color flips between the two color snapshots
     private void colorFlipCount() {
         for (Map.Entry<Integer, NodeColor> entry : hm1.entrySet()) {
             if (entry.getValue() != hm2.get(entry.getKey())) {
@@ -60,9 +215,9 @@ class RedBlackTree {
         }
     }
 
-    // Get and append the color flip count to the resultString
+    // Get and append the color flip count to the output
     public void getColorFlipCount() {
-        resultString.append("Color Flip Count : " + this.flipCount + "\n");
+        out.append("Color Flip Count : ").append(this.flipCount).append('\n');
     }
 
     // Populate the latest color information map through an inorder traversal of the
@@ -88,10 +243,14 @@ class RedBlackTree {
         hm2.clear();
     }
 
-    // Insert a Red-Black Node into the Red-Black Tree and fix any violations
-    private void insert(RedBlackNode book) {
+    // Insert a Red-Black Node into the Red-Black Tree and fix any violations;
+    // returns false if a book with the same id already exists
+    private boolean insert(RedBlackNode book) {
 
         RedBlackNode tempRoot = root;
+        book.left = nil;
+        book.right = nil;
+        book.size = 1;
         if (root == nil) {
             root = book;
             book.color = NodeColor.BLACK;
@@ -108,7 +267,7 @@ class RedBlackTree {
                         tempRoot = tempRoot.left;
                     }
                 } else if (book.bookId == tempRoot.bookId) {
-                    return;
+                    return false;
                 } else {
                     if (tempRoot.right == nil) {
                         tempRoot.right = book;
@@ -119,23 +278,29 @@ class RedBlackTree {
                     }
                 }
             }
+            // Count the new book in the subtree of every ancestor
+            for (RedBlackNode ancestor = book.parent; ancestor != nil; ancestor = ancestor.parent)
+                ancestor.size++;
             fixInsertViolation(book);
         }
+        return true;
     }
 
     // Fix violations after inserting a Red-Black Node
     private void fixInsertViolation(RedBlackNode book) {
         while (book.parent.color == NodeColor.RED) {
+            if (LibraryMetrics.ENABLED)
+                LibraryMetrics.INSTANCE.insertFixupIteration();
             RedBlackNode uncle = nil;
             if (book.parent == book.parent.parent.left) {
                 uncle = book.parent.parent.right;
 
                 if (uncle != nil && uncle.color == NodeColor.RED) {
-                    book.parent.color = NodeColor.BLACK;
+                    setColor(book.parent, NodeColor.BLACK);
                     if (book.parent.parent.color != NodeColor.RED && book.parent.parent != root) {
-                        book.parent.parent.color = NodeColor.RED;
+                        setColor(book.parent.parent, NodeColor.RED);
                     }
-                    uncle.color = NodeColor.BLACK;
+                    setColor(uncle, NodeColor.BLACK);
                     book = book.parent.parent;
                     continue;
                 }
@@ -143,15 +308,15 @@ class RedBlackTree {
                     book = book.parent;
                     rotateLeft(book);
                 }
-                book.parent.color = NodeColor.BLACK;
-                book.parent.parent.color = NodeColor.RED;
+                setColor(book.parent, NodeColor.BLACK);
+                setColor(book.parent.parent, NodeColor.RED);
                 rotateRight(book.parent.parent);
             } else {
                 uncle = book.parent.parent.left;
                 if (uncle != nil && uncle.color == NodeColor.RED) {
-                    book.parent.color = NodeColor.BLACK;
-                    book.parent.parent.color = NodeColor.RED;
-                    uncle.color = NodeColor.BLACK;
+                    setColor(book.parent, NodeColor.BLACK);
+                    setColor(book.parent.parent, NodeColor.RED);
+                    setColor(uncle, NodeColor.BLACK);
                     book = book.parent.parent;
                     continue;
                 }
@@ -159,16 +324,18 @@ class RedBlackTree {
                     book = book.parent;
                     rotateRight(book);
                 }
-                book.parent.color = NodeColor.BLACK;
-                book.parent.parent.color = NodeColor.RED;
+                setColor(book.parent, NodeColor.BLACK);
+                setColor(book.parent.parent, NodeColor.RED);
                 rotateLeft(book.parent.parent);
             }
         }
-        root.color = NodeColor.BLACK;
+        setColor(root, NodeColor.BLACK);
     }
 
     // Perform a left rotation operation on the Red-Black Tree
     private void rotateLeft(RedBlackNode book) {
+        if (LibraryMetrics.ENABLED)
+            LibraryMetrics.INSTANCE.rotated();
         if (book.parent != nil) {
             if (book == book.parent.left) {
                 book.parent.left = book.right;
@@ -191,10 +358,13 @@ class RedBlackTree {
             right.parent = nil;
             root = right;
         }
+        resizeRotated(book);
     }
 
     // Perform a right rotation operation on the Red-Black Tree
     private void rotateRight(RedBlackNode book) {
+        if (LibraryMetrics.ENABLED)
+            LibraryMetrics.INSTANCE.rotated();
         if (book.parent != nil) {
             if (book == book.parent.left) {
                 book.parent.left = book.left;
@@ -218,6 +388,14 @@ class RedBlackTree {
             left.parent = nil;
             root = left;
         }
+        resizeRotated(book);
+    }
+
+    // Fix the subtree sizes after a rotation moved a book below its former child,
+    // which now roots the subtree the book used to root
+    private void resizeRotated(RedBlackNode book) {
+        book.parent.size = book.size;
+        book.size = book.left.size + book.right.size + 1;
     }
 
     // Print information about a specific book in the Red-Black Tree
@@ -225,48 +403,80 @@ class RedBlackTree {
         RedBlackNode temp = root;
         if (root.bookId == -1)
             return null;
-        while (true) {
-            if (bookId < temp.bookId) {
-                if (temp.left == nil) {
-                    return null;
-                } else {
-                    temp = temp.left;
-                }
-            } else if (bookId == temp.bookId) {
-                return temp;
-            } else {
-                if (temp.right == nil) {
-                    return null;
-                } else {
-                    temp = temp.right;
-                }
+        int pathLength = 1; // Books visited, for the search path metric
+        while (bookId != temp.bookId) {
+            RedBlackNode child = bookId < temp.bookId ? temp.left : temp.right;
+            if (child == nil) {
+                temp = null;
+                break;
             }
+            temp = child;
+            pathLength++;
+        }
+        if (LibraryMetrics.ENABLED)
+            LibraryMetrics.INSTANCE.searched(pathLength);
+        return temp;
+    }
+
+    // Print a book, or that it is not found in the library
+    @Override
+    public void printBookRecord(int bookId) {
+        RedBlackNode book = printBook(bookId);
+        if (book == null) {
+            out.append("Book ").append(bookId).append(" not found in the library\n");
+        } else {
+            appendRecord(out, book).append('\n');
         }
     }
 
     // Helper for Deleting a book from the Red-Black Tree and update color
     // information
     public void deleteBook(int bookId) {
+        deleteBook(bookId, out);
+    }
+
+    // Delete a book, writing the result to the given sink
+    void deleteBook(int bookId, OutputSink out) {
         RedBlackNode book = printBook(bookId);
         if (book == null) {
-            resultString.append("Book " + bookId + " is no longer available.\n");
+            out.append("Book ").append(bookId).append(" is no longer available.\n");
             return;
         }
-        transferMap();
-        hm1.remove(bookId);
+        int previousFlipCount = this.flipCount;
+        if (VERIFY_FLIPS) {
+            transferMap();
+            hm1.remove(bookId);
+        }
         delete(book);
-        populateLatestMap();
-        colorFlipCount();
-        if (book.minHeap.isEmpty()) {
-            resultString.append("Book " + bookId + " is no longer available.\n");
+        countColorFlips();
+        if (VERIFY_FLIPS) {
+            verifyColorFlipCount(previousFlipCount);
+        }
+        titles.remove(book.bookName, bookId);
+        authors.remove(book.authorName, bookId);
+        forget(bookId);
+        if (!book.isAvailable && book.borrowedBy != -1)
+            patrons.returned(book.borrowedBy, bookId);
+        if (!book.hasReservations()) {
+            out.append("Book ").append(bookId).append(" is no longer available.\n");
         } else {
-            resultString.append("Book " + bookId + " is no longer available. Reservations made by Patrons "
-                    + book.minHeap + " have been cancelled!\n");
+            for (int i = 0; i < book.minHeap.size(); i++)
+                patrons.unreserved(book.minHeap.heap[i].getPatronId(), bookId);
+            if (LibraryMetrics.ENABLED)
+                LibraryMetrics.INSTANCE.waitlistResized(book.minHeap.size(), 0);
+            out.append("Book ").append(bookId).append(" is no longer available. Reservations made by Patrons ")
+                    .append(book.minHeap).append(" have been cancelled!\n");
         }
     }
 
     // Delete Book from Red-Black Tree
     private boolean delete(RedBlackNode z) {
+        // The book unlinked from its place is z, or its predecessor when z has two
+        // children; every book above that place loses one book from its subtree
+        RedBlackNode unlinked = z.left == nil || z.right == nil ? z : treeMaximum(z.left);
+        for (RedBlackNode ancestor = unlinked.parent; ancestor != nil; ancestor = ancestor.parent)
+            ancestor.size--;
+
         RedBlackNode y = z;
         NodeColor y_original_color = y.color;
         RedBlackNode x;
@@ -290,7 +500,8 @@ class RedBlackTree {
             transplant(z, y);
             y.right = z.right;
             y.right.parent = y;
-            y.color = z.color;
+            y.size = z.size;
+            setColor(y, z.color);
         }
         if (y_original_color == NodeColor.BLACK) {
             fixDeleteViolation(x);
@@ -317,107 +528,418 @@ class RedBlackTree {
         return z;
     }
 
+    // Find the node with the minimum value in the subtree
+    private RedBlackNode treeMinimum(RedBlackNode z) {
+        while (z.left != nil) {
+            z = z.left;
+        }
+        return z;
+    }
+
     // Fix violations after deleting a Red-Black Node
     private void fixDeleteViolation(RedBlackNode x) {
         while (x != root && x.color == NodeColor.BLACK) {
+            if (LibraryMetrics.ENABLED)
+                LibraryMetrics.INSTANCE.deleteFixupIteration();
             if (x == x.parent.left) {
                 RedBlackNode w = x.parent.right;
                 if (w.color == NodeColor.RED) {
-                    w.color = NodeColor.BLACK;
-                    x.parent.color = NodeColor.RED;
+                    setColor(w, NodeColor.BLACK);
+                    setColor(x.parent, NodeColor.RED);
                     rotateLeft(x.parent);
                     w = x.parent.right;
                 }
                 if (w.left.color == NodeColor.BLACK && w.right.color == NodeColor.BLACK) {
-                    w.color = NodeColor.RED;
+                    setColor(w, NodeColor.RED);
                     x = x.parent;
                     continue;
                 } else if (w.right.color == NodeColor.BLACK) {
-                    w.left.color = NodeColor.BLACK;
-                    w.color = NodeColor.RED;
+                    setColor(w.left, NodeColor.BLACK);
+                    setColor(w, NodeColor.RED);
                     rotateRight(w);
                     w = x.parent.right;
                 }
                 if (w.right.color == NodeColor.RED) {
-                    w.color = x.parent.color;
-                    x.parent.color = NodeColor.BLACK;
-                    w.right.color = NodeColor.BLACK;
+                    setColor(w, x.parent.color);
+                    setColor(x.parent, NodeColor.BLACK);
+                    setColor(w.right, NodeColor.BLACK);
                     rotateLeft(x.parent);
                     x = root;
                 }
             } else {
                 RedBlackNode w = x.parent.left;
                 if (w.color == NodeColor.RED) {
-                    w.color = NodeColor.BLACK;
-                    x.parent.color = NodeColor.RED;
+                    setColor(w, NodeColor.BLACK);
+                    setColor(x.parent, NodeColor.RED);
                     rotateRight(x.parent);
                     w = x.parent.left;
                 }
                 if (w.right.color == NodeColor.BLACK && w.left.color == NodeColor.BLACK) {
-                    w.color = NodeColor.RED;
+                    setColor(w, NodeColor.RED);
                     x = x.parent;
                     continue;
                 } else if (w.left.color == NodeColor.BLACK) {
-                    w.right.color = NodeColor.BLACK;
-                    w.color = NodeColor.RED;
+                    setColor(w.right, NodeColor.BLACK);
+                    setColor(w, NodeColor.RED);
                     rotateLeft(w);
                     w = x.parent.left;
                 }
                 if (w.left.color == NodeColor.RED) {
-                    w.color = x.parent.color;
-                    x.parent.color = NodeColor.BLACK;
-                    w.left.color = NodeColor.BLACK;
+                    setColor(w, x.parent.color);
+                    setColor(x.parent, NodeColor.BLACK);
+                    setColor(w.left, NodeColor.BLACK);
                     rotateRight(x.parent);
                     x = root;
                 }
             }
         }
-        x.color = NodeColor.BLACK;
+        setColor(x, NodeColor.BLACK);
     }
 
     // Print information about books within a specified range of book IDs
     public void printBooks(int bookId1, int bookId2) {
-        List<RedBlackNode> listOfBooks = new ArrayList<>();
-        inorder(this.root, bookId1, bookId2, listOfBooks, true);
-        for (RedBlackNode book : listOfBooks)
-            resultString.append(book + "\n");
+        Iterator<RedBlackNode> books = rangeIterator(bookId1, bookId2);
+        while (books.hasNext())
+            appendRecord(out, books.next()).append('\n');
     }
 
-    // Find and print the closest book to a target book ID
-    public void findClosestBook(int targetId) {
-        int minDiff = Integer.MAX_VALUE;
-        List<RedBlackNode> listOfBooks = new ArrayList<>();
-        inorder(this.root, -1, -1, listOfBooks, false);
-        List<RedBlackNode> res = new ArrayList<>();
-        for (RedBlackNode book : listOfBooks) {
-            int diff = Math.abs(targetId - book.bookId);
-            if (minDiff > diff) {
-                minDiff = diff;
-                res = new ArrayList<>();
-                res.add(book);
-            } else if (minDiff == diff)
-                res.add(book);
-        }
-        Collections.sort(res, (x, y) -> {
-            return x.bookId - y.bookId;
-        });
-        for (RedBlackNode book : res)
-            resultString.append(book + "\n");
-    }
-
-    // Inorder traversal of the Red-Black Tree to collect books within a range or
-    // all books
-    private void inorder(RedBlackNode book, int lower, int upper, List<RedBlackNode> listOfBooks, boolean flag) {
+    // Iterate over the books with IDs in [lower, upper] in ascending order; the
+    // iterator starts at the ceiling of the lower bound and stops past the upper
+    // bound, so subtrees outside the range are never visited
+    public Iterator<RedBlackNode> rangeIterator(int lower, int upper) {
+        return new RangeIterator(lower, upper);
+    }
+
+    // Spliterator over the books with IDs in [lower, upper] in ascending order that
+    // splits along subtrees, so that a parallel stream over it fans out across the
+    // fork-join pool; the tree must not change while the stream runs
+    public Spliterator<RedBlackNode> spliterator(int lower, int upper) {
+        if (lower > upper)
+            return new SubtreeSpliterator(nil, nil, 0);
+        RedBlackNode fence = upper == Integer.MAX_VALUE ? nil : floorAndCeiling(upper + 1)[1];
+        return new SubtreeSpliterator(floorAndCeiling(lower)[1], fence, count(lower, upper));
+    }
+
+    // Spliterator over the books from current up to, but not including, fence (nil
+    // for the end of the tree). A part splits at its highest book in the tree other
+    // than current, the root of the smallest subtree holding the rest of the part,
+    // so the halves follow subtrees and stay balanced. Subtree sizes keep every
+    // part's size exact. Books are visited by following successor links.
+    private class SubtreeSpliterator implements Spliterator<RedBlackNode> {
+        private RedBlackNode current; // Next book to visit, or fence when done
+        private final RedBlackNode fence; // First book past the part
+        private int size; // Books left in the part
+
+        SubtreeSpliterator(RedBlackNode current, RedBlackNode fence, int size) {
+            this.current = size == 0 ? fence : current;
+            this.fence = fence;
+            this.size = size;
+        }
+
+        @Override
+        public Spliterator<RedBlackNode> trySplit() {
+            if (size < 2)
+                return null;
+            // Descend from the root to the first book strictly between current and fence
+            RedBlackNode split = root;
+            while (split != nil) {
+                if (split.bookId <= current.bookId)
+                    split = split.right;
+                else if (fence != nil && split.bookId >= fence.bookId)
+                    split = split.left;
+                else
+                    break;
+            }
+            if (split == nil)
+                return null;
+            int before = countBelow(split.bookId, false) - countBelow(current.bookId, false);
+            SubtreeSpliterator prefix = new SubtreeSpliterator(current, split, before);
+            current = split;
+            size -= before;
+            return prefix;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super RedBlackNode> action) {
+            if (current == fence)
+                return false;
+            RedBlackNode book = current;
+            current = successor(book);
+            size--;
+            action.accept(book);
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super RedBlackNode> action) {
+            for (RedBlackNode book = current; book != fence; book = successor(book))
+                action.accept(book);
+            current = fence;
+            size = 0;
+        }
+
+        @Override
+        public long estimateSize() {
+            return size;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | DISTINCT | SORTED | NONNULL | SIZED | SUBSIZED;
+        }
+
+        @Override
+        public Comparator<RedBlackNode> getComparator() {
+            return Comparator.comparingInt(book -> book.bookId);
+        }
+    }
+
+    // Print the number of available books with IDs in [bookId1, bookId2]
+    public void countAvailable(int bookId1, int bookId2) {
+        out.append("Available Book Count : ").append(availableBooks(bookId1, bookId2)).append('\n');
+    }
+
+    // Number of available books with IDs in [bookId1, bookId2], counted by a
+    // parallel stream once the range holds enough books
+    int availableBooks(int bookId1, int bookId2) {
+        return (int) stream(spliterator(bookId1, bookId2)).filter(book -> book.isAvailable).count();
+    }
+
+    // Print the n books with the longest waitlists, longest first and then in
+    // ascending order of ID
+    public void topWaitlists(int n) {
+        waitlistRanking(n).appendTo(out);
+    }
+
+    // Rank the books with the longest waitlists; every stream task ranks its part
+    // of the tree and the rankings are merged
+    WaitlistRanking waitlistRanking(int n) {
+        if (n <= 0)
+            return new WaitlistRanking(0);
+        return stream(spliterator(Integer.MIN_VALUE, Integer.MAX_VALUE)).filter(RedBlackNode::hasReservations)
+                .collect(() -> new WaitlistRanking(n), (ranking, book) -> ranking.offer(book.bookId,
+                        book.minHeap.size()), WaitlistRanking::merge);
+    }
+
+    // Stream over a spliterator, in parallel from PARALLEL_THRESHOLD books on
+    private static Stream<RedBlackNode> stream(Spliterator<RedBlackNode> books) {
+        return StreamSupport.stream(books, books.estimateSize() >= PARALLEL_THRESHOLD);
+    }
+
+    // Iterator walking successor links from the first book in range
+    private class RangeIterator implements Iterator<RedBlackNode> {
+        private final int upper; // Largest book ID to return
+        private RedBlackNode next; // Next book to return, or nil when exhausted
+
+        RangeIterator(int lower, int upper) {
+            this.upper = upper;
+            this.next = lower <= upper ? floorAndCeiling(lower)[1] : nil;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != nil && next.bookId <= upper;
+        }
+
+        @Override
+        public RedBlackNode next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            RedBlackNode book = next;
+            next = successor(book);
+            return book;
+        }
+    }
+
+    // Print the number of books with IDs in [bookId1, bookId2]
+    public void countBooks(int bookId1, int bookId2) {
+        out.append("Book Count : ").append(count(bookId1, bookId2)).append('\n');
+    }
+
+    // Number of books with IDs in [bookId1, bookId2]
+    int count(int bookId1, int bookId2) {
+        if (bookId1 > bookId2)
+            return 0;
+        return countBelow(bookId2, true) - countBelow(bookId1, false);
+    }
+
+    // Number of books with IDs below the given ID, or up to it if inclusive, from
+    // the subtree sizes along one root-to-leaf path
+    int countBelow(int bookId, boolean inclusive) {
+        int count = 0;
+        RedBlackNode book = root;
+        while (book != nil) {
+            if (bookId < book.bookId || (bookId == book.bookId && !inclusive)) {
+                book = book.left;
+            } else {
+                count += book.left.size + 1;
+                book = book.right;
+            }
+        }
+        return count;
+    }
+
+    // Print the 1-based position of a book in ascending order of ID
+    public void rankOf(int bookId) {
+        if (printBook(bookId) == null)
+            out.append("Book ").append(bookId).append(" not found in the library\n");
+        else
+            out.append("Rank of Book ").append(bookId).append(" : ").append(countBelow(bookId, true)).append('\n');
+    }
+
+    // Print the book at a 1-based position in ascending order of ID
+    public void nthBook(int rank) {
+        RedBlackNode book = select(rank);
         if (book == nil)
-            return;
-        inorder(book.left, lower, upper, listOfBooks, flag);
-        if (flag) {
-            if (book.bookId >= lower && book.bookId <= upper)
-                listOfBooks.add(book);
-        } else {
-            listOfBooks.add(book);
+            out.append("No book with rank ").append(rank).append(" in the library\n");
+        else
+            appendRecord(out, book).append('\n');
+    }
+
+    // Book at a 1-based position in ascending order of ID, or nil if there is none
+    RedBlackNode select(int rank) {
+        if (rank < 1 || rank > root.size)
+            return nil;
+        RedBlackNode book = root;
+        while (rank != book.left.size + 1) {
+            if (rank <= book.left.size) {
+                book = book.left;
+            } else {
+                rank -= book.left.size + 1;
+                book = book.right;
+            }
+        }
+        return book;
+    }
+
+    // Print one page of the books with IDs in [bookId1, bookId2]: skip offset books
+    // and print up to limit; the first book of the page is found by rank, so
+    // earlier pages are never walked
+    public void printBooksPage(int bookId1, int bookId2, int offset, int limit) {
+        for (RedBlackNode book : booksPage(bookId1, bookId2, offset, limit))
+            appendRecord(out, book).append('\n');
+    }
+
+    // Up to limit books with IDs in [bookId1, bookId2] after skipping offset of
+    // them, in ascending order of ID
+    List<RedBlackNode> booksPage(int bookId1, int bookId2, int offset, int limit) {
+        List<RedBlackNode> books = new ArrayList<>();
+        if (bookId1 > bookId2 || offset < 0 || limit <= 0)
+            return books;
+        long first = (long) countBelow(bookId1, false) + offset + 1;
+        RedBlackNode book = first > root.size ? nil : select((int) first);
+        while (books.size() < limit && book != nil && book.bookId <= bookId2) {
+            books.add(book);
+            book = successor(book);
+        }
+        return books;
+    }
+
+    // Find and print the closest book to a target book ID; on a tie both books
+    // are printed in ascending order of book ID
+    public void findClosestBook(int targetId) {
+        for (RedBlackNode book : closestBooks(targetId))
+            appendRecord(out, book).append('\n');
+    }
+
+    // Find the closest book to a target book ID, or both closest books in
+    // ascending order of book ID on a tie
+    public List<RedBlackNode> closestBooks(int targetId) {
+        RedBlackNode[] bounds = floorAndCeiling(targetId);
+        RedBlackNode lower = bounds[0], upper = bounds[1];
+        List<RedBlackNode> books = new ArrayList<>(2);
+        if (lower == upper) {
+            if (lower != nil)
+                books.add(lower);
+            return books;
         }
-        inorder(book.right, lower, upper, listOfBooks, flag);
+        long lowerDiff = lower == nil ? Long.MAX_VALUE : (long) targetId - lower.bookId;
+        long upperDiff = upper == nil ? Long.MAX_VALUE : (long) upper.bookId - targetId;
+        if (lowerDiff <= upperDiff)
+            books.add(lower);
+        if (upperDiff <= lowerDiff)
+            books.add(upper);
+        return books;
+    }
+
+    // Find and print the k books closest to a target book ID in ascending order of
+    // book ID, preferring the smaller book ID when two books are equally close
+    public void findClosestK(int targetId, int k) {
+        for (RedBlackNode book : closestBooks(targetId, k))
+            appendRecord(out, book).append('\n');
+    }
+
+    // Find the k books closest to a target book ID in ascending order of book ID,
+    // walking outward from the floor and ceiling of the target
+    public List<RedBlackNode> closestBooks(int targetId, int k) {
+        RedBlackNode[] bounds = floorAndCeiling(targetId);
+        RedBlackNode lower = bounds[0], upper = bounds[1];
+        Deque<RedBlackNode> lowerBooks = new ArrayDeque<>();
+        List<RedBlackNode> upperBooks = new ArrayList<>();
+        if (lower != nil && lower == upper && k > 0) {
+            upperBooks.add(upper);
+            lower = predecessor(lower);
+            upper = successor(upper);
+        }
+        while (lowerBooks.size() + upperBooks.size() < k && (lower != nil || upper != nil)) {
+            long lowerDiff = lower == nil ? Long.MAX_VALUE : (long) targetId - lower.bookId;
+            long upperDiff = upper == nil ? Long.MAX_VALUE : (long) upper.bookId - targetId;
+            if (lowerDiff <= upperDiff) {
+                lowerBooks.addFirst(lower);
+                lower = predecessor(lower);
+            } else {
+                upperBooks.add(upper);
+                upper = successor(upper);
+            }
+        }
+        List<RedBlackNode> books = new ArrayList<>(lowerBooks);
+        books.addAll(upperBooks);
+        return books;
+    }
+
+    // Descend from the root once to find the largest book ID not above the target
+    // (floor) and the smallest book ID not below it (ceiling); nil if absent
+    private RedBlackNode[] floorAndCeiling(int targetId) {
+        RedBlackNode lower = nil, upper = nil;
+        RedBlackNode temp = root;
+        while (temp != nil) {
+            if (targetId < temp.bookId) {
+                upper = temp;
+                temp = temp.left;
+            } else if (targetId > temp.bookId) {
+                lower = temp;
+                temp = temp.right;
+            } else {
+                lower = temp;
+                upper = temp;
+                break;
+            }
+        }
+        return new RedBlackNode[] { lower, upper };
+    }
+
+    // Find the node with the next smaller book ID, or nil if there is none
+    private RedBlackNode predecessor(RedBlackNode book) {
+        if (book.left != nil)
+            return treeMaximum(book.left);
+        RedBlackNode parent = book.parent;
+        while (parent != nil && book == parent.left) {
+            book = parent;
+            parent = parent.parent;
+        }
+        return parent;
+    }
+
+    // Find the node with the next larger book ID, or nil if there is none
+    private RedBlackNode successor(RedBlackNode book) {
+        if (book.right != nil)
+            return treeMinimum(book.right);
+        RedBlackNode parent = book.parent;
+        while (parent != nil && book == parent.right) {
+            book = parent;
+            parent = parent.parent;
+        }
+        return parent;
     }
 
     // Borrow a book from the library or reserve it for a patron
@@ -425,13 +947,36 @@ class RedBlackTree {
         RedBlackNode book = printBook(bookId);
         if (book == null)
             return;
+        borrowBook(book, patronId, patronPriority, out);
+    }
+
+    // Borrow or reserve a book found in the tree, writing the result to the given
+    // sink; only the fields of that book are modified
+    void borrowBook(RedBlackNode book, int patronId, int patronPriority, OutputSink out) {
+        int bookId = book.bookId;
         if (book.isAvailable) {
             book.borrowedBy = patronId;
             book.isAvailable = false;
-            resultString.append("Book " + bookId + " Borrowed by Patron " + patronId + "\n");
+            invalidate(bookId);
+            patrons.borrowed(patronId, bookId);
+            out.append("Book ").append(bookId).append(" Borrowed by Patron ").append(patronId).append('\n');
         } else {
-            resultString.append("Book " + bookId + " Reserved by Patron " + patronId + "\n");
-            book.minHeap.insertNode(new ReservationNode(patronId, patronPriority, System.nanoTime()));
+            // Create the reservation heap lazily, most books never get a reservation
+            if (book.minHeap == null)
+                book.minHeap = new MinHeap();
+            if (book.minHeap.contains(patronId)) {
+                out.append("Book ").append(bookId).append(" already reserved by Patron ").append(patronId)
+                        .append('\n');
+            } else if (book.minHeap.insertNode(new ReservationNode(patronId, patronPriority, System.nanoTime()))) {
+                if (LibraryMetrics.ENABLED)
+                    LibraryMetrics.INSTANCE.waitlistResized(book.minHeap.size() - 1, book.minHeap.size());
+                invalidate(bookId);
+                patrons.reserved(patronId, bookId);
+                out.append("Book ").append(bookId).append(" Reserved by Patron ").append(patronId).append('\n');
+            } else {
+                out.append("Book ").append(bookId).append(" Reservation list is full, Patron ").append(patronId)
+                        .append(" could not reserve it\n");
+            }
         }
     }
 
@@ -440,26 +985,426 @@ class RedBlackTree {
         RedBlackNode book = printBook(bookId);
         if (book == null)
             return;
+        returnBook(book, patronId, out);
+    }
+
+    // Return a book found in the tree, writing the result to the given sink; only
+    // the fields of that book are modified
+    void returnBook(RedBlackNode book, int patronId, OutputSink out) {
+        int bookId = book.bookId;
         if (book.borrowedBy != patronId)
             return;
         if (book.isAvailable)
             return;
         book.borrowedBy = -1;
         book.isAvailable = true;
-        resultString.append("Book " + bookId + " Returned by Patron " + patronId + "\n");
-        if (!book.minHeap.isEmpty()) {
+        invalidate(bookId);
+        patrons.returned(patronId, bookId);
+        out.append("Book ").append(bookId).append(" Returned by Patron ").append(patronId).append('\n');
+        if (book.hasReservations()) {
             ReservationNode latestReservation = book.minHeap.poll();
+            if (LibraryMetrics.ENABLED)
+                LibraryMetrics.INSTANCE.waitlistResized(book.minHeap.size() + 1, book.minHeap.size());
+            // Release the reservation heap once the waitlist drains
+            if (book.minHeap.isEmpty())
+                book.minHeap = null;
+            patrons.unreserved(latestReservation.getPatronId(), bookId);
             if (latestReservation.getPatronId() == -1)
                 return;
             book.borrowedBy = latestReservation.getPatronId();
             book.isAvailable = false;
-            resultString.append("Book " + bookId + " Allotted to Patron " + latestReservation.getPatronId() + "\n");
+            patrons.borrowed(book.borrowedBy, bookId);
+            out.append("Book ").append(bookId).append(" Allotted to Patron ").append(latestReservation.getPatronId())
+                    .append('\n');
+        }
+    }
+
+    // Run a batch of borrows and returns in their original order, looking up all
+    // of their books together first: the lookups of the distinct, sorted book IDs
+    // descend in lockstep one level per round, so their cache misses overlap
+    // instead of following one another, and neighbouring IDs share the nodes at
+    // the top of their paths. Borrows and returns never change the shape of the
+    // tree, so the books found stay valid for the whole batch.
+    @Override
+    public void circulate(CirculationBatch batch) {
+        int[] bookIds = batch.sortedBookIds();
+        RedBlackNode[] books = findAll(bookIds);
+        for (int i = 0; i < batch.size(); i++) {
+            RedBlackNode book = books[Arrays.binarySearch(bookIds, batch.bookId(i))];
+            if (book == null)
+                continue;
+            if (batch.isReturn(i))
+                returnBook(book, batch.patronId(i), out);
+            else
+                borrowBook(book, batch.patronId(i), batch.priority(i), out);
+        }
+    }
+
+    // Find the books with the given IDs, null where an ID is not in the tree
+    private RedBlackNode[] findAll(int[] bookIds) {
+        RedBlackNode[] books = new RedBlackNode[bookIds.length];
+        Arrays.fill(books, root);
+        int[] pending = new int[bookIds.length];
+        for (int i = 0; i < pending.length; i++)
+            pending[i] = i;
+        for (int active = pending.length; active > 0;) {
+            int next = 0;
+            for (int k = 0; k < active; k++) {
+                int i = pending[k];
+                RedBlackNode book = books[i];
+                if (book == nil)
+                    books[i] = null;
+                else if (bookIds[i] != book.bookId) {
+                    books[i] = bookIds[i] < book.bookId ? book.left : book.right;
+                    pending[next++] = i;
+                }
+            }
+            active = next;
         }
+        return books;
+    }
+
+    // Print the books a patron has borrowed and reserved
+    public void printPatron(int patronId) {
+        printPatron(patronId, out);
+    }
+
+    // Print the books of a patron, writing the result to the given sink
+    void printPatron(int patronId, OutputSink out) {
+        out.appendPatron(patronId, patrons.borrowedBooks(patronId), patrons.reservedBooks(patronId));
+    }
+
+    // Books borrowed by a patron in ascending order of book ID
+    int[] borrowedBooks(int patronId) {
+        return patrons.borrowedBooks(patronId);
+    }
+
+    // Books reserved by a patron in ascending order of book ID, once per reservation
+    int[] reservedBooks(int patronId) {
+        return patrons.reservedBooks(patronId);
+    }
+
+    // Cancel every reservation of a patron
+    public void cancelAllReservations(int patronId) {
+        out.appendCancelled(patronId, cancelReservations(patronId));
+    }
+
+    // Cancel every reservation of a patron, visiting only the books the patron
+    // reserved; returns those books in ascending order
+    int[] cancelReservations(int patronId) {
+        int[] reserved = patrons.reservedBooks(patronId);
+        for (int bookId : reserved)
+            cancel(printBook(bookId), patronId);
+        return reserved;
+    }
+
+    // Cancel the reservation of a patron on one book
+    public void cancelReservation(int patronId, int bookId) {
+        RedBlackNode book = printBook(bookId);
+        if (book == null) {
+            out.append("Book ").append(bookId).append(" not found in the library\n");
+            return;
+        }
+        cancelReservation(book, patronId, out);
+    }
+
+    // Cancel a reservation on a book found in the tree, writing the result to the
+    // given sink; only the fields of that book are modified
+    void cancelReservation(RedBlackNode book, int patronId, OutputSink out) {
+        if (cancel(book, patronId)) {
+            out.append("Reservation made by Patron ").append(patronId).append(" on Book ").append(book.bookId)
+                    .append(" has been cancelled!\n");
+        } else {
+            out.append("Patron ").append(patronId).append(" has no reservation on Book ").append(book.bookId)
+                    .append('\n');
+        }
+    }
+
+    // Remove the reservation of a patron from a book's waitlist; returns whether
+    // there was one
+    private boolean cancel(RedBlackNode book, int patronId) {
+        if (!book.hasReservations() || !book.minHeap.remove(patronId))
+            return false;
+        if (LibraryMetrics.ENABLED)
+            LibraryMetrics.INSTANCE.waitlistResized(book.minHeap.size() + 1, book.minHeap.size());
+        if (book.minHeap.isEmpty())
+            book.minHeap = null;
+        invalidate(book.bookId);
+        patrons.unreserved(patronId, book.bookId);
+        return true;
+    }
+
+    // Give the reservation of a patron on a book a new priority
+    public void updatePriority(int patronId, int bookId, int newPriority) {
+        RedBlackNode book = printBook(bookId);
+        if (book == null) {
+            out.append("Book ").append(bookId).append(" not found in the library\n");
+            return;
+        }
+        updatePriority(book, patronId, newPriority, out);
+    }
+
+    // Reprioritize a reservation on a book found in the tree, writing the result to
+    // the given sink; only the fields of that book are modified
+    void updatePriority(RedBlackNode book, int patronId, int newPriority, OutputSink out) {
+        if (book.hasReservations() && book.minHeap.updatePriority(patronId, newPriority)) {
+            invalidate(book.bookId);
+            out.append("Reservation made by Patron ").append(patronId).append(" on Book ").append(book.bookId)
+                    .append(" now has priority ").append(newPriority).append('\n');
+        } else {
+            out.append("Patron ").append(patronId).append(" has no reservation on Book ").append(book.bookId)
+                    .append('\n');
+        }
+    }
+
+    // Print the books whose title starts with a prefix, in ascending order of ID
+    public void findByTitle(String prefix) {
+        printMatches(booksWithTitle(prefix), "title", prefix);
+    }
+
+    // Print the books whose author starts with a prefix, in ascending order of ID
+    public void findByAuthor(String prefix) {
+        printMatches(booksWithAuthor(prefix), "author", prefix);
+    }
+
+    // Books whose title starts with a prefix, in ascending order of ID
+    List<RedBlackNode> booksWithTitle(String prefix) {
+        return books(titles.find(prefix));
+    }
+
+    // Books whose author starts with a prefix, in ascending order of ID
+    List<RedBlackNode> booksWithAuthor(String prefix) {
+        return books(authors.find(prefix));
+    }
+
+    // Look up the books with the given IDs
+    private List<RedBlackNode> books(int[] bookIds) {
+        List<RedBlackNode> books = new ArrayList<>(bookIds.length);
+        for (int bookId : bookIds)
+            books.add(printBook(bookId));
+        return books;
+    }
+
+    // Print the books found by a prefix search, or that there are none
+    private void printMatches(List<RedBlackNode> books, String field, String prefix) {
+        if (books.isEmpty())
+            out.appendNoMatches(field, prefix);
+        for (RedBlackNode book : books)
+            appendRecord(out, book).append('\n');
+    }
+
+    // Append the record of a book to a sink, copying it from the record cache when
+    // the book is cached and clean
+    OutputSink appendRecord(OutputSink out, RedBlackNode book) {
+        if (records == null || !book.hasReservations())
+            return out.append(book);
+        String record = records.get(book.bookId);
+        return record != null ? out.append(record) : out.append(format(book));
+    }
+
+    // Append the record of a book to a buffer, copying it from the record cache
+    // when the book is cached and clean
+    void appendRecord(StringBuilder result, RedBlackNode book) {
+        if (records == null || !book.hasReservations()) {
+            book.appendTo(result);
+        } else {
+            String record = records.get(book.bookId);
+            result.append(record != null ? record : format(book));
+        }
+    }
+
+    // Format the record of a book that missed the record cache and offer it to
+    // the cache
+    private StringBuilder format(RedBlackNode book) {
+        long removals = records.removals();
+        StringBuilder formatted = new StringBuilder(128);
+        book.appendTo(formatted);
+        records.put(book.bookId, formatted, removals);
+        return formatted;
+    }
+
+    // Switch to a record cache that may be used from several threads at once;
+    // called by ConcurrentLibrary before it shares the tree
+    void shareRecords() {
+        if (records != null)
+            records = new RecordCache.Shared(RecordCache.DEFAULT_CAPACITY);
+    }
+
+    // Mark the cached record of a book dirty after a change to its fields or
+    // waitlist
+    private void invalidate(int bookId) {
+        if (records != null)
+            records.invalidate(bookId);
+    }
+
+    // Drop the cached record of a book that was added or deleted
+    private void forget(int bookId) {
+        if (records != null)
+            records.remove(bookId);
+    }
+
+    // Add a book to the title and author indexes
+    private void indexText(RedBlackNode book) {
+        titles.add(book.bookName, book.bookId);
+        authors.add(book.authorName, book.bookId);
+    }
+
+    // Write the catalog to a snapshot file; returns whether it was saved
+    public boolean snapshot(String fileName) {
+        return snapshot(fileName, out);
+    }
+
+    // Write the catalog to a snapshot file, writing the result to the given sink
+    boolean snapshot(String fileName, OutputSink out) {
+        try {
+            int books = new LibrarySnapshot(nil).write(this, Paths.get(fileName));
+            out.append("Snapshot of ").append(books).append(" books saved to ").append(fileName).append('\n');
+            return true;
+        } catch (IOException | InvalidPathException e) {
+            out.append("Snapshot to ").append(fileName).append(" failed: ").append(LibrarySnapshot.describe(e))
+                    .append('\n');
+            return false;
+        }
+    }
+
+    // Replace the catalog with the one in a snapshot file; returns whether it was
+    // restored
+    public boolean restore(String fileName) {
+        return restore(fileName, out);
+    }
+
+    // Replace the catalog with the one in a snapshot file, writing the result to
+    // the given sink
+    boolean restore(String fileName, OutputSink out) {
+        try {
+            int books = new LibrarySnapshot(nil).restore(this, Paths.get(fileName));
+            out.append("Restored ").append(books).append(" books from ").append(fileName).append('\n');
+            return true;
+        } catch (IOException | InvalidPathException e) {
+            out.append("Restore from ").append(fileName).append(" failed: ").append(LibrarySnapshot.describe(e))
+                    .append('\n');
+            return false;
+        }
+    }
+
+    // Replace all books with the tree below the given root and carry on counting
+    // color flips from the given count; throws IllegalStateException and leaves the
+    // tree unchanged if the new tree is not a valid red-black tree
+    void replaceBooks(RedBlackNode newRoot, int newFlipCount) {
+        if (newRoot != nil && newRoot.color != NodeColor.BLACK)
+            throw new IllegalStateException("Root " + newRoot.bookId + " is not black");
+        computeSizes(newRoot);
+        checkInvariants(newRoot, nil, Long.MIN_VALUE, Long.MAX_VALUE);
+        if (LibraryMetrics.ENABLED)
+            recordWaitlists(false); // The old books and their waitlists go away
+        root = newRoot;
+        flipCount = newFlipCount;
+        rebuildIndexes();
+        if (records != null)
+            records.clear();
+        if (LibraryMetrics.ENABLED)
+            recordWaitlists(true);
+        if (VERIFY_FLIPS) {
+            // Start the snapshot comparison over from the restored tree
+            hm2.clear();
+            populateLatestMap();
+        }
+    }
+
+    // Rebuild the patron, title and author indexes from every book
+    private void rebuildIndexes() {
+        patrons.clear();
+        titles.clear();
+        authors.clear();
+        for (RedBlackNode book = root == nil ? nil : treeMinimum(root); book != nil; book = successor(book)) {
+            indexText(book);
+            if (!book.isAvailable && book.borrowedBy != -1)
+                patrons.borrowed(book.borrowedBy, book.bookId);
+            for (int i = 0; book.minHeap != null && i < book.minHeap.size(); i++)
+                patrons.reserved(book.minHeap.heap[i].getPatronId(), book.bookId);
+        }
+    }
+
+    // Set the subtree size of every book below the given one; returns its size
+    private int computeSizes(RedBlackNode book) {
+        if (book == nil)
+            return 0;
+        book.size = computeSizes(book.left) + computeSizes(book.right) + 1;
+        return book.size;
+    }
+
+    // Add the waitlists of every book to the metrics, or remove them
+    private void recordWaitlists(boolean add) {
+        for (RedBlackNode book = root == nil ? nil : treeMinimum(root); book != nil; book = successor(book)) {
+            if (!book.hasReservations())
+                continue;
+            int waitlist = book.minHeap.size();
+            LibraryMetrics.INSTANCE.waitlistResized(add ? 0 : waitlist, add ? waitlist : 0);
+        }
+    }
+
+    // Root of the tree, for traversals outside this class
+    RedBlackNode root() {
+        return root;
+    }
+
+    // Null node of the tree, for traversals outside this class
+    RedBlackNode nil() {
+        return nil;
+    }
+
+    // Number of books on the longest path from the root to a leaf
+    public int height() {
+        return height(root);
+    }
+
+    // Height of a subtree
+    private int height(RedBlackNode book) {
+        return book == nil ? 0 : 1 + Math.max(height(book.left), height(book.right));
+    }
+
+    // Number of black books on every path from the root to a leaf
+    public int blackHeight() {
+        int blackBooks = 0;
+        for (RedBlackNode book = root; book != nil; book = book.left) {
+            if (book.color == NodeColor.BLACK)
+                blackBooks++;
+        }
+        return blackBooks;
+    }
+
+    // Check the red-black properties and the parent links of the whole tree,
+    // throwing IllegalStateException on the first violation
+    void checkInvariants() {
+        if (root != nil && root.color != NodeColor.BLACK)
+            throw new IllegalStateException("Root " + root.bookId + " is not black");
+        checkInvariants(root, nil, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    // Check a subtree whose keys lie strictly between lower and upper; returns its
+    // black height
+    private int checkInvariants(RedBlackNode book, RedBlackNode parent, long lower, long upper) {
+        if (book == nil)
+            return 1;
+        if (book.parent != parent)
+            throw new IllegalStateException("Book " + book.bookId + " has a wrong parent link");
+        if (book.bookId <= lower || book.bookId >= upper)
+            throw new IllegalStateException("Book " + book.bookId + " is out of order");
+        if (book.color == NodeColor.RED && (book.left.color == NodeColor.RED || book.right.color == NodeColor.RED))
+            throw new IllegalStateException("Red book " + book.bookId + " has a red child");
+        if (book.size != book.left.size + book.right.size + 1)
+            throw new IllegalStateException("Book " + book.bookId + " has a wrong subtree size");
+        int leftHeight = checkInvariants(book.left, book, lower, book.bookId);
+        int rightHeight = checkInvariants(book.right, book, book.bookId, upper);
+        if (leftHeight != rightHeight)
+            throw new IllegalStateException("Book " + book.bookId + " has unequal black heights");
+        return leftHeight + (book.color == NodeColor.BLACK ? 1 : 0);
     }
 
-    // Quit the program and append termination message to resultString
-    public void quit() {
-        resultString.append("Program Terminated!!\n");
+    // Quit the program, append the termination message and flush the output
+    public void quit() throws IOException {
+        out.append("Program Terminated!!\n");
+        out.flush();
         this.root = null;
     }
 
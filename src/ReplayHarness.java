@@ -0,0 +1,56 @@
+import java.io.*;
+
+// Replays a command file through the sequential engine and reports the overall
+// throughput and the p50/p99/p99.9/max latency of each command type, measured per
+// command with LatencyHistogram. Borrows and returns run in a circulation batch
+// are each charged an equal share of the batch, not the time to queue them, and
+// the row that triggers the batch is not charged for it. Output goes to a file
+// when one is given and is discarded otherwise; Quit ends the replay.
+//
+// Usage: java ReplayHarness <commandFile> [outputFile]
+public class ReplayHarness {
+
+    public static void main(String[] args) throws IOException {
+        Writer writer = args.length > 1 ? new FileWriter(args[1]) : Writer.nullWriter();
+        OutputSink out = new OutputSink(writer, OutputSink.DEFAULT_BUFFER_SIZE);
+        GatorLibrary library = new GatorLibrary(new RedBlackTree(out), out);
+        LatencyHistogram[] latencies = new LatencyHistogram[Command.values().length + 1];
+        for (int i = 0; i < latencies.length; i++)
+            latencies[i] = new LatencyHistogram();
+        library.setTimer((command, nanos) -> latencies[command == null ? latencies.length - 1 : command.ordinal()]
+                .record(nanos));
+
+        long commands = 0;
+        long start = System.nanoTime();
+        try (InputStream in = new FileInputStream(args[0])) {
+            CommandParser row = new CommandParser(in);
+            while (row.next() && row.command() != Command.QUIT) {
+                library.parse(row);
+                commands++;
+            }
+            library.endCirculation();
+            library.endBulkInsert();
+        }
+        out.close();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%,d commands in %.2f s: %,.0f commands/s%n", commands, seconds, commands / seconds);
+        System.out.printf("%-18s %12s %10s %10s %10s %10s%n", "command", "count", "p50 us", "p99 us", "p99.9 us",
+                "max us");
+        LatencyHistogram all = new LatencyHistogram();
+        for (int i = 0; i < latencies.length; i++) {
+            if (latencies[i].count() == 0)
+                continue;
+            all.add(latencies[i]);
+            print(i < Command.values().length ? Command.values()[i].operationName() : "Invalid", latencies[i]);
+        }
+        print("All", all);
+    }
+
+    // Print one row of the latency table
+    private static void print(String name, LatencyHistogram histogram) {
+        System.out.printf("%-18s %,12d %10.1f %10.1f %10.1f %10.1f%n", name, histogram.count(),
+                histogram.valueAtPercentile(50) / 1e3, histogram.valueAtPercentile(99) / 1e3,
+                histogram.valueAtPercentile(99.9) / 1e3, histogram.max() / 1e3);
+    }
+}
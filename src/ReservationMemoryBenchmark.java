@@ -0,0 +1,55 @@
+import java.lang.ref.Reference;
+
+// Benchmark comparing the heap footprint of a library whose books each allocate a
+// MinHeap(20) up front (the previous layout) with one whose reservation heaps are
+// created only when a book gets its first reservation.
+//
+// Usage: java -Xmx6g ReservationMemoryBenchmark [numberOfBooks ...]
+// (defaults to 1000000 and 10000000 books)
+public class ReservationMemoryBenchmark {
+
+    // Every book shares the same title and author so that only the tree and the
+    // reservation heaps contribute to the measured footprint
+    private static final String TITLE = "Title";
+    private static final String AUTHOR = "Author";
+
+    public static void main(String[] args) {
+        int[] sizes = { 1_000_000, 10_000_000 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int books : sizes) {
+            long eager = measure(books, true);
+            long lazy = measure(books, false);
+            System.out.printf("%,d books: eager MinHeap(20) %,d MB (%d B/book), lazy %,d MB (%d B/book)%n",
+                    books, eager >> 20, eager / books, lazy >> 20, lazy / books);
+        }
+    }
+
+    // Build a tree of the given size and return the bytes it retains
+    private static long measure(int books, boolean eagerHeaps) {
+        long before = usedMemory();
+        RedBlackTree rbTree = new RedBlackTree();
+        for (int bookId = 1; bookId <= books; bookId++) {
+            rbTree.insertBook(bookId, TITLE, AUTHOR, "Yes");
+        }
+        if (eagerHeaps) {
+            rbTree.rangeIterator(1, books).forEachRemaining(book -> book.minHeap = new MinHeap(20));
+        }
+        long retained = usedMemory() - before;
+        Reference.reachabilityFence(rbTree);
+        return retained;
+    }
+
+    // Heap usage after asking the collector to clear unreachable objects
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -3,6 +3,7 @@ public class ReservationNode implements Comparable<ReservationNode> {
     private int patronId; // Identifier of the patron making the reservation
     private int priorityNumber; // Priority number assigned to the reservation
     private long timeOfReservation; // Timestamp indicating when the reservation was made
+    int slot; // Index of the node in its MinHeap array, maintained by the heap
 
     // Parameterized constructor to initialize a ReservationNode with reservation details
     public ReservationNode(int patronId, int priorityNumber, long timeOfReservation) {
@@ -25,6 +26,12 @@ public class ReservationNode implements Comparable<ReservationNode> {
         return priorityNumber;
     }
 
+    // Change the priority number; only the heap holding the node may call this,
+    // since the node has to move to keep the heap in order
+    void setPriorityNumber(int priorityNumber) {
+        this.priorityNumber = priorityNumber;
+    }
+
     // Getter method to retrieve the timestamp of the reservation
     public long getTimeOfReservation() {
         return timeOfReservation;
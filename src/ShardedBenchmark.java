@@ -0,0 +1,72 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+// Throughput of the sharded executor for 1 to 16 shards against the sequential
+// engine, over an in-memory command file that loads a catalog and then runs a
+// circulation-heavy mix with occasional range and closest-book queries.
+//
+// Usage: java ShardedBenchmark [numberOfBooks] [numberOfCommands]
+public class ShardedBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int books = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int commands = args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000;
+        byte[] input = generate(books, commands, new Random(42));
+
+        System.out.printf("sequential: %,.0f commands/s%n", (books + commands) / runSequential(input));
+        for (int shards = 1; shards <= 16; shards *= 2) {
+            System.out.printf("%2d shards:  %,.0f commands/s%n", shards,
+                    (books + commands) / runSharded(input, shards, books));
+        }
+    }
+
+    // Build the command file
+    private static byte[] generate(int books, int commands, Random random) {
+        StringBuilder sb = new StringBuilder((books + commands) * 24);
+        for (int bookId = 1; bookId <= books; bookId++) {
+            sb.append("InsertBook(").append(bookId).append(", \"Title\", \"Author\", \"Yes\")\n");
+        }
+        for (int i = 0; i < commands; i++) {
+            int bookId = 1 + random.nextInt(books);
+            int patronId = random.nextInt(100_000);
+            int kind = random.nextInt(100);
+            if (kind < 40)
+                sb.append("BorrowBook(").append(patronId).append(", ").append(bookId).append(", 1)\n");
+            else if (kind < 80)
+                sb.append("ReturnBook(").append(patronId).append(", ").append(bookId).append(")\n");
+            else if (kind < 97)
+                sb.append("PrintBook(").append(bookId).append(")\n");
+            else if (kind < 99)
+                sb.append("PrintBooks(").append(bookId).append(", ").append(bookId + 5).append(")\n");
+            else
+                sb.append("FindClosestBook(").append(bookId).append(")\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Seconds taken by the single-tree engine
+    private static double runSequential(byte[] input) throws IOException {
+        long start = System.nanoTime();
+        CommandParser parser = new CommandParser(new ByteArrayInputStream(input));
+        OutputSink out = new OutputSink(Writer.nullWriter(), OutputSink.DEFAULT_BUFFER_SIZE);
+        GatorLibrary library = new GatorLibrary(new RedBlackTree(out), out);
+        while (parser.next())
+            library.parse(parser);
+        out.close();
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    // Seconds taken by the sharded executor
+    private static double runSharded(byte[] input, int shards, int books) throws Exception {
+        long start = System.nanoTime();
+        CommandParser parser = new CommandParser(new ByteArrayInputStream(input));
+        OutputSink out = new OutputSink(Writer.nullWriter(), OutputSink.DEFAULT_BUFFER_SIZE);
+        ShardedLibrary library = new ShardedLibrary(shards, books, out);
+        while (parser.next() && library.submit(parser)) {
+        }
+        library.finish();
+        out.close();
+        return (System.nanoTime() - start) / 1e9;
+    }
+}
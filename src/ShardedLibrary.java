@@ -0,0 +1,576 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Executes commands on N RedBlackTree shards, each owning a contiguous range of book
+// IDs and running on its own worker thread. Commands on a single book go to the
+// shard that owns it; PrintBooks, FindClosestBook, FindClosestK, PrintPatron,
+// CancelAllReservations, FindByTitle, FindByAuthor, CountBooks, CountAvailable,
+// TopWaitlists and RankOf are sent to every shard involved and their parts are
+// gathered. NthBook and PrintBooksPage first count the books of every shard in the
+// range, then ask only the shards holding the page for their part of it. Every
+// command gets a sequence number and results are written strictly in that order,
+// so the output matches sequential execution.
+//
+// The shard trees have other shapes than a single tree would, so their color flips
+// say nothing about the sequential count. The dispatching thread therefore keeps
+// the shape of the single tree in an ArrayRedBlackTree holding only the book IDs,
+// which counts flips as RedBlackTree does: every insert, delete and bulk load is
+// applied to it in command order at O(log n) per book, and ColorFlipCount is
+// answered from it.
+public class ShardedLibrary {
+    // Number of shards (-Dgatorlibrary.shards=<n>); 1 runs the sequential engine.
+    // With more, the output matches the sequential engine byte for byte
+    static final int SHARDS = Integer.getInteger("gatorlibrary.shards", 1);
+
+    // Largest expected book ID; [0, MAX_BOOK_ID] is split evenly across the shards
+    // and IDs outside it go to the first or last shard (-Dgatorlibrary.maxBookId=<n>)
+    static final int MAX_BOOK_ID = Integer.getInteger("gatorlibrary.maxBookId", 1_000_000);
+
+    // Maximum number of commands dispatched but not yet written out
+    private static final int WINDOW = 1 << 16;
+
+    // Capacity of each shard's command queue
+    private static final int QUEUE_CAPACITY = 1 << 14;
+
+    // Book rendered by a shard, for merging closest-book results
+    private static final class RenderedBook {
+        final int bookId; // ID of the book
+        final String text; // Formatted record of the book
+
+        RenderedBook(int bookId, String text) {
+            this.bookId = bookId;
+            this.text = text;
+        }
+    }
+
+    // One command in flight; the latch counts the shards still working on it
+    private static final class Task extends CountDownLatch {
+        final Command command; // Operation to perform, null for a fixed text result
+        final int firstShard; // First shard taking part in the command
+        final Object[] parts; // Result of each shard taking part, by shard offset
+        int arg0, arg1, arg2; // Integer arguments
+        String bookName, authorName, isAvailable; // InsertBook arguments
+        String prefix; // FindByTitle and FindByAuthor argument
+        int[] offsets, limits; // Part of a page taken from each shard, by shard offset
+        List<RedBlackNode> books; // Books of a bulk load
+        String text; // Fixed text result for invalid commands and Quit
+
+        Task(Command command, int firstShard, int lastShard) {
+            super(lastShard - firstShard + 1);
+            this.command = command;
+            this.firstShard = firstShard;
+            this.parts = new Object[lastShard - firstShard + 1];
+        }
+    }
+
+    // Task telling a worker to stop
+    private static final Task STOP = new Task(null, 0, 0);
+
+    // Shard worker: a tree, its queue and a reusable sink for command output
+    private final class Shard implements Runnable {
+        final int index; // Position of the shard in the ID space
+        final RedBlackTree rbTree; // Books owned by this shard
+        final BlockingQueue<Task> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final StringWriter scratch = new StringWriter(); // Output of the current command
+        final OutputSink out = new OutputSink(scratch, Integer.MAX_VALUE);
+        final Thread thread;
+
+        Shard(int index) {
+            this.index = index;
+            this.rbTree = new RedBlackTree(out);
+            this.thread = new Thread(this, "library-shard-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Task task = queue.take(); task != STOP; task = queue.take()) {
+                    try {
+                        task.parts[index - task.firstShard] = execute(task);
+                    } catch (RuntimeException | IOException e) {
+                        task.parts[index - task.firstShard] = e;
+                    } finally {
+                        task.countDown();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Run this shard's part of a command and return its result
+        private Object execute(Task task) throws IOException {
+            switch (task.command) {
+                case INSERT_BOOK:
+                    rbTree.insertBook(task.arg0, task.bookName, task.authorName, task.isAvailable);
+                    return null;
+                case BULK_INSERT_BOOKS:
+                    rbTree.bulkLoad(task.books);
+                    return null;
+                case PRINT_BOOK:
+                    rbTree.printBookRecord(task.arg0);
+                    break;
+                case PRINT_BOOKS:
+                    rbTree.printBooks(task.arg0, task.arg1);
+                    break;
+                case BORROW_BOOK:
+                    rbTree.borrowBook(task.arg0, task.arg1, task.arg2);
+                    break;
+                case RETURN_BOOK:
+                    rbTree.returnBook(task.arg0, task.arg1);
+                    break;
+                case DELETE_BOOK:
+                    rbTree.deleteBook(task.arg0);
+                    break;
+                case FIND_CLOSEST_BOOK:
+                    return render(rbTree.closestBooks(task.arg0));
+                case FIND_CLOSEST_K:
+                    return render(rbTree.closestBooks(task.arg0, task.arg1));
+                case CANCEL_RESERVATION:
+                    rbTree.cancelReservation(task.arg0, task.arg1);
+                    break;
+                case UPDATE_PRIORITY:
+                    rbTree.updatePriority(task.arg0, task.arg1, task.arg2);
+                    break;
+                case PRINT_PATRON:
+                    return new int[][] { rbTree.borrowedBooks(task.arg0), rbTree.reservedBooks(task.arg0) };
+                case CANCEL_ALL_RESERVATIONS:
+                    return new int[][] { rbTree.cancelReservations(task.arg0) };
+                case COUNT_BOOKS:
+                    return rbTree.count(task.arg0, task.arg1);
+                case COUNT_AVAILABLE:
+                    return rbTree.availableBooks(task.arg0, task.arg1);
+                case TOP_WAITLISTS:
+                    return rbTree.waitlistRanking(task.arg0);
+                case RANK_OF:
+                    int found = rbTree.printBook(task.arg0) == null ? 0 : 1;
+                    return new int[] { rbTree.countBelow(task.arg0, false), found };
+                case NTH_BOOK:
+                case PRINT_BOOKS_PAGE:
+                    int part = index - task.firstShard;
+                    return render(rbTree.booksPage(task.arg0, task.arg1, task.offsets[part], task.limits[part]));
+                case FIND_BY_TITLE:
+                    return render(rbTree.booksWithTitle(task.prefix));
+                case FIND_BY_AUTHOR:
+                    return render(rbTree.booksWithAuthor(task.prefix));
+                default:
+                    throw new IllegalStateException("Unexpected command " + task.command);
+            }
+            return takeOutput();
+        }
+
+        // Render closest-book candidates so they can be merged later
+        private List<RenderedBook> render(List<RedBlackNode> books) {
+            List<RenderedBook> rendered = new ArrayList<>(books.size());
+            for (RedBlackNode book : books)
+                rendered.add(new RenderedBook(book.bookId, book.toString()));
+            return rendered;
+        }
+
+        // Return the output of the current command and reset the scratch buffer
+        private String takeOutput() throws IOException {
+            out.flush();
+            StringBuffer buffer = scratch.getBuffer();
+            String output = buffer.toString();
+            buffer.setLength(0);
+            return output;
+        }
+    }
+
+    private final Shard[] shards; // Shards in ascending order of book IDs
+    private final long maxBookId; // Upper end of the evenly split ID space
+    private final OutputSink out; // Destination of the merged output
+    private final ArrayDeque<Task> inFlight = new ArrayDeque<>(); // Tasks in sequence order
+    private List<List<RedBlackNode>> bulkBooks; // Books collected after BulkInsertBooks, by shard
+    private final ArrayRedBlackTree shape = new ArrayRedBlackTree(
+            new OutputSink(Writer.nullWriter(), OutputSink.DEFAULT_BUFFER_SIZE)); // Book IDs as one tree
+
+    // Constructor to start the shard workers
+    public ShardedLibrary(int shardCount, int maxBookId, OutputSink out) {
+        this.shards = new Shard[Math.max(1, shardCount)];
+        this.maxBookId = Math.max(1, maxBookId);
+        this.out = out;
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i);
+            shards[i].thread.start();
+        }
+    }
+
+    // Dispatch the command of the current input row; returns false after Quit
+    public boolean submit(CommandParser row) throws IOException, InterruptedException {
+        Command operation = row.command();
+        if (bulkBooks != null && operation != Command.INSERT_BOOK)
+            endBulkInsert();
+        if (operation == null || row.argumentCount() < operation.arguments()) {
+            enqueueText("Invalid GatorLibrary operation\n");
+            return true;
+        }
+        try {
+            switch (operation) {
+                case INSERT_BOOK:
+                    int bookId = row.intArgument(0);
+                    if (bulkBooks != null) {
+                        bulkBooks.get(shardOf(bookId)).add(new RedBlackNode(bookId, row.stringArgument(1),
+                                row.stringArgument(2), row.argumentEquals(3, "Yes")));
+                        return true;
+                    }
+                    shape.insertBook(bookId, "", "", "Yes");
+                    Task insert = new Task(operation, shardOf(bookId), shardOf(bookId));
+                    insert.arg0 = bookId;
+                    insert.bookName = row.stringArgument(1);
+                    insert.authorName = row.stringArgument(2);
+                    insert.isAvailable = row.argumentEquals(3, "Yes") ? "Yes" : "No";
+                    enqueue(insert);
+                    break;
+                case BULK_INSERT_BOOKS:
+                    bulkBooks = new ArrayList<>();
+                    for (int i = 0; i < shards.length; i++)
+                        bulkBooks.add(new ArrayList<>());
+                    break;
+                case BORROW_BOOKS:
+                case RETURN_BOOKS:
+                    // Each shard already runs the borrows and returns routed to it in order
+                    break;
+                case DELETE_BOOK:
+                    shape.deleteBook(row.intArgument(0));
+                    enqueue(singleBook(operation, row.intArgument(0), row.intArgument(0), 0, 0));
+                    break;
+                case PRINT_BOOK:
+                    enqueue(singleBook(operation, row.intArgument(0), row.intArgument(0), 0, 0));
+                    break;
+                case BORROW_BOOK:
+                    enqueue(singleBook(operation, row.intArgument(1), row.intArgument(0), row.intArgument(1),
+                            row.intArgument(2)));
+                    break;
+                case RETURN_BOOK:
+                case CANCEL_RESERVATION:
+                    enqueue(singleBook(operation, row.intArgument(1), row.intArgument(0), row.intArgument(1), 0));
+                    break;
+                case UPDATE_PRIORITY:
+                    enqueue(singleBook(operation, row.intArgument(1), row.intArgument(0), row.intArgument(1),
+                            row.intArgument(2)));
+                    break;
+                case PRINT_BOOKS:
+                    int lower = row.intArgument(0), upper = row.intArgument(1);
+                    Task range = new Task(operation, shardOf(lower), Math.max(shardOf(lower), shardOf(upper)));
+                    range.arg0 = lower;
+                    range.arg1 = upper;
+                    enqueue(range);
+                    break;
+                case FIND_CLOSEST_BOOK:
+                case FIND_CLOSEST_K:
+                    Task gather = new Task(operation, 0, shards.length - 1);
+                    gather.arg0 = row.intArgument(0);
+                    gather.arg1 = operation == Command.FIND_CLOSEST_K ? row.intArgument(1) : 0;
+                    enqueue(gather);
+                    break;
+                case COLOR_FLIP_COUNT:
+                    // The shape tree is up to date with every command dispatched so far
+                    enqueueText("Color Flip Count : " + shape.flipCount + "\n");
+                    break;
+                case PRINT_PATRON:
+                case CANCEL_ALL_RESERVATIONS:
+                    // A patron may hold books in every shard
+                    Task patron = new Task(operation, 0, shards.length - 1);
+                    patron.arg0 = row.intArgument(0);
+                    enqueue(patron);
+                    break;
+                case COUNT_BOOKS:
+                case COUNT_AVAILABLE:
+                    int low = row.intArgument(0), high = row.intArgument(1);
+                    Task count = new Task(operation, shardOf(low), Math.max(shardOf(low), shardOf(high)));
+                    count.arg0 = low;
+                    count.arg1 = high;
+                    enqueue(count);
+                    break;
+                case RANK_OF:
+                    // Only the books of the shards up to the owner rank before the book
+                    Task rank = new Task(operation, 0, shardOf(row.intArgument(0)));
+                    rank.arg0 = row.intArgument(0);
+                    enqueue(rank);
+                    break;
+                case TOP_WAITLISTS:
+                    // Every shard ranks its own books and the rankings are merged
+                    Task top = new Task(operation, 0, shards.length - 1);
+                    top.arg0 = row.intArgument(0);
+                    enqueue(top);
+                    break;
+                case NTH_BOOK:
+                    int position = row.intArgument(0);
+                    if (position < 1)
+                        enqueueText("No book with rank " + position + " in the library\n");
+                    else
+                        enqueuePage(operation, Integer.MIN_VALUE, Integer.MAX_VALUE, position - 1, 1);
+                    break;
+                case PRINT_BOOKS_PAGE:
+                    enqueuePage(operation, row.intArgument(0), row.intArgument(1), row.intArgument(2),
+                            row.intArgument(3));
+                    break;
+                case FIND_BY_TITLE:
+                case FIND_BY_AUTHOR:
+                    // Matches may lie in every shard
+                    Task search = new Task(operation, 0, shards.length - 1);
+                    search.prefix = row.stringArgument(0);
+                    enqueue(search);
+                    break;
+                case SNAPSHOT:
+                case RESTORE:
+                    // Snapshots hold a single tree, which the shards do not have
+                    enqueueText(operation.operationName() + " is not supported with sharded execution\n");
+                    break;
+                case QUIT:
+                    enqueueText("Program Terminated!!\n");
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            enqueueText("Invalid GatorLibrary operation\n");
+        }
+        return true;
+    }
+
+    // Load any pending bulk batch, write all remaining output and stop the workers
+    public void finish() throws IOException, InterruptedException {
+        endBulkInsert();
+        while (!inFlight.isEmpty())
+            write(inFlight.poll());
+        for (Shard shard : shards)
+            shard.queue.put(STOP);
+        for (Shard shard : shards)
+            shard.thread.join();
+    }
+
+    // Shard owning a book ID
+    private int shardOf(int bookId) {
+        if (bookId <= 0)
+            return 0;
+        return (int) Math.min(shards.length - 1, (long) bookId * shards.length / (maxBookId + 1));
+    }
+
+    // Build a task for a command that touches the book with the given ID only
+    private Task singleBook(Command operation, int bookId, int arg0, int arg1, int arg2) {
+        Task task = new Task(operation, shardOf(bookId), shardOf(bookId));
+        task.arg0 = arg0;
+        task.arg1 = arg1;
+        task.arg2 = arg2;
+        return task;
+    }
+
+    // Hand the books collected since BulkInsertBooks to their shards
+    private void endBulkInsert() throws IOException, InterruptedException {
+        if (bulkBooks == null)
+            return;
+        List<List<RedBlackNode>> batches = bulkBooks;
+        bulkBooks = null;
+        // The single tree loads the whole batch at once
+        List<RedBlackNode> bookIds = new ArrayList<>();
+        for (List<RedBlackNode> batch : batches) {
+            for (RedBlackNode book : batch)
+                bookIds.add(new RedBlackNode(book.bookId, "", "", true));
+        }
+        shape.bulkLoad(bookIds);
+        for (int i = 0; i < batches.size(); i++) {
+            if (batches.get(i).isEmpty())
+                continue;
+            Task bulk = new Task(Command.BULK_INSERT_BOOKS, i, i);
+            bulk.books = batches.get(i);
+            enqueue(bulk);
+        }
+    }
+
+    // Queue one page of the books with IDs in [lower, upper]. The books of each
+    // shard in the range are counted first, waiting for the commands before this
+    // one; the page is then split into the part each shard holds.
+    private void enqueuePage(Command operation, int lower, int upper, int offset, int limit)
+            throws IOException, InterruptedException {
+        String empty = operation == Command.NTH_BOOK ? "No book with rank " + (offset + 1) + " in the library\n" : "";
+        if (lower > upper || offset < 0 || limit <= 0) {
+            enqueueText(empty);
+            return;
+        }
+        Task counts = new Task(Command.COUNT_BOOKS, shardOf(lower), shardOf(upper));
+        counts.arg0 = lower;
+        counts.arg1 = upper;
+        for (int i = 0; i < counts.parts.length; i++)
+            shards[counts.firstShard + i].queue.put(counts);
+        counts.await();
+        rethrow(counts);
+
+        int first = -1, last = -1;
+        int[] offsets = new int[counts.parts.length], limits = new int[counts.parts.length];
+        long skip = offset, remaining = limit;
+        for (int i = 0; i < counts.parts.length && remaining > 0; i++) {
+            int books = (Integer) counts.parts[i];
+            if (skip >= books) {
+                skip -= books;
+                continue;
+            }
+            offsets[i] = (int) skip;
+            limits[i] = (int) Math.min(remaining, books - skip);
+            remaining -= limits[i];
+            skip = 0;
+            if (first < 0)
+                first = i;
+            last = i;
+        }
+        if (first < 0) {
+            enqueueText(empty);
+            return;
+        }
+        Task page = new Task(operation, counts.firstShard + first, counts.firstShard + last);
+        page.arg0 = lower;
+        page.arg1 = upper;
+        page.offsets = Arrays.copyOfRange(offsets, first, last + 1);
+        page.limits = Arrays.copyOfRange(limits, first, last + 1);
+        enqueue(page);
+    }
+
+    // Queue a result that needs no shard
+    private void enqueueText(String text) throws IOException, InterruptedException {
+        Task task = new Task(null, 0, -1);
+        task.text = text;
+        enqueue(task);
+    }
+
+    // Send a task to its shards, then write out every finished task at the head
+    private void enqueue(Task task) throws IOException, InterruptedException {
+        for (int i = 0; i < task.parts.length; i++)
+            shards[task.firstShard + i].queue.put(task);
+        inFlight.add(task);
+        while (!inFlight.isEmpty() && (inFlight.peek().getCount() == 0 || inFlight.size() > WINDOW))
+            write(inFlight.poll());
+    }
+
+    // Wait for a task and merge its parts into the output
+    @SuppressWarnings("unchecked")
+    private void write(Task task) throws IOException, InterruptedException {
+        task.await();
+        rethrow(task);
+        if (task.command == null) {
+            out.append(task.text);
+            return;
+        }
+        switch (task.command) {
+            case FIND_CLOSEST_BOOK:
+            case FIND_CLOSEST_K:
+                writeClosest(task);
+                break;
+            case PRINT_PATRON:
+                out.appendPatron(task.arg0, concat(task, 0), concat(task, 1));
+                break;
+            case CANCEL_ALL_RESERVATIONS:
+                out.appendCancelled(task.arg0, concat(task, 0));
+                break;
+            case FIND_BY_TITLE:
+            case FIND_BY_AUTHOR:
+                writeMatches(task);
+                break;
+            case COUNT_BOOKS:
+                int count = 0;
+                for (Object part : task.parts)
+                    count += (Integer) part;
+                out.append("Book Count : ").append(count).append('\n');
+                break;
+            case COUNT_AVAILABLE:
+                int available = 0;
+                for (Object part : task.parts)
+                    available += (Integer) part;
+                out.append("Available Book Count : ").append(available).append('\n');
+                break;
+            case TOP_WAITLISTS:
+                WaitlistRanking ranking = new WaitlistRanking(task.arg0);
+                for (Object part : task.parts)
+                    ranking.merge((WaitlistRanking) part);
+                ranking.appendTo(out);
+                break;
+            case RANK_OF:
+                int below = 0;
+                for (Object part : task.parts)
+                    below += ((int[]) part)[0];
+                if (((int[]) task.parts[task.parts.length - 1])[1] == 0)
+                    out.append("Book ").append(task.arg0).append(" not found in the library\n");
+                else
+                    out.append("Rank of Book ").append(task.arg0).append(" : ").append(below + 1).append('\n');
+                break;
+            case NTH_BOOK:
+            case PRINT_BOOKS_PAGE:
+                for (Object part : task.parts) {
+                    for (RenderedBook book : (List<RenderedBook>) part)
+                        out.append(book.text).append('\n');
+                }
+                break;
+            default:
+                for (Object part : task.parts) {
+                    if (part != null)
+                        out.append((String) part);
+                }
+        }
+    }
+
+    // Throw the first exception a shard hit while working on a finished task
+    private static void rethrow(Task task) throws IOException {
+        for (Object part : task.parts) {
+            if (part instanceof IOException)
+                throw (IOException) part;
+            if (part instanceof RuntimeException)
+                throw (RuntimeException) part;
+        }
+    }
+
+    // Concatenate one list of book IDs from every shard's part; the shards own
+    // ascending ranges, so sorted parts stay sorted
+    private static int[] concat(Task task, int list) {
+        int length = 0;
+        for (Object part : task.parts)
+            length += ((int[][]) part)[list].length;
+        int[] bookIds = new int[length];
+        int offset = 0;
+        for (Object part : task.parts) {
+            int[] books = ((int[][]) part)[list];
+            System.arraycopy(books, 0, bookIds, offset, books.length);
+            offset += books.length;
+        }
+        return bookIds;
+    }
+
+    // Write the matches of a prefix search; the shards own ascending ranges of
+    // IDs and return their matches in order, so they are written shard by shard
+    @SuppressWarnings("unchecked")
+    private void writeMatches(Task task) {
+        boolean found = false;
+        for (Object part : task.parts) {
+            for (RenderedBook book : (List<RenderedBook>) part) {
+                out.append(book.text).append('\n');
+                found = true;
+            }
+        }
+        if (!found)
+            out.appendNoMatches(task.command == Command.FIND_BY_TITLE ? "title" : "author", task.prefix);
+    }
+
+    // Merge the closest-book candidates of every shard, ordering them by distance
+    // and then book ID as the single-tree search does
+    @SuppressWarnings("unchecked")
+    private void writeClosest(Task task) {
+        int targetId = task.arg0;
+        List<RenderedBook> candidates = new ArrayList<>();
+        for (Object part : task.parts)
+            candidates.addAll((List<RenderedBook>) part);
+        candidates.sort(Comparator.<RenderedBook>comparingLong(book -> Math.abs((long) targetId - book.bookId))
+                .thenComparingInt(book -> book.bookId));
+        List<RenderedBook> closest;
+        if (task.command == Command.FIND_CLOSEST_K) {
+            closest = new ArrayList<>(candidates.subList(0, Math.min(Math.max(task.arg1, 0), candidates.size())));
+        } else {
+            closest = new ArrayList<>();
+            for (RenderedBook book : candidates) {
+                if (Math.abs((long) targetId - book.bookId) == Math.abs((long) targetId - candidates.get(0).bookId))
+                    closest.add(book);
+            }
+        }
+        closest.sort(Comparator.comparingInt(book -> book.bookId));
+        for (RenderedBook book : closest)
+            out.append(book.text).append('\n');
+    }
+}
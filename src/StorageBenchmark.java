@@ -0,0 +1,135 @@
+import java.io.*;
+import java.util.*;
+
+// Compares the object tree (RedBlackTree) with the struct-of-arrays tree
+// (ArrayRedBlackTree): retained heap per book, lookups, raw range walks and
+// formatted PrintBooks scans. Every book shares one title and author string so
+// that only the storage of the tree itself is measured.
+//
+// Usage: java -Xmx4g StorageBenchmark [-sizes 1000000,10000000] [-ops n]
+public class StorageBenchmark {
+
+    // Operation under measurement; i counts the operations of an iteration
+    private interface Operation {
+        long run(int i);
+    }
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final int RANGE_WIDTH = 1_000; // Books per range walk
+
+    private static int operations = 1_000_000; // Operations per iteration
+    private static long sink; // Consumes results so that no work is optimized away
+
+    public static void main(String[] args) {
+        int[] sizes = { 1_000_000, 10_000_000 };
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-sizes"))
+                sizes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+            else if (args[i].equals("-ops"))
+                operations = Integer.parseInt(args[++i]);
+        }
+        System.out.printf("%-30s %10s %12s%n", "benchmark", "books", "result");
+        for (int size : sizes) {
+            int[] keys = new int[operations];
+            Random random = new Random(size);
+            for (int i = 0; i < operations; i++)
+                keys[i] = 2 * (1 + random.nextInt(size));
+            objectTree(size, keys);
+            arrayTree(size, keys);
+        }
+        if (sink == 42)
+            System.out.println();
+    }
+
+    // Benchmarks of the object tree
+    private static void objectTree(int size, int[] keys) {
+        long before = usedMemory();
+        RedBlackTree rbTree = new RedBlackTree(nullSink());
+        rbTree.bulkLoad(books(size));
+        report("object bytes/book", size, (double) (usedMemory() - before) / size);
+        measure("object printBook ns/op", size, i -> rbTree.printBook(keys[i]).bookId, operations);
+        measure("object range walk ns/book", size, i -> {
+            long sum = 0;
+            for (Iterator<RedBlackNode> books = rbTree.rangeIterator(keys[i], keys[i] + 2 * RANGE_WIDTH); books
+                    .hasNext();)
+                sum += books.next().bookId;
+            return sum;
+        }, operations / RANGE_WIDTH, RANGE_WIDTH);
+        measure("object printBooks ns/book", size, i -> {
+            rbTree.printBooks(keys[i], keys[i] + 2 * RANGE_WIDTH);
+            return 0;
+        }, operations / RANGE_WIDTH / 10, RANGE_WIDTH);
+    }
+
+    // Benchmarks of the struct-of-arrays tree
+    private static void arrayTree(int size, int[] keys) {
+        long before = usedMemory();
+        ArrayRedBlackTree rbTree = new ArrayRedBlackTree(nullSink());
+        rbTree.bulkLoad(books(size));
+        report("array bytes/book", size, (double) (usedMemory() - before) / size);
+        measure("array printBook ns/op", size, i -> rbTree.bookId(rbTree.find(keys[i])), operations);
+        measure("array range walk ns/book", size, i -> {
+            long sum = 0;
+            int upper = keys[i] + 2 * RANGE_WIDTH;
+            for (int book = rbTree.ceiling(keys[i]); book != 0 && rbTree.bookId(book) <= upper; book = rbTree
+                    .successor(book))
+                sum += rbTree.bookId(book);
+            return sum;
+        }, operations / RANGE_WIDTH, RANGE_WIDTH);
+        measure("array printBooks ns/book", size, i -> {
+            rbTree.printBooks(keys[i], keys[i] + 2 * RANGE_WIDTH);
+            return 0;
+        }, operations / RANGE_WIDTH / 10, RANGE_WIDTH);
+    }
+
+    // Books with even IDs 2..2*size sharing one title and author
+    private static List<RedBlackNode> books(int size) {
+        List<RedBlackNode> books = new ArrayList<>(size);
+        for (int i = 1; i <= size; i++)
+            books.add(new RedBlackNode(2 * i, "Title", "Author", true));
+        return books;
+    }
+
+    // Sink discarding all output
+    private static OutputSink nullSink() {
+        return new OutputSink(Writer.nullWriter(), OutputSink.DEFAULT_BUFFER_SIZE);
+    }
+
+    // Heap in use after a full collection
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Warm up, then report the average time per unit over the measured iterations;
+    // each operation counts for the given number of units
+    private static void measure(String name, int size, Operation operation, int count) {
+        measure(name, size, operation, count, 1);
+    }
+
+    private static void measure(String name, int size, Operation operation, int count, int units) {
+        count = Math.max(1, count);
+        for (int iteration = 0; iteration < WARMUP_ITERATIONS; iteration++)
+            runIteration(operation, count);
+        long nanos = 0;
+        for (int iteration = 0; iteration < MEASURED_ITERATIONS; iteration++)
+            nanos += runIteration(operation, count);
+        report(name, size, (double) nanos / ((long) count * units * MEASURED_ITERATIONS));
+    }
+
+    // Run one iteration and return its duration in nanoseconds
+    private static long runIteration(Operation operation, int count) {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++)
+            sink += operation.run(i);
+        return System.nanoTime() - start;
+    }
+
+    // Print one result row
+    private static void report(String name, int size, double value) {
+        System.out.printf("%-30s %10d %12.1f%n", name, size, value);
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.*;
+
+// Index from a text field of the books (title or author) to the IDs of the books
+// carrying each distinct value, for prefix searches. The distinct values are kept
+// in a sorted map, so the values starting with a prefix form one contiguous run
+// that a query walks from its first entry; each value keeps its book IDs in sorted
+// int blocks of at most BLOCK_SIZE IDs, so adding or removing a book shifts one
+// block rather than every ID of a value that thousands of books share. The map
+// shares the String objects of the books, so the index costs one map entry and
+// one block list per distinct value plus about four bytes per book.
+//
+// The index is not thread-safe; ConcurrentLibrary only changes it under its write
+// lock.
+public class TextIndex {
+
+    // Largest number of book IDs in one block
+    private static final int BLOCK_SIZE = 256;
+
+    // Book IDs carrying one value, in ascending order across the blocks. Slot 0 of
+    // a block holds the number of IDs in it and the IDs follow; only a value
+    // without books has an empty block.
+    private static final class Postings {
+        int[][] blocks = { new int[2] };
+        int blockCount = 1;
+        int count; // IDs in all blocks
+
+        // Block that holds or would take a book ID: the last block whose first ID
+        // is not above it, or the first block
+        int blockOf(int bookId) {
+            int lo = 0, hi = blockCount - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (blocks[mid][1] <= bookId)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            return lo;
+        }
+
+        // Add a book ID that is not in the list yet
+        void add(int bookId) {
+            int b = blockOf(bookId);
+            int[] block = blocks[b];
+            int size = block[0];
+            if (size == BLOCK_SIZE) {
+                split(b);
+                add(bookId);
+                return;
+            }
+            // Books mostly arrive in ascending order of ID, which appends
+            int position = size + 1;
+            if (size > 0 && block[size] > bookId)
+                position = -1 - Arrays.binarySearch(block, 1, size + 1, bookId);
+            if (size + 1 == block.length)
+                block = blocks[b] = Arrays.copyOf(block, Math.min(2 * size, BLOCK_SIZE) + 1);
+            System.arraycopy(block, position, block, position + 1, size + 1 - position);
+            block[position] = bookId;
+            block[0]++;
+            count++;
+        }
+
+        // Remove a book ID; returns false if it is not in the list
+        boolean remove(int bookId) {
+            int b = blockOf(bookId);
+            int[] block = blocks[b];
+            int size = block[0];
+            int position = Arrays.binarySearch(block, 1, size + 1, bookId);
+            if (size == 0 || position < 0)
+                return false;
+            System.arraycopy(block, position + 1, block, position, size - position);
+            block[0]--;
+            count--;
+            // Fold a block into its neighbor once both fit in half a block, so
+            // deletes never leave long runs of nearly empty blocks; an empty block
+            // always goes, as its first ID would no longer place it
+            if (block[0] == 0 && blockCount > 1)
+                merge(b > 0 ? b - 1 : b);
+            else if (b + 1 < blockCount && block[0] + blocks[b + 1][0] <= BLOCK_SIZE / 2)
+                merge(b);
+            else if (b > 0 && blocks[b - 1][0] + block[0] <= BLOCK_SIZE / 2)
+                merge(b - 1);
+            return true;
+        }
+
+        // Move the upper half of a full block into a new block after it
+        private void split(int b) {
+            int[] block = blocks[b];
+            int half = block[0] / 2;
+            int[] upper = new int[BLOCK_SIZE + 1];
+            upper[0] = block[0] - half;
+            System.arraycopy(block, half + 1, upper, 1, upper[0]);
+            block[0] = half;
+            if (blockCount == blocks.length)
+                blocks = Arrays.copyOf(blocks, 2 * blockCount);
+            System.arraycopy(blocks, b + 1, blocks, b + 2, blockCount - b - 1);
+            blocks[b + 1] = upper;
+            blockCount++;
+        }
+
+        // Append the IDs of the block after b to block b and drop that block
+        private void merge(int b) {
+            int[] block = blocks[b], next = blocks[b + 1];
+            if (block.length < block[0] + next[0] + 1)
+                block = blocks[b] = Arrays.copyOf(block, BLOCK_SIZE + 1);
+            System.arraycopy(next, 1, block, block[0] + 1, next[0]);
+            block[0] += next[0];
+            System.arraycopy(blocks, b + 2, blocks, b + 1, blockCount - b - 2);
+            blocks[--blockCount] = null;
+        }
+
+        // Copy every ID, in ascending order, into an array from the given index
+        void copyTo(int[] bookIds, int index) {
+            for (int b = 0; b < blockCount; b++) {
+                System.arraycopy(blocks[b], 1, bookIds, index, blocks[b][0]);
+                index += blocks[b][0];
+            }
+        }
+    }
+
+    private final TreeMap<String, Postings> values = new TreeMap<>();
+
+    // Record that a book carries the given value
+    void add(String value, int bookId) {
+        Postings postings = values.get(value);
+        if (postings == null) {
+            postings = new Postings();
+            values.put(value, postings);
+        }
+        postings.add(bookId);
+    }
+
+    // Record that a book carrying the given value is gone
+    void remove(String value, int bookId) {
+        Postings postings = values.get(value);
+        if (postings != null && postings.remove(bookId) && postings.count == 0)
+            values.remove(value);
+    }
+
+    // IDs of the books whose value starts with the prefix, in ascending order
+    int[] find(String prefix) {
+        int[] bookIds = new int[0];
+        int count = 0, runs = 0;
+        for (Map.Entry<String, Postings> entry : values.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix))
+                break;
+            Postings postings = entry.getValue();
+            if (count + postings.count > bookIds.length)
+                bookIds = Arrays.copyOf(bookIds, Math.max(count + postings.count, 2 * bookIds.length));
+            postings.copyTo(bookIds, count);
+            count += postings.count;
+            runs++;
+        }
+        bookIds = Arrays.copyOf(bookIds, count);
+        // A single value's books are already in order
+        if (runs > 1)
+            Arrays.sort(bookIds);
+        return bookIds;
+    }
+
+    // Forget every book
+    void clear() {
+        values.clear();
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.*;
+
+// The books with the longest waitlists seen so far, up to a limit, for
+// TopWaitlists. A longer waitlist ranks higher, and the smaller book ID on equal
+// lengths. The ranked books are kept in a min-heap whose root is the lowest
+// ranked one, so offering a book costs O(log limit). Rankings gathered from
+// parts of the catalog, by parallel stream tasks or by shards, merge into one.
+final class WaitlistRanking {
+    private final int limit; // Maximum number of books ranked
+    private int[] bookIds = new int[16]; // Heap of ranked books, lowest ranked first
+    private int[] lengths = new int[16]; // Waitlist length of each ranked book
+    private int size; // Number of books ranked
+
+    // Constructor to rank up to limit books
+    WaitlistRanking(int limit) {
+        this.limit = Math.max(0, limit);
+    }
+
+    // Offer a book with a non-empty waitlist of the given length
+    void offer(int bookId, int length) {
+        if (size < limit) {
+            if (size == bookIds.length) {
+                bookIds = Arrays.copyOf(bookIds, 2 * size);
+                lengths = Arrays.copyOf(lengths, 2 * size);
+            }
+            bookIds[size] = bookId;
+            lengths[size] = length;
+            siftUp(size++);
+        } else if (size > 0 && ranksAbove(bookId, length, bookIds[0], lengths[0])) {
+            bookIds[0] = bookId;
+            lengths[0] = length;
+            siftDown(0);
+        }
+    }
+
+    // Offer every book of another ranking
+    void merge(WaitlistRanking other) {
+        for (int i = 0; i < other.size; i++)
+            offer(other.bookIds[i], other.lengths[i]);
+    }
+
+    // Append the ranked books, highest ranked first, or that no book has a waitlist
+    void appendTo(OutputSink out) {
+        if (limit == 0)
+            return;
+        if (size == 0) {
+            out.append("No books with reservations in the library\n");
+            return;
+        }
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.<Integer>comparingInt(i -> -lengths[i]).thenComparingInt(i -> bookIds[i]));
+        for (int i : order)
+            out.append("Waitlist of Book ").append(bookIds[i]).append(" : ").append(lengths[i]).append('\n');
+    }
+
+    // Whether a book ranks above another
+    private static boolean ranksAbove(int bookId, int length, int otherBookId, int otherLength) {
+        return length != otherLength ? length > otherLength : bookId < otherBookId;
+    }
+
+    // Move the book at a slot up until its parent ranks below it
+    private void siftUp(int slot) {
+        while (slot > 0) {
+            int parent = (slot - 1) / 2;
+            if (!ranksAbove(bookIds[parent], lengths[parent], bookIds[slot], lengths[slot]))
+                return;
+            swap(slot, parent);
+            slot = parent;
+        }
+    }
+
+    // Move the book at a slot down until both children rank above it
+    private void siftDown(int slot) {
+        while (2 * slot + 1 < size) {
+            int child = 2 * slot + 1;
+            if (child + 1 < size && ranksAbove(bookIds[child], lengths[child], bookIds[child + 1], lengths[child + 1]))
+                child++;
+            if (!ranksAbove(bookIds[slot], lengths[slot], bookIds[child], lengths[child]))
+                return;
+            swap(slot, child);
+            slot = child;
+        }
+    }
+
+    // Swap the books at two slots
+    private void swap(int i, int j) {
+        int bookId = bookIds[i], length = lengths[i];
+        bookIds[i] = bookIds[j];
+        lengths[i] = lengths[j];
+        bookIds[j] = bookId;
+        lengths[j] = length;
+    }
+}
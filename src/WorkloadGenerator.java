@@ -0,0 +1,194 @@
+import java.io.*;
+import java.util.*;
+
+// Writes synthetic command files in the GatorLibrary input grammar. The file loads a
+// catalog and then runs a configurable mix of operations whose book IDs follow a
+// Zipf distribution, so a few hot books get most of the traffic, with configurable
+// range widths and reservation contention.
+//
+// Usage: java WorkloadGenerator <outputFile> [-books n] [-commands n] [-zipf s]
+//        [-patrons n] [-rangeWidth n] [-seed n] [-bulk]
+//        [-mix insert=2,delete=1,borrow=30,return=30,print=25,range=5,closest=5,closestK=1,flips=1]
+public class WorkloadGenerator {
+
+    // Operation names accepted in -mix
+    private static final String[] MIX_NAMES = { "insert", "delete", "borrow", "return", "print", "range",
+            "closest", "closestK", "flips" };
+
+    public static void main(String[] args) throws IOException {
+        String fileName = args[0];
+        int books = 100_000, commands = 1_000_000, patrons = 10_000, rangeWidth = 100;
+        double zipf = 0.99;
+        long seed = 42;
+        boolean bulk = false;
+        String mix = "insert=2,delete=1,borrow=30,return=30,print=25,range=5,closest=5,closestK=1,flips=1";
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "-books":
+                    books = Integer.parseInt(args[++i]);
+                    break;
+                case "-commands":
+                    commands = Integer.parseInt(args[++i]);
+                    break;
+                case "-zipf":
+                    zipf = Double.parseDouble(args[++i]);
+                    break;
+                case "-patrons":
+                    patrons = Integer.parseInt(args[++i]);
+                    break;
+                case "-rangeWidth":
+                    rangeWidth = Integer.parseInt(args[++i]);
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "-bulk":
+                    bulk = true;
+                    break;
+                case "-mix":
+                    mix = args[++i];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        try (Writer writer = new BufferedWriter(new FileWriter(fileName), 1 << 16)) {
+            generate(writer, books, commands, parseMix(mix), new ZipfSampler(books, zipf, new Random(seed)),
+                    patrons, rangeWidth, bulk, new Random(seed + 1));
+        }
+    }
+
+    // Cumulative weights of the operations named in MIX_NAMES
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[MIX_NAMES.length];
+        for (String entry : mix.split(",")) {
+            String[] pair = entry.split("=");
+            int index = Arrays.asList(MIX_NAMES).indexOf(pair[0].trim());
+            if (index < 0)
+                throw new IllegalArgumentException("Unknown operation " + pair[0]);
+            weights[index] = Integer.parseInt(pair[1].trim());
+        }
+        for (int i = 1; i < weights.length; i++)
+            weights[i] += weights[i - 1];
+        if (weights[weights.length - 1] <= 0)
+            throw new IllegalArgumentException("The operation mix is empty");
+        return weights;
+    }
+
+    // Write the catalog load followed by the operation mix
+    private static void generate(Writer writer, int books, int commands, int[] mix, ZipfSampler hotBooks,
+            int patrons, int rangeWidth, boolean bulk, Random random) throws IOException {
+        StringBuilder line = new StringBuilder(128);
+        if (bulk)
+            writer.write("BulkInsertBooks()\n");
+        for (int bookId = 1; bookId <= books; bookId++)
+            writeInsert(writer, line, bookId);
+        int nextNewBook = books + 1;
+        for (int i = 0; i < commands; i++) {
+            int choice = random.nextInt(mix[mix.length - 1]);
+            int operation = 0;
+            while (choice >= mix[operation])
+                operation++;
+            int bookId = hotBooks.nextBookId();
+            line.setLength(0);
+            switch (MIX_NAMES[operation]) {
+                case "insert":
+                    writeInsert(writer, line, nextNewBook++);
+                    continue;
+                case "delete":
+                    line.append("DeleteBook(").append(bookId).append(')');
+                    break;
+                case "borrow":
+                    line.append("BorrowBook(").append(random.nextInt(patrons)).append(", ").append(bookId)
+                            .append(", ").append(1 + random.nextInt(20)).append(')');
+                    break;
+                case "return":
+                    line.append("ReturnBook(").append(random.nextInt(patrons)).append(", ").append(bookId)
+                            .append(')');
+                    break;
+                case "print":
+                    line.append("PrintBook(").append(bookId).append(')');
+                    break;
+                case "range":
+                    line.append("PrintBooks(").append(bookId).append(", ")
+                            .append(bookId + random.nextInt(rangeWidth + 1)).append(')');
+                    break;
+                case "closest":
+                    line.append("FindClosestBook(").append(bookId).append(')');
+                    break;
+                case "closestK":
+                    line.append("FindClosestK(").append(bookId).append(", ").append(1 + random.nextInt(10))
+                            .append(')');
+                    break;
+                default:
+                    line.append("ColorFlipCount()");
+            }
+            writer.append(line).append('\n');
+        }
+        writer.write("Quit()\n");
+    }
+
+    // Write an InsertBook line for a new book
+    private static void writeInsert(Writer writer, StringBuilder line, int bookId) throws IOException {
+        line.setLength(0);
+        line.append("InsertBook(").append(bookId).append(", \"Title ").append(bookId).append("\", \"Author ")
+                .append(bookId % 997).append("\", \"Yes\")\n");
+        writer.append(line);
+    }
+
+    // Zipf-distributed book IDs in [1, n], drawn by rejection-inversion (Hormann and
+    // Derflinger) so no table of n probabilities is needed. Ranks are scattered over
+    // the ID space so hot books are not all neighbours.
+    static final class ZipfSampler {
+        private static final long SCATTER = 1_000_000_007L; // Prime used to permute ranks
+
+        private final int n; // Number of books
+        private final double exponent; // Skew; 0 is uniform
+        private final Random random;
+        private final double hIntegralX1, hIntegralN, s;
+
+        ZipfSampler(int n, double exponent, Random random) {
+            this.n = n;
+            this.exponent = exponent;
+            this.random = random;
+            this.hIntegralX1 = hIntegral(1.5) - 1;
+            this.hIntegralN = hIntegral(n + 0.5);
+            this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+        }
+
+        // Draw a book ID
+        int nextBookId() {
+            while (true) {
+                double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+                double x = hIntegralInverse(u);
+                long k = Math.max(1, Math.min(n, (long) (x + 0.5)));
+                if (k - x <= s || u >= hIntegral(k + 0.5) - h(k))
+                    return (int) ((k - 1) * SCATTER % n) + 1;
+            }
+        }
+
+        private double h(double x) {
+            return Math.exp(-exponent * Math.log(x));
+        }
+
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return helper2((1 - exponent) * logX) * logX;
+        }
+
+        private double hIntegralInverse(double x) {
+            double t = Math.max(-1, x * (1 - exponent));
+            return Math.exp(helper1(t) * x);
+        }
+
+        // log1p(x) / x, accurate near 0
+        private static double helper1(double x) {
+            return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+        }
+
+        // expm1(x) / x, accurate near 0
+        private static double helper2(double x) {
+            return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x * (1.0 / 3) * (1 + 0.25 * x));
+        }
+    }
+}